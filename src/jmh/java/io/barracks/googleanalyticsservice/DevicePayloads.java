@@ -0,0 +1,84 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.UUID;
+
+/**
+ * Builds payloads shaped like the {@code deviceInfo.json} test fixtures, repeated and nested deeper.
+ */
+public final class DevicePayloads {
+
+    private DevicePayloads() {
+    }
+
+    public static ObjectNode nested(int groups, int depth) {
+        final ObjectNode root = JsonNodeFactory.instance.objectNode();
+        for (int group = 0; group < groups; group++) {
+            ObjectNode node = root.putObject("battery" + group);
+            for (int level = 0; level < depth; level++) {
+                node.put("level", 50 + level);
+                node.put("damaged", false);
+                node.put("brand", "Apple");
+                node.put("time", 12.4);
+                node = node.putObject("useCases" + level);
+            }
+            node.put("oui", "oui");
+            root.putObject("elephants" + group).put("animal", "big");
+        }
+        root.put("what", "this");
+        root.put("howMuch", 3.5);
+        return root;
+    }
+
+    /**
+     * @return the number of leaves in {@link #nested(int, int)}.
+     */
+    public static int leafCount(int groups, int depth) {
+        return groups * (4 * depth + 2) + 2;
+    }
+
+    /**
+     * A whole device message as published on the AMQP queue, with {@link #nested(int, int)} as custom client data.
+     * At depth 3 it weighs 593 bytes for 1 group, 2951 bytes for 10 groups and 26711 bytes for 100 groups.
+     */
+    public static byte[] deviceInfo(ObjectMapper objectMapper, int groups, int depth) throws JsonProcessingException {
+        final ObjectNode root = objectMapper.createObjectNode();
+        root.put("unitId", UUID.randomUUID().toString());
+        root.put("userId", UUID.randomUUID().toString());
+        root.put("segmentId", UUID.randomUUID().toString());
+        root.put("versionId", "v1.2.3 beta");
+        root.put("userAgent", "Barracks SDK/2.1.0 (Linux; ARMv7)");
+        root.put("deviceIP", "192.168.12.1");
+        root.put("receptionDate", System.currentTimeMillis());
+        root.set("additionalProperties", nested(groups, depth));
+        return objectMapper.writeValueAsBytes(root);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.cache;
+
+import io.barracks.googleanalyticsservice.client.AuthorizationServiceClient;
+import io.barracks.googleanalyticsservice.client.CircuitBreaker;
+import io.barracks.googleanalyticsservice.metrics.PipelineMetrics;
+import io.barracks.googleanalyticsservice.model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up random users through {@link UserCache} from several threads. The authorization service answers
+ * after {@code remoteTokens} of busy work, with more users than {@code maxSize} a share of the lookups misses.
+ * Run with {@code gradle jmh -Pjmh.includes=UserCacheBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class UserCacheBenchmark {
+
+    @Param({"1000", "100000"})
+    private int users;
+
+    @Param({"10000"})
+    private long maxSize;
+
+    @Param({"1000"})
+    private long remoteTokens;
+
+    private String[] userIds;
+    private UserCache userCache;
+
+    @Setup
+    public void setUp() {
+        userIds = new String[users];
+        for (int i = 0; i < users; i++) {
+            userIds[i] = UUID.randomUUID().toString();
+        }
+        final User user = User.builder().gaTrackingId("UA-12348765-65").build();
+        final AuthorizationServiceClient authorizationServiceClient = new AuthorizationServiceClient(
+                "http://localhost",
+                new RestTemplateBuilder(),
+                new SimpleClientHttpRequestFactory(),
+                new CircuitBreaker("authorizationservice", false, 50, 1, 1, 0, 1)
+        ) {
+            @Override
+            public User getUserById(String userId) {
+                Blackhole.consumeCPU(remoteTokens);
+                return user;
+            }
+        };
+        userCache = new UserCache(authorizationServiceClient, new PipelineMetrics(60000), maxSize, 600, 60);
+        for (String userId : userIds) {
+            userCache.getUserById(userId);
+        }
+    }
+
+    @Benchmark
+    public User getUserById() {
+        return userCache.getUserById(userIds[ThreadLocalRandom.current().nextInt(users)]);
+    }
+}
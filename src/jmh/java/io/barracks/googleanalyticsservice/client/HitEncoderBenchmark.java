@@ -0,0 +1,103 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.client;
+
+import io.barracks.commons.util.Endpoint;
+import io.barracks.googleanalyticsservice.model.KeyPath;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.http.HttpMethod;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the per-hit {@link Endpoint} template expansion formerly done by {@link GoogleAnalyticsClient}
+ * with {@link HitEncoder}, for the 12 leaves of the {@code deviceInfo.json} fixture sent for one device message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HitEncoderBenchmark {
+
+    private static final Endpoint TEMPLATE_ENDPOINT = Endpoint.from(HttpMethod.POST, "/collect",
+            "v={v}&t={t}&ec={key}&ea={value}&uid={unitId}&cid={unitId}&tid={trackingId}&ua={userAgent}&pr1cd1={versionId}&qt={qt}&uip={IPAddress}");
+
+    private static final String[][] LEAVES = {
+            {"battery.level", "50"}, {"battery.damaged", "false"}, {"battery.brand", "Apple"},
+            {"battery.useCases.normal", "yes"}, {"battery.useCases.time", "12.4"}, {"battery.useCases.beaver", "true"},
+            {"battery.useCases.yes.yes", "true"}, {"battery.useCases.yes.no", "false"}, {"battery.useCases.oui", "oui"},
+            {"elephants.animal", "big"}, {"what", "this"}, {"howMuch", "3.5"}
+    };
+
+    private final String trackingId = "UA-12348765-65";
+    private final String userAgent = "Barracks SDK/2.1.0 (Linux; ARMv7)";
+    private final String versionId = "v1.2.3 beta";
+    private final String deviceIP = "192.168.12.1";
+    private String unitId;
+    private final KeyPath[] keys = new KeyPath[LEAVES.length];
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+
+    @Setup
+    public void setUp() {
+        unitId = UUID.randomUUID().toString();
+        for (int i = 0; i < LEAVES.length; i++) {
+            keys[i] = KeyPath.of(LEAVES[i][0]).encoded();
+        }
+    }
+
+    @Benchmark
+    public void endpointTemplate(Blackhole blackhole) {
+        for (String[] leaf : LEAVES) {
+            blackhole.consume(TEMPLATE_ENDPOINT.withBase("https://www.google-analytics.com").getRequestEntity(
+                    "1", "event", leaf[0], leaf[1], unitId, unitId, trackingId, userAgent, versionId, 0, deviceIP
+            ));
+        }
+    }
+
+    @Benchmark
+    public void hitEncoder(Blackhole blackhole) throws IOException {
+        final HitEncoder hitEncoder = HitEncoder.current();
+        for (int i = 0; i < LEAVES.length; i++) {
+            body.reset();
+            hitEncoder.encode(trackingId, userAgent, unitId, versionId, keys[i], LEAVES[i][1], deviceIP).writeTo(body);
+            blackhole.consume(body.size());
+        }
+    }
+}
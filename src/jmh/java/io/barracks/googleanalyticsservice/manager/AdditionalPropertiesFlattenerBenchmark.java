@@ -0,0 +1,108 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.manager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.ValueNode;
+import io.barracks.googleanalyticsservice.DevicePayloads;
+import io.barracks.googleanalyticsservice.cache.KeyPathTable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the recursive flattening formerly done in {@link GoogleAnalyticsManager} with {@link AdditionalPropertiesFlattener}.
+ * Run with {@code gradle jmh -Pjmh.includes=AdditionalPropertiesFlattenerBenchmark}, the GC profiler reports
+ * {@code gc.alloc.rate.norm} per operation, divide it by {@link DevicePayloads#leafCount(int, int)} to get the garbage per leaf.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdditionalPropertiesFlattenerBenchmark {
+
+    @Param({"1", "10", "100"})
+    private int groups;
+
+    @Param({"3", "8"})
+    private int depth;
+
+    private ObjectNode payload;
+
+    private final AdditionalPropertiesFlattener flattener = new AdditionalPropertiesFlattener(new KeyPathTable(10000, 150));
+
+    @Setup
+    public void setUp() {
+        payload = DevicePayloads.nested(groups, depth);
+    }
+
+    @Benchmark
+    public void recursive(Blackhole blackhole) {
+        recursive(new ArrayList<>(), payload, blackhole);
+    }
+
+    @Benchmark
+    public void iterative(Blackhole blackhole) {
+        flattener.flatten(payload, (key, value) -> {
+            blackhole.consume(key);
+            blackhole.consume(value);
+        });
+    }
+
+    private void recursive(List<String> prefix, ObjectNode node, Blackhole blackhole) {
+        if (!node.fieldNames().hasNext()) {
+            blackhole.consume(String.join(".", prefix));
+        }
+        node.fields().forEachRemaining(entry -> {
+            final List<String> prefixCopy = new ArrayList<>(prefix);
+            prefixCopy.add(entry.getKey());
+            final JsonNode value = entry.getValue();
+            if (value instanceof ObjectNode) {
+                recursive(prefixCopy, (ObjectNode) value, blackhole);
+            } else if (value instanceof ValueNode) {
+                blackhole.consume(String.join(".", prefixCopy));
+                blackhole.consume(value.asText());
+            } else {
+                blackhole.consume(" Value " + value.asText() + " is not of the expected type. ");
+            }
+        });
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.rabbitmq;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.barracks.googleanalyticsservice.DevicePayloads;
+import io.barracks.googleanalyticsservice.cache.KeyPathTable;
+import io.barracks.googleanalyticsservice.manager.AdditionalPropertiesFlattener;
+import io.barracks.googleanalyticsservice.metrics.PipelineMetrics;
+import io.barracks.googleanalyticsservice.model.DeviceInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes a device message and walks its custom client data, either bound as a tree through the
+ * {@link ObjectMapper} configured by Spring Boot then flattened, or read by {@link DeviceInfoMessageConverter}.
+ * Run with {@code gradle jmh -Pjmh.includes=DeviceInfoDeserializationBenchmark}, the message sizes for each
+ * {@code groups} value are given by {@link DevicePayloads#deviceInfo(ObjectMapper, int, int)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceInfoDeserializationBenchmark {
+
+    @Param({"1", "10", "100"})
+    private int groups;
+
+    @Param({"3"})
+    private int depth;
+
+    private final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+    private final KeyPathTable keyPathTable = new KeyPathTable(10000, 150);
+    private final AdditionalPropertiesFlattener flattener = new AdditionalPropertiesFlattener(keyPathTable);
+    private DeviceInfoMessageConverter converter;
+    private byte[] payload;
+    private Message message;
+
+    @Setup
+    public void setUp() throws IOException {
+        final Jackson2JsonMessageConverter delegate = new Jackson2JsonMessageConverter();
+        delegate.setJsonObjectMapper(objectMapper);
+        converter = new DeviceInfoMessageConverter(objectMapper, delegate, keyPathTable, new PipelineMetrics(60000));
+        payload = DevicePayloads.deviceInfo(objectMapper, groups, depth);
+        final MessageProperties properties = new MessageProperties();
+        properties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+        properties.setInferredArgumentType(DeviceInfo.class);
+        message = new Message(payload, properties);
+    }
+
+    @Benchmark
+    public DeviceInfo treeModel() throws IOException {
+        return objectMapper.readValue(payload, DeviceInfo.class);
+    }
+
+    @Benchmark
+    public void treeModelAndFlattening(Blackhole blackhole) throws IOException {
+        final DeviceInfo deviceInfo = objectMapper.readValue(payload, DeviceInfo.class);
+        flattener.flatten(deviceInfo.getAdditionalProperties(), (key, value) -> {
+            blackhole.consume(key);
+            blackhole.consume(value);
+        });
+    }
+
+    @Benchmark
+    public void streaming(Blackhole blackhole) {
+        final DeviceInfo deviceInfo = (DeviceInfo) converter.fromMessage(message);
+        deviceInfo.getFlattenedAdditionalProperties().get().forEach((key, value) -> {
+            blackhole.consume(key);
+            blackhole.consume(value);
+        });
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.loadtest;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Log-normal response times described by their median and 99th percentile, which is how latencies of remote
+ * services are usually reported. A median of zero makes every response immediate.
+ */
+public class LatencyDistribution {
+
+    private static final double P99_STANDARD_SCORE = 2.326;
+
+    private final double mu;
+    private final double sigma;
+    private final boolean immediate;
+
+    public LatencyDistribution(double medianMillis, double p99Millis) {
+        this.immediate = medianMillis <= 0;
+        this.mu = immediate ? 0 : Math.log(medianMillis);
+        this.sigma = immediate ? 0 : Math.max(0, Math.log(Math.max(p99Millis, medianMillis)) - mu) / P99_STANDARD_SCORE;
+    }
+
+    public long sampleMicros() {
+        if (immediate) {
+            return 0;
+        }
+        return (long) (Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian()) * 1000);
+    }
+
+    public void await() throws InterruptedException {
+        final long micros = sampleMicros();
+        if (micros > 0) {
+            TimeUnit.MICROSECONDS.sleep(micros);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return immediate ? "immediate" : String.format("median %.1fms, p99 %.1fms", Math.exp(mu), Math.exp(mu + sigma * P99_STANDARD_SCORE));
+    }
+}
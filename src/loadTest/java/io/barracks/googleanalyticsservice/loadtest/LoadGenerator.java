@@ -0,0 +1,139 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.loadtest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes synthetic device messages at a fixed rate. Messages are sent on a schedule computed from the start
+ * time, so a publisher falling behind catches up instead of silently lowering the rate, the delay is reported
+ * by {@link #getLagMillis()}.
+ */
+public class LoadGenerator implements Runnable {
+
+    private final RabbitTemplate rabbitTemplate;
+    private final ObjectMapper objectMapper;
+    private final String exchange;
+    private final String routingKey;
+    private final double rate;
+    private final long durationNanos;
+    private final String[] userIds;
+    private final String[] unitIds;
+    private final ObjectNode customClientData;
+    private final LongAdder published = new LongAdder();
+    private final AtomicLong lagNanos = new AtomicLong();
+    private volatile boolean running = true;
+
+    public LoadGenerator(
+            RabbitTemplate rabbitTemplate,
+            ObjectMapper objectMapper,
+            String exchange,
+            String routingKey,
+            double rate,
+            long durationSeconds,
+            int users,
+            int units,
+            ObjectNode customClientData
+    ) {
+        this.rabbitTemplate = rabbitTemplate;
+        this.objectMapper = objectMapper;
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.rate = rate;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.userIds = randomIds(users);
+        this.unitIds = randomIds(units);
+        this.customClientData = customClientData;
+    }
+
+    @Override
+    public void run() {
+        final long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        final long start = System.nanoTime();
+        final long end = start + durationNanos;
+        long next = start;
+        while (running && next < end) {
+            final long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            lagNanos.set(Math.max(0, -wait));
+            publish();
+            next += periodNanos;
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public long getPublished() {
+        return published.sum();
+    }
+
+    public long getLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lagNanos.get());
+    }
+
+    private void publish() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final ObjectNode deviceInfo = objectMapper.createObjectNode();
+        deviceInfo.put("unitId", unitIds[random.nextInt(unitIds.length)]);
+        deviceInfo.put("userId", userIds[random.nextInt(userIds.length)]);
+        deviceInfo.put("versionId", "v1.2.3");
+        deviceInfo.put("userAgent", "Barracks SDK/2.1.0 (Linux; ARMv7)");
+        deviceInfo.put("deviceIP", "192.168.12.1");
+        deviceInfo.put("receptionDate", System.currentTimeMillis());
+        deviceInfo.set("additionalProperties", customClientData);
+        final MessageProperties properties = new MessageProperties();
+        properties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+        try {
+            rabbitTemplate.send(exchange, routingKey, new Message(objectMapper.writeValueAsBytes(deviceInfo), properties));
+            published.increment();
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String[] randomIds(int count) {
+        final String[] ids = new String[Math.max(1, count)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UUID.randomUUID().toString();
+        }
+        return ids;
+    }
+}
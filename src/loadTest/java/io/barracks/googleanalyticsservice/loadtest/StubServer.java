@@ -0,0 +1,153 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local HTTP server standing in for Google Analytics or the authorization service. Every request waits for a
+ * response time drawn from a {@link LatencyDistribution}, then fails with a 503 for a share {@code errorRate}
+ * of the requests.
+ */
+public class StubServer {
+
+    private static final int BACKLOG = 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final LatencyDistribution latency;
+    private final double errorRate;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+
+    private StubServer(LatencyDistribution latency, double errorRate, int threads) throws IOException {
+        this.latency = latency;
+        this.errorRate = errorRate;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), BACKLOG);
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server.setExecutor(executor);
+    }
+
+    /**
+     * Accepts hits on {@code /collect} and {@code /batch}, a batch counts one hit per line.
+     */
+    public static StubServer googleAnalytics(LatencyDistribution latency, double errorRate, int threads) throws IOException {
+        final StubServer stub = new StubServer(latency, errorRate, threads);
+        stub.server.createContext("/collect", exchange -> stub.handle(exchange, "text/plain", new byte[0]));
+        stub.server.createContext("/batch", exchange -> stub.handle(exchange, "text/plain", new byte[0]));
+        stub.server.start();
+        return stub;
+    }
+
+    /**
+     * Answers {@code /users/{uuid}} with a user tracked under {@code trackingId}.
+     */
+    public static StubServer authorizationService(LatencyDistribution latency, double errorRate, int threads, String trackingId) throws IOException {
+        final StubServer stub = new StubServer(latency, errorRate, threads);
+        final byte[] user = ("{\"gaTrackingId\":\"" + trackingId + "\"}").getBytes(StandardCharsets.UTF_8);
+        stub.server.createContext("/users/", exchange -> stub.handle(exchange, "application/json", user));
+        stub.server.start();
+        return stub;
+    }
+
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    public String getLatencyDescription() {
+        return String.format("%s, %.1f%% errors", latency, errorRate * 100);
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange, String contentType, byte[] body) throws IOException {
+        try {
+            final int lines = countLines(exchange.getRequestBody());
+            requests.increment();
+            latency.await();
+            if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+                errors.increment();
+                exchange.sendResponseHeaders(503, -1);
+                return;
+            }
+            hits.add(lines);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+            if (body.length > 0) {
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(body);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static int countLines(InputStream input) throws IOException {
+        final byte[] buffer = new byte[8192];
+        int lines = 0;
+        boolean empty = true;
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n') {
+                    lines++;
+                }
+            }
+            empty &= read == 0;
+        }
+        return empty ? lines : lines + 1;
+    }
+}
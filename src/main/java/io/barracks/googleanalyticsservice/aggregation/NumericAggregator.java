@@ -0,0 +1,353 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.aggregation;
+
+import io.barracks.googleanalyticsservice.manager.KeyFilter;
+import io.barracks.googleanalyticsservice.model.GoogleAnalyticsHit;
+import io.barracks.googleanalyticsservice.model.KeyPath;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Collects the numeric leaves of each (unit, key) over a tumbling window that opens with the first sample, and
+ * turns each closed window into a single summary hit: {@code ea} is the last value, {@code el} holds the min, max,
+ * mean and count, {@code ev} the count.
+ * Accumulators live in primitive arrays indexed by series, and each stripe closes its windows with a hashed timer
+ * wheel of {@code tick_ms} slots so that a tick only looks at the series that are due.
+ * Once {@code max_series} windows are open, samples of new series are not aggregated.
+ */
+@Component
+public class NumericAggregator implements PublicMetrics {
+
+    static final String LABEL_PARAMETER = "el";
+    static final String VALUE_PARAMETER = "ev";
+
+    private static final int STRIPES = 16;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int NONE = -1;
+
+    private final boolean enabled;
+    private final long tickMillis;
+    private final long windowTicks;
+    private final KeyFilter keys;
+    private final LongSupplier clock;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder aggregatedSamples = new LongAdder();
+    private final LongAdder summaries = new LongAdder();
+    private final LongAdder overflowSamples = new LongAdder();
+
+    @Autowired
+    public NumericAggregator(
+            @Value("${io.barracks.googleanalytics.aggregation.enabled:false}") boolean enabled,
+            @Value("${io.barracks.googleanalytics.aggregation.window_ms:60000}") long windowMillis,
+            @Value("${io.barracks.googleanalytics.aggregation.tick_ms:1000}") long tickMillis,
+            @Value("${io.barracks.googleanalytics.aggregation.max_series:100000}") int maxSeries,
+            @Value("${io.barracks.googleanalytics.aggregation.keys:}") String keys
+    ) {
+        this(enabled, windowMillis, tickMillis, maxSeries, KeyFilter.compile(Arrays.asList(keys.split(","))), System::currentTimeMillis);
+    }
+
+    NumericAggregator(boolean enabled, long windowMillis, long tickMillis, int maxSeries, KeyFilter keys, LongSupplier clock) {
+        this.enabled = enabled;
+        this.tickMillis = tickMillis;
+        this.windowTicks = Math.max(1, (windowMillis + tickMillis - 1) / tickMillis);
+        this.keys = keys;
+        this.clock = clock;
+        final long now = clock.getAsLong() / tickMillis;
+        final int maxSeriesPerStripe = Math.max(1, maxSeries / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe((int) windowTicks + 1, maxSeriesPerStripe, now);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param template hit carrying the device fields of the sample's message, reused for the summary.
+     * @return true if the sample went into a window, false if it is not numeric, not one of the aggregated
+     * {@code keys} or there is no room for a new window, and must be sent as is.
+     */
+    public boolean add(GoogleAnalyticsHit template, KeyPath key, String value) {
+        if (template.getUnitId() == null || !isNumeric(value) || !keys.accepts(key)) {
+            return false;
+        }
+        final double sample;
+        try {
+            sample = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        final SeriesKey seriesKey = new SeriesKey(template.getUnitId(), key);
+        final Stripe stripe = stripes[(seriesKey.hashCode() & Integer.MAX_VALUE) % STRIPES];
+        final boolean added;
+        synchronized (stripe) {
+            added = stripe.add(seriesKey, template, sample, clock.getAsLong() / tickMillis + windowTicks);
+        }
+        if (added) {
+            aggregatedSamples.increment();
+        } else {
+            overflowSamples.increment();
+        }
+        return added;
+    }
+
+    /**
+     * @return the summaries of the windows that are over.
+     */
+    public List<GoogleAnalyticsHit> closeDue() {
+        final long now = clock.getAsLong() / tickMillis;
+        final List<GoogleAnalyticsHit> hits = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.advance(now, hits);
+            }
+        }
+        summaries.add(hits.size());
+        return hits;
+    }
+
+    /**
+     * @return the summaries of all the open windows, for shutdown.
+     */
+    public List<GoogleAnalyticsHit> closeAll() {
+        final List<GoogleAnalyticsHit> hits = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.closeAll(hits);
+            }
+        }
+        summaries.add(hits.size());
+        return hits;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        int openSeries = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                openSeries += stripe.index.size();
+            }
+        }
+        return Arrays.asList(
+                new Metric<>("aggregation.series", openSeries),
+                new Metric<>("aggregation.samples", aggregatedSamples.sum()),
+                new Metric<>("aggregation.summaries", summaries.sum()),
+                new Metric<>("aggregation.overflow", overflowSamples.sum())
+        );
+    }
+
+    /**
+     * Cheap check before parsing, plain decimal numbers only so that versions or hex strings go through as they are.
+     */
+    static boolean isNumeric(String value) {
+        if (value == null || value.isEmpty() || value.length() > 24) {
+            return false;
+        }
+        int i = value.charAt(0) == '-' ? 1 : 0;
+        boolean digits = false;
+        boolean dot = false;
+        for (; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits = true;
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else {
+                return false;
+            }
+        }
+        return digits;
+    }
+
+    static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static final class SeriesKey {
+        private final String unitId;
+        private final KeyPath key;
+    }
+
+    /**
+     * Open windows of a share of the series, guarded by its own monitor.
+     */
+    private static final class Stripe {
+
+        private final Map<SeriesKey, Integer> index = new HashMap<>();
+        private final int[] wheel;
+        private final int maxCapacity;
+        private long currentTick;
+        private int freeHead = NONE;
+        private int used = 0;
+
+        private SeriesKey[] seriesKeys = new SeriesKey[0];
+        private GoogleAnalyticsHit[] templates = new GoogleAnalyticsHit[0];
+        private double[] last = new double[0];
+        private double[] min = new double[0];
+        private double[] max = new double[0];
+        private double[] sum = new double[0];
+        private long[] count = new long[0];
+        private long[] deadline = new long[0];
+        private int[] next = new int[0];
+
+        Stripe(int slots, int maxCapacity, long currentTick) {
+            this.wheel = new int[slots];
+            Arrays.fill(wheel, NONE);
+            this.maxCapacity = maxCapacity;
+            this.currentTick = currentTick;
+        }
+
+        boolean add(SeriesKey seriesKey, GoogleAnalyticsHit template, double sample, long deadlineTick) {
+            final Integer existing = index.get(seriesKey);
+            if (existing != null) {
+                final int series = existing;
+                templates[series] = template;
+                last[series] = sample;
+                min[series] = Math.min(min[series], sample);
+                max[series] = Math.max(max[series], sample);
+                sum[series] += sample;
+                count[series]++;
+                return true;
+            }
+            final int series = allocate();
+            if (series == NONE) {
+                return false;
+            }
+            index.put(seriesKey, series);
+            seriesKeys[series] = seriesKey;
+            templates[series] = template;
+            last[series] = sample;
+            min[series] = sample;
+            max[series] = sample;
+            sum[series] = sample;
+            count[series] = 1;
+            deadline[series] = deadlineTick;
+            final int slot = (int) (deadlineTick % wheel.length);
+            next[series] = wheel[slot];
+            wheel[slot] = series;
+            return true;
+        }
+
+        void advance(long now, List<GoogleAnalyticsHit> hits) {
+            // Past one turn every slot has been visited, the remaining ticks would only see the same slots again
+            final long until = Math.min(now, currentTick + wheel.length);
+            for (long tick = currentTick + 1; tick <= until; tick++) {
+                final int slot = (int) (tick % wheel.length);
+                int series = wheel[slot];
+                int kept = NONE;
+                while (series != NONE) {
+                    final int following = next[series];
+                    if (deadline[series] <= now) {
+                        hits.add(close(series));
+                    } else {
+                        next[series] = kept;
+                        kept = series;
+                    }
+                    series = following;
+                }
+                wheel[slot] = kept;
+            }
+            currentTick = Math.max(currentTick, now);
+        }
+
+        void closeAll(List<GoogleAnalyticsHit> hits) {
+            for (int slot = 0; slot < wheel.length; slot++) {
+                int series = wheel[slot];
+                while (series != NONE) {
+                    final int following = next[series];
+                    hits.add(close(series));
+                    series = following;
+                }
+                wheel[slot] = NONE;
+            }
+        }
+
+        private GoogleAnalyticsHit close(int series) {
+            final GoogleAnalyticsHit summary = templates[series].toBuilder()
+                    .key(seriesKeys[series].key)
+                    .value(format(last[series]))
+                    .parameter(LABEL_PARAMETER, "min=" + format(min[series])
+                            + ",max=" + format(max[series])
+                            + ",mean=" + format(sum[series] / count[series])
+                            + ",count=" + count[series])
+                    .parameter(VALUE_PARAMETER, Long.toString(count[series]))
+                    .build();
+            index.remove(seriesKeys[series]);
+            seriesKeys[series] = null;
+            templates[series] = null;
+            next[series] = freeHead;
+            freeHead = series;
+            return summary;
+        }
+
+        private int allocate() {
+            if (freeHead != NONE) {
+                final int series = freeHead;
+                freeHead = next[series];
+                return series;
+            }
+            if (used == seriesKeys.length) {
+                if (used >= maxCapacity) {
+                    return NONE;
+                }
+                grow(Math.min(maxCapacity, Math.max(INITIAL_CAPACITY, used * 2)));
+            }
+            return used++;
+        }
+
+        private void grow(int capacity) {
+            seriesKeys = Arrays.copyOf(seriesKeys, capacity);
+            templates = Arrays.copyOf(templates, capacity);
+            last = Arrays.copyOf(last, capacity);
+            min = Arrays.copyOf(min, capacity);
+            max = Arrays.copyOf(max, capacity);
+            sum = Arrays.copyOf(sum, capacity);
+            count = Arrays.copyOf(count, capacity);
+            deadline = Arrays.copyOf(deadline, capacity);
+            next = Arrays.copyOf(next, capacity);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers, for each unit, a fingerprint of the last value sent for each of its keys so that unchanged values can
+ * be skipped. A value is sent again anyway once {@code resend_hours} have passed since it was last sent.
+ * Keys are kept as 64-bit hashes and values as 32-bit hashes in an open-addressing table at most half full, 16 bytes
+ * per slot, and units are evicted by Caffeine once the store weighs more than {@code max_bytes}. A value hash collision
+ * can hide a change until the next resend.
+ */
+@Component
+public class ChangeSuppressionCache implements PublicMetrics {
+
+    private static final int UNIT_OVERHEAD_BYTES = 64;
+    private static final int BYTES_PER_SLOT = 16;
+    private static final long EMPTY_SLOT = 0;
+
+    private final boolean enabled;
+    private final long resendMinutes;
+    private final LongSupplier clock;
+    private final Cache<String, UnitFingerprints> units;
+    private final LongAdder sentValues = new LongAdder();
+    private final LongAdder skippedValues = new LongAdder();
+
+    @Autowired
+    public ChangeSuppressionCache(
+            @Value("${io.barracks.googleanalytics.delta.enabled:false}") boolean enabled,
+            @Value("${io.barracks.googleanalytics.delta.resend_hours:24}") long resendHours,
+            @Value("${io.barracks.googleanalytics.delta.max_bytes:268435456}") long maxBytes
+    ) {
+        this(enabled, resendHours, maxBytes, System::currentTimeMillis);
+    }
+
+    ChangeSuppressionCache(boolean enabled, long resendHours, long maxBytes, LongSupplier clock) {
+        this.enabled = enabled;
+        this.resendMinutes = TimeUnit.HOURS.toMinutes(resendHours);
+        this.clock = clock;
+        this.units = Caffeine.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String unitId, UnitFingerprints fingerprints) -> fingerprints.weigh())
+                .recordStats()
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the fingerprints of a unit, to be handed back to {@link #update(String, UnitFingerprints)} once the
+     * unit's values have gone through them.
+     */
+    public UnitFingerprints get(String unitId) {
+        return units.get(unitId, id -> new UnitFingerprints());
+    }
+
+    /**
+     * Stores the fingerprints again so that their weight accounts for the keys added since {@link #get(String)}.
+     */
+    public void update(String unitId, UnitFingerprints fingerprints) {
+        if (fingerprints.hasGrown()) {
+            units.put(unitId, fingerprints);
+        }
+    }
+
+    void cleanUp() {
+        units.cleanUp();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final CacheStats stats = units.stats();
+        return Arrays.asList(
+                new Metric<>("delta.units", units.estimatedSize()),
+                new Metric<>("delta.units.eviction", stats.evictionCount()),
+                new Metric<>("delta.values.sent", sentValues.sum()),
+                new Metric<>("delta.values.skipped", skippedValues.sum())
+        );
+    }
+
+    static long hash64(String value) {
+        // FNV-1a over the chars
+        long hash = 0xcbf29ce484222325L;
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash ^= value.charAt(i);
+                hash *= 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * The hash of a key, never {@link #EMPTY_SLOT}.
+     */
+    static long keyHash(String key) {
+        final long hash = hash64(key);
+        return hash == EMPTY_SLOT ? 1 : hash;
+    }
+
+    static int hash(String value) {
+        final long hash = hash64(value);
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    public class UnitFingerprints {
+
+        private long[] keyHashes = new long[8];
+        private int[] valueHashes = new int[8];
+        private int[] sentAtMinutes = new int[8];
+        private int size = 0;
+        private int weighedAs = 0;
+
+        /**
+         * @return true if {@code value} differs from the last value sent for {@code key}, or if that one is due for a
+         * resend. Nothing is recorded until the value is {@link #recordSent(String, String) actually sent}.
+         */
+        public synchronized boolean hasChanged(String key, String value) {
+            final long keyHash = keyHash(key);
+            final int slot = slotOf(keyHash);
+            if (keyHashes[slot] == keyHash && valueHashes[slot] == hash(value) && now() - sentAtMinutes[slot] < resendMinutes) {
+                skippedValues.increment();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Records {@code value} as the last value sent for {@code key}, once Google Analytics, the spool or the retry
+         * queue has taken it.
+         */
+        public synchronized void recordSent(String key, String value) {
+            final long keyHash = keyHash(key);
+            int slot = slotOf(keyHash);
+            if (keyHashes[slot] == EMPTY_SLOT) {
+                if (2 * (size + 1) > keyHashes.length) {
+                    grow();
+                    slot = slotOf(keyHash);
+                }
+                keyHashes[slot] = keyHash;
+                size++;
+            }
+            valueHashes[slot] = hash(value);
+            sentAtMinutes[slot] = now();
+            sentValues.increment();
+        }
+
+        /**
+         * @return the slot holding {@code keyHash}, or the empty slot where it belongs.
+         */
+        private int slotOf(long keyHash) {
+            final int mask = keyHashes.length - 1;
+            int slot = (int) ((keyHash * 0x9e3779b97f4a7c15L) >>> 32) & mask;
+            while (keyHashes[slot] != EMPTY_SLOT && keyHashes[slot] != keyHash) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            final long[] oldKeyHashes = keyHashes;
+            final int[] oldValueHashes = valueHashes;
+            final int[] oldSentAtMinutes = sentAtMinutes;
+            keyHashes = new long[oldKeyHashes.length * 2];
+            valueHashes = new int[keyHashes.length];
+            sentAtMinutes = new int[keyHashes.length];
+            for (int i = 0; i < oldKeyHashes.length; i++) {
+                if (oldKeyHashes[i] != EMPTY_SLOT) {
+                    final int slot = slotOf(oldKeyHashes[i]);
+                    keyHashes[slot] = oldKeyHashes[i];
+                    valueHashes[slot] = oldValueHashes[i];
+                    sentAtMinutes[slot] = oldSentAtMinutes[i];
+                }
+            }
+        }
+
+        private int now() {
+            return (int) TimeUnit.MILLISECONDS.toMinutes(clock.getAsLong());
+        }
+
+        synchronized int weigh() {
+            weighedAs = UNIT_OVERHEAD_BYTES + BYTES_PER_SLOT * keyHashes.length;
+            return weighedAs;
+        }
+
+        synchronized boolean hasGrown() {
+            return UNIT_OVERHEAD_BYTES + BYTES_PER_SLOT * keyHashes.length != weighedAs;
+        }
+    }
+}
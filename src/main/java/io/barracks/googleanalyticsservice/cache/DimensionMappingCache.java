@@ -0,0 +1,84 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.barracks.googleanalyticsservice.manager.DimensionMapping;
+import io.barracks.googleanalyticsservice.model.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compiled {@link DimensionMapping} of each user's {@code gaDimensionMapping}, keyed by the mapping itself like
+ * {@link KeyFilterCache}.
+ */
+@Component
+public class DimensionMappingCache implements PublicMetrics {
+
+    private final Cache<Map<String, String>, DimensionMapping> mappings;
+    private final LongAdder packedHits = new LongAdder();
+    private final LongAdder packedLeaves = new LongAdder();
+
+    @Autowired
+    public DimensionMappingCache(@Value("${io.barracks.googleanalytics.dimension_mappings.max_size:1000}") long maxSize) {
+        this.mappings = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .build();
+    }
+
+    public DimensionMapping get(User user) {
+        final Map<String, String> mapping = user.getGaDimensionMapping();
+        if (mapping == null || mapping.isEmpty()) {
+            return DimensionMapping.NONE;
+        }
+        return mappings.get(mapping, DimensionMapping::compile);
+    }
+
+    /**
+     * @param leaves the number of leaves sent in a single packed hit instead of one hit each.
+     */
+    public void recordPacked(int leaves) {
+        packedHits.increment();
+        packedLeaves.add(leaves);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>("packing.compiled", mappings.estimatedSize()),
+                new Metric<>("packing.hits", packedHits.sum()),
+                new Metric<>("packing.leaves", packedLeaves.sum())
+        );
+    }
+}
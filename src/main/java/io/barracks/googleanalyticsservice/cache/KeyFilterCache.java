@@ -0,0 +1,81 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.barracks.googleanalyticsservice.manager.KeyFilter;
+import io.barracks.googleanalyticsservice.model.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compiled {@link KeyFilter} of each user's {@code gaKeyFilters}, keyed by the patterns themselves so that users
+ * sharing a configuration share its filter and a user whose patterns changed gets a new one on its next lookup.
+ */
+@Component
+public class KeyFilterCache implements PublicMetrics {
+
+    private final Cache<List<String>, KeyFilter> filters;
+    private final LongAdder filtered = new LongAdder();
+
+    @Autowired
+    public KeyFilterCache(@Value("${io.barracks.googleanalytics.key_filters.max_size:1000}") long maxSize) {
+        this.filters = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .build();
+    }
+
+    public KeyFilter get(User user) {
+        final List<String> patterns = user.getGaKeyFilters();
+        if (patterns == null || patterns.isEmpty()) {
+            return KeyFilter.ALL;
+        }
+        return filters.get(patterns, KeyFilter::compile);
+    }
+
+    /**
+     * @param keys the number of keys that were not sent, a subtree skipped as a whole counts once.
+     */
+    public void recordFiltered(int keys) {
+        filtered.add(keys);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>("filter.compiled", filters.estimatedSize()),
+                new Metric<>("filter.filtered", filtered.sum())
+        );
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.barracks.googleanalyticsservice.model.KeyPath;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Canonical {@link KeyPath} for each (parent key, field name) seen in custom client data, so that the dotted keys
+ * of known payload shapes are neither rebuilt nor form-encoded again for every message.
+ * The table holds at most {@code max_size} keys, least used first evicted. Field names longer than
+ * {@code max_name_length} and the children of keys that are not in the table are built without being stored.
+ */
+@Component
+public class KeyPathTable implements PublicMetrics {
+
+    private final int maxNameLength;
+    private final Cache<Entry, KeyPath> keyPaths;
+
+    @Autowired
+    public KeyPathTable(
+            @Value("${io.barracks.googleanalytics.key_paths.max_size:10000}") long maxSize,
+            @Value("${io.barracks.googleanalytics.key_paths.max_name_length:150}") int maxNameLength
+    ) {
+        this.maxNameLength = maxNameLength;
+        this.keyPaths = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+    }
+
+    public KeyPath child(KeyPath parent, String name) {
+        if (!parent.isEncoded() || name.length() > maxNameLength) {
+            return parent.child(name);
+        }
+        return keyPaths.get(new Entry(parent, name), entry -> entry.parent.child(entry.name).encoded());
+    }
+
+    void cleanUp() {
+        keyPaths.cleanUp();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final CacheStats stats = keyPaths.stats();
+        return Arrays.asList(
+                new Metric<>("keypaths.size", keyPaths.estimatedSize()),
+                new Metric<>("keypaths.hit", stats.hitCount()),
+                new Metric<>("keypaths.miss", stats.missCount()),
+                new Metric<>("keypaths.hit_rate", stats.hitRate()),
+                new Metric<>("keypaths.eviction", stats.evictionCount())
+        );
+    }
+
+    /**
+     * Parents are canonical so they are compared by identity, a parent evicted and built again starts a new subtree.
+     */
+    private static final class Entry {
+
+        private final KeyPath parent;
+        private final String name;
+
+        Entry(KeyPath parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            final Entry other = (Entry) o;
+            return parent == other.parent && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(parent) + name.hashCode();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.barracks.googleanalyticsservice.client.AuthorizationServiceClient;
+import io.barracks.googleanalyticsservice.client.exception.AuthorizationServiceClientException;
+import io.barracks.googleanalyticsservice.metrics.PipelineMetrics;
+import io.barracks.googleanalyticsservice.model.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, expiring cache in front of {@link AuthorizationServiceClient#getUserById(String)}.
+ * Users without a tracking id are kept for a shorter time so that enabling Google Analytics is picked up quickly.
+ * Concurrent misses on the same user share a single remote lookup, and its result or failure.
+ */
+@Component
+public class UserCache implements PublicMetrics {
+
+    private final AuthorizationServiceClient authorizationServiceClient;
+    private final PipelineMetrics pipelineMetrics;
+    private final Cache<String, User> cache;
+    private final ConcurrentMap<String, CompletableFuture<User>> inFlightLookups = new ConcurrentHashMap<>();
+    private final AtomicLong coalescedLookups = new AtomicLong();
+
+    @Autowired
+    public UserCache(
+            AuthorizationServiceClient authorizationServiceClient,
+            PipelineMetrics pipelineMetrics,
+            @Value("${io.barracks.authorizationservice.cache.max_size:10000}") long maxSize,
+            @Value("${io.barracks.authorizationservice.cache.ttl_seconds:600}") long ttlSeconds,
+            @Value("${io.barracks.authorizationservice.cache.untracked_ttl_seconds:60}") long untrackedTtlSeconds
+    ) {
+        this.authorizationServiceClient = authorizationServiceClient;
+        this.pipelineMetrics = pipelineMetrics;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(new UserExpiry(TimeUnit.SECONDS.toNanos(ttlSeconds), TimeUnit.SECONDS.toNanos(untrackedTtlSeconds)))
+                .recordStats()
+                .build();
+    }
+
+    public User getUserById(String userId) {
+        final long start = System.nanoTime();
+        final User cached = cache.getIfPresent(userId);
+        if (cached != null) {
+            pipelineMetrics.recordUserLookup(true, System.nanoTime() - start);
+            return cached;
+        }
+
+        final CompletableFuture<User> lookup = new CompletableFuture<>();
+        final CompletableFuture<User> inFlightLookup = inFlightLookups.putIfAbsent(userId, lookup);
+        if (inFlightLookup != null) {
+            coalescedLookups.incrementAndGet();
+            return await(userId, inFlightLookup);
+        }
+        try {
+            // Another lookup may have completed between the miss and taking the lead
+            User user = cache.asMap().get(userId);
+            if (user == null) {
+                user = authorizationServiceClient.getUserById(userId);
+                if (user != null) {
+                    cache.put(userId, user);
+                }
+            }
+            lookup.complete(user);
+            return user;
+        } catch (RuntimeException e) {
+            lookup.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLookups.remove(userId, lookup);
+            pipelineMetrics.recordUserLookup(false, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return the user if it is cached, without looking it up nor counting it as a lookup.
+     */
+    public User getCachedUser(String userId) {
+        return cache.asMap().get(userId);
+    }
+
+    /**
+     * Each waiter fails with its own {@link AuthorizationServiceClientException}, rather than sharing the instance
+     * thrown to the caller that made the lookup. Failures without a response are reported as unavailable.
+     */
+    private User await(String userId, CompletableFuture<User> lookup) {
+        try {
+            return lookup.join();
+        } catch (CompletionException e) {
+            final Throwable failure = e.getCause() != null ? e.getCause() : e;
+            final AuthorizationServiceClientException waiterFailure;
+            if (failure.getCause() instanceof HttpStatusCodeException) {
+                waiterFailure = new AuthorizationServiceClientException((HttpStatusCodeException) failure.getCause());
+            } else if (failure instanceof HttpStatusCodeException) {
+                waiterFailure = new AuthorizationServiceClientException((HttpStatusCodeException) failure);
+            } else {
+                waiterFailure = new AuthorizationServiceClientException(
+                        new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE, "Lookup of user " + userId + " failed")
+                );
+            }
+            waiterFailure.addSuppressed(failure);
+            throw waiterFailure;
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final CacheStats stats = cache.stats();
+        return Arrays.asList(
+                new Metric<>("cache.users.size", cache.estimatedSize()),
+                new Metric<>("cache.users.hit", stats.hitCount()),
+                new Metric<>("cache.users.miss", stats.missCount()),
+                new Metric<>("cache.users.eviction", stats.evictionCount()),
+                new Metric<>("cache.users.coalesced", coalescedLookups.get())
+        );
+    }
+
+    private static class UserExpiry implements Expiry<String, User> {
+
+        private final long ttlNanos;
+        private final long untrackedTtlNanos;
+
+        UserExpiry(long ttlNanos, long untrackedTtlNanos) {
+            this.ttlNanos = ttlNanos;
+            this.untrackedTtlNanos = untrackedTtlNanos;
+        }
+
+        @Override
+        public long expireAfterCreate(String userId, User user, long currentTime) {
+            return StringUtils.isEmpty(user.getGaTrackingId()) ? untrackedTtlNanos : ttlNanos;
+        }
+
+        @Override
+        public long expireAfterUpdate(String userId, User user, long currentTime, long currentDuration) {
+            return expireAfterCreate(userId, user, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String userId, User user, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
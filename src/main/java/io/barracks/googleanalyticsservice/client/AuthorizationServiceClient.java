@@ -28,10 +28,12 @@ import io.barracks.commons.util.Endpoint;
 import io.barracks.googleanalyticsservice.client.exception.AuthorizationServiceClientException;
 import io.barracks.googleanalyticsservice.model.User;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RestTemplate;
@@ -45,25 +47,32 @@ public class AuthorizationServiceClient {
 
     private RestTemplate restTemplate;
 
+    private CircuitBreaker circuitBreaker;
+
     @Autowired
     public AuthorizationServiceClient(
             @Value("${io.barracks.authorizationservice.base_url}") String authorizationServiceBaseUrl,
-            RestTemplateBuilder restTemplateBuilder
+            RestTemplateBuilder restTemplateBuilder,
+            @Qualifier("authorizationServiceRequestFactory") ClientHttpRequestFactory requestFactory,
+            @Qualifier("authorizationServiceCircuitBreaker") CircuitBreaker circuitBreaker
     ) {
         this.authorizationServiceBaseUrl = authorizationServiceBaseUrl;
-        this.restTemplate = restTemplateBuilder.build();
+        this.restTemplate = restTemplateBuilder.requestFactory(requestFactory).build();
+        this.circuitBreaker = circuitBreaker;
     }
 
     public User getUserById(String userId) {
-        try {
-            final ResponseEntity<User> responseEntity = restTemplate.exchange(
-                    GET_USER_ID_ENDPOINT.withBase(authorizationServiceBaseUrl).getRequestEntity(userId),
-                    User.class
-            );
-            return responseEntity.getBody();
-        } catch (HttpStatusCodeException e) {
-            throw new AuthorizationServiceClientException(e);
-        }
+        return circuitBreaker.call(() -> {
+            try {
+                final ResponseEntity<User> responseEntity = restTemplate.exchange(
+                        GET_USER_ID_ENDPOINT.withBase(authorizationServiceBaseUrl).getRequestEntity(userId),
+                        User.class
+                );
+                return responseEntity.getBody();
+            } catch (HttpStatusCodeException e) {
+                throw new AuthorizationServiceClientException(e);
+            }
+        });
     }
 
 }
@@ -0,0 +1,217 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.client;
+
+import io.barracks.googleanalyticsservice.client.exception.CircuitBreakerOpenException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Fails calls fast while a remote service is unhealthy.
+ * The outcome of the last {@code window_size} calls is kept in a ring. Once at least {@code minimum_calls} have been
+ * recorded and the share of transient failures reaches {@code failure_rate_threshold} percent, the breaker opens and
+ * rejects every call with a {@link CircuitBreakerOpenException} for {@code open_duration_ms}. It then lets
+ * {@code half_open_calls} probe calls through: the breaker closes if they all succeed, and opens again otherwise.
+ * Failures that are not transient, a 404 for instance, count as successes since the service did answer.
+ */
+@Slf4j
+public class CircuitBreaker implements PublicMetrics {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final boolean enabled;
+    private final int failureRateThreshold;
+    private final int minimumCalls;
+    private final long openDurationMillis;
+    private final int halfOpenCalls;
+    private final LongSupplier clock;
+
+    private final boolean[] outcomes;
+    private int outcomeIndex;
+    private int recordedCalls;
+    private int failedCalls;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+
+    private final AtomicLong rejectedCalls = new AtomicLong();
+    private final AtomicLong transitions = new AtomicLong();
+
+    public CircuitBreaker(String name, boolean enabled, int failureRateThreshold, int windowSize, int minimumCalls, long openDurationMillis, int halfOpenCalls) {
+        this(name, enabled, failureRateThreshold, windowSize, minimumCalls, openDurationMillis, halfOpenCalls, System::currentTimeMillis);
+    }
+
+    CircuitBreaker(String name, boolean enabled, int failureRateThreshold, int windowSize, int minimumCalls, long openDurationMillis, int halfOpenCalls, LongSupplier clock) {
+        this.name = name;
+        this.enabled = enabled;
+        this.failureRateThreshold = failureRateThreshold;
+        this.outcomes = new boolean[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, outcomes.length));
+        this.openDurationMillis = openDurationMillis;
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+        this.clock = clock;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public <T> T call(Supplier<T> call) {
+        acquirePermission();
+        try {
+            final T result = call.get();
+            onSuccess();
+            return result;
+        } catch (RuntimeException e) {
+            onFailure(e);
+            throw e;
+        }
+    }
+
+    public void run(Runnable call) {
+        call(() -> {
+            call.run();
+            return null;
+        });
+    }
+
+    /**
+     * For calls completing asynchronously, the caller must then report the outcome with {@link #onSuccess()}
+     * or {@link #onFailure(Throwable)}.
+     *
+     * @throws CircuitBreakerOpenException if the call is not permitted.
+     */
+    public void acquirePermission() {
+        if (!enabled) {
+            return;
+        }
+        synchronized (this) {
+            if (state == State.OPEN && clock.getAsLong() - openedAt >= openDurationMillis) {
+                transitionTo(State.HALF_OPEN);
+            }
+            if (state == State.CLOSED || (state == State.HALF_OPEN && halfOpenPermits-- > 0)) {
+                return;
+            }
+        }
+        rejectedCalls.incrementAndGet();
+        throw new CircuitBreakerOpenException(name);
+    }
+
+    public void onSuccess() {
+        record(false);
+    }
+
+    public void onFailure(Throwable failure) {
+        record(TransientFailures.isTransient(failure));
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getFailureRate() {
+        return recordedCalls == 0 ? 0 : failedCalls * 100 / recordedCalls;
+    }
+
+    public long getRejectedCalls() {
+        return rejectedCalls.get();
+    }
+
+    public long getTransitions() {
+        return transitions.get();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>("circuit." + name + ".state", getState().ordinal()),
+                new Metric<>("circuit." + name + ".failure_rate", getFailureRate()),
+                new Metric<>("circuit." + name + ".rejected", getRejectedCalls()),
+                new Metric<>("circuit." + name + ".transitions", getTransitions())
+        );
+    }
+
+    private synchronized void record(boolean failed) {
+        if (!enabled) {
+            return;
+        }
+        switch (state) {
+            case HALF_OPEN:
+                if (failed) {
+                    transitionTo(State.OPEN);
+                } else if (++halfOpenSuccesses >= halfOpenCalls) {
+                    transitionTo(State.CLOSED);
+                }
+                break;
+            case CLOSED:
+                if (recordedCalls == outcomes.length) {
+                    failedCalls -= outcomes[outcomeIndex] ? 1 : 0;
+                } else {
+                    recordedCalls++;
+                }
+                outcomes[outcomeIndex] = failed;
+                failedCalls += failed ? 1 : 0;
+                outcomeIndex = (outcomeIndex + 1) % outcomes.length;
+                if (recordedCalls >= minimumCalls && failedCalls * 100 >= failureRateThreshold * recordedCalls) {
+                    transitionTo(State.OPEN);
+                }
+                break;
+            default:
+                // Late outcome of a call started before the breaker opened
+                break;
+        }
+    }
+
+    private void transitionTo(State newState) {
+        log.warn("Circuit breaker {} goes from {} to {}", name, state, newState);
+        state = newState;
+        transitions.incrementAndGet();
+        switch (newState) {
+            case OPEN:
+                openedAt = clock.getAsLong();
+                break;
+            case HALF_OPEN:
+                halfOpenPermits = halfOpenCalls;
+                halfOpenSuccesses = 0;
+                break;
+            default:
+                recordedCalls = 0;
+                failedCalls = 0;
+                outcomeIndex = 0;
+                break;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.client;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.barracks.googleanalyticsservice.model.Ga4Event;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Serializes GA4 Measurement Protocol requests into a reusable byte buffer, the JSON is written straight from the
+ * events without building a tree. Numeric values are written as JSON numbers, other values as strings.
+ * Instances are not thread safe, use {@link #current()}.
+ */
+public class Ga4EventEncoder {
+
+    private static final ThreadLocal<Ga4EventEncoder> ENCODERS = ThreadLocal.withInitial(Ga4EventEncoder::new);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final Pattern NUMBER = Pattern.compile("-?(0|[1-9][0-9]{0,14})(\\.[0-9]{1,15})?");
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final Buffer buffer = new Buffer(INITIAL_CAPACITY);
+
+    public static Ga4EventEncoder current() {
+        return ENCODERS.get();
+    }
+
+    public Ga4EventEncoder encode(String clientId, String versionId, List<Ga4Event> events) {
+        buffer.reset();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(buffer)) {
+            generator.writeStartObject();
+            generator.writeStringField("client_id", clientId);
+            generator.writeStringField("user_id", clientId);
+            if (versionId != null) {
+                generator.writeObjectFieldStart("user_properties");
+                generator.writeObjectFieldStart("version_id");
+                generator.writeStringField("value", versionId);
+                generator.writeEndObject();
+                generator.writeEndObject();
+            }
+            generator.writeArrayFieldStart("events");
+            for (Ga4Event event : events) {
+                generator.writeStartObject();
+                generator.writeStringField("name", event.getName());
+                generator.writeObjectFieldStart("params");
+                for (Map.Entry<String, String> param : event.getParams().entrySet()) {
+                    writeParam(generator, param.getKey(), param.getValue());
+                }
+                generator.writeEndObject();
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    public int length() {
+        return buffer.size();
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        buffer.writeTo(outputStream);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer.array(), 0, buffer.size(), StandardCharsets.UTF_8);
+    }
+
+    private static void writeParam(JsonGenerator generator, String name, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        generator.writeFieldName(name);
+        if (NUMBER.matcher(value).matches()) {
+            generator.writeNumber(value);
+        } else {
+            generator.writeString(value);
+        }
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.client;
+
+import io.barracks.commons.util.Endpoint;
+import io.barracks.googleanalyticsservice.client.exception.GoogleAnalyticsClientException;
+import io.barracks.googleanalyticsservice.metrics.PipelineMetrics;
+import io.barracks.googleanalyticsservice.model.FlattenedProperties;
+import io.barracks.googleanalyticsservice.model.Ga4Event;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends custom client data with the GA4 Measurement Protocol: the leaves of a message are grouped into events
+ * by their top level field and up to {@link #MAX_EVENTS_PER_REQUEST} events are posted as one JSON request.
+ */
+@Component
+public class Ga4MeasurementClient {
+
+    public static final int MAX_EVENTS_PER_REQUEST = 25;
+    static final int MAX_PARAMS_PER_EVENT = 25;
+    static final int MAX_NAME_LENGTH = 40;
+    static final int MAX_VALUE_LENGTH = 100;
+    static final String MEASUREMENT_ID_PREFIX = "G-";
+    static final Endpoint GA4_COLLECT_ENDPOINT = Endpoint.from(HttpMethod.POST, "/mp/collect");
+
+    private static final String[] RESERVED_PREFIXES = {"google_", "ga_", "firebase_"};
+    private static final String ESCAPED_PREFIX = "cc_";
+
+    private final URI collectUri;
+    private final String defaultEventName;
+    private final RestTemplate restTemplate;
+    private final CircuitBreaker circuitBreaker;
+    private final PipelineMetrics pipelineMetrics;
+
+    @Autowired
+    public Ga4MeasurementClient(
+            @Value("${io.barracks.googleanalytics.base_url}") String googleAnalyticsBaseUrl,
+            @Value("${io.barracks.googleanalytics.ga4.default_event_name:custom_client_data}") String defaultEventName,
+            RestTemplateBuilder restTemplateBuilder,
+            @Qualifier("googleAnalyticsRequestFactory") ClientHttpRequestFactory requestFactory,
+            @Qualifier("googleAnalyticsCircuitBreaker") CircuitBreaker circuitBreaker,
+            PipelineMetrics pipelineMetrics
+    ) {
+        this.collectUri = GA4_COLLECT_ENDPOINT.withBase(googleAnalyticsBaseUrl).getURI();
+        this.defaultEventName = defaultEventName;
+        this.restTemplate = restTemplateBuilder.requestFactory(requestFactory).build();
+        this.circuitBreaker = circuitBreaker;
+        this.pipelineMetrics = pipelineMetrics;
+    }
+
+    /**
+     * @return true if the tracking id is a GA4 measurement id, which only accepts the GA4 protocol.
+     */
+    public static boolean isMeasurementId(String trackingId) {
+        return trackingId != null && trackingId.startsWith(MEASUREMENT_ID_PREFIX);
+    }
+
+    /**
+     * Groups the leaves into events named after their top level field, with the rest of the key as parameter name.
+     * Top level leaves go to the default event, which is also sent alone when there are no leaves at all.
+     * Names are reduced to the characters GA4 accepts, events over {@link #MAX_PARAMS_PER_EVENT} parameters are split.
+     */
+    public List<Ga4Event> toEvents(FlattenedProperties properties) {
+        final List<Ga4Event> events = new ArrayList<>();
+        final Map<String, Ga4Event> openEvents = new LinkedHashMap<>();
+        properties.forEach((key, value) -> {
+            final String path = key.getPath();
+            final int dot = path.indexOf('.');
+            final String eventName = dot < 0 ? defaultEventName : toName(path.substring(0, dot));
+            final String paramName = dot < 0 ? path : path.substring(dot + 1);
+            Ga4Event event = openEvents.get(eventName);
+            if (event == null || event.size() >= MAX_PARAMS_PER_EVENT) {
+                event = new Ga4Event(eventName);
+                openEvents.put(eventName, event);
+                events.add(event);
+            }
+            if (!paramName.isEmpty()) {
+                event.put(toName(paramName), truncate(value));
+            }
+        });
+        if (events.isEmpty()) {
+            events.add(new Ga4Event(defaultEventName));
+        }
+        return events;
+    }
+
+    public void sendEvents(String measurementId, String apiSecret, String clientId, String versionId, List<Ga4Event> events) {
+        if (events.size() > MAX_EVENTS_PER_REQUEST) {
+            throw new IllegalArgumentException("At most " + MAX_EVENTS_PER_REQUEST + " events can be sent at once, got " + events.size());
+        }
+        final Ga4EventEncoder encoder = Ga4EventEncoder.current().encode(clientId, versionId, events);
+        final URI uri = UriComponentsBuilder.fromUri(collectUri)
+                .queryParam("measurement_id", measurementId)
+                .queryParam("api_secret", apiSecret)
+                .build()
+                .encode()
+                .toUri();
+
+        circuitBreaker.run(() -> {
+            final long start = System.nanoTime();
+            try {
+                final Integer status = restTemplate.execute(
+                        uri,
+                        GA4_COLLECT_ENDPOINT.getMethod(),
+                        request -> {
+                            request.getHeaders().setContentType(MediaType.APPLICATION_JSON_UTF8);
+                            request.getHeaders().setContentLength(encoder.length());
+                            encoder.writeTo(request.getBody());
+                        },
+                        ClientHttpResponse::getRawStatusCode
+                );
+                pipelineMetrics.recordGoogleAnalyticsRequest(String.valueOf(status), System.nanoTime() - start);
+            } catch (HttpClientErrorException | HttpServerErrorException e) {
+                pipelineMetrics.recordGoogleAnalyticsRequest(String.valueOf(e.getRawStatusCode()), System.nanoTime() - start);
+                throw new GoogleAnalyticsClientException(e);
+            } catch (RuntimeException e) {
+                pipelineMetrics.recordGoogleAnalyticsRequest("error", System.nanoTime() - start);
+                throw e;
+            }
+        });
+    }
+
+    static String toName(String path) {
+        final StringBuilder name = new StringBuilder(Math.min(path.length(), MAX_NAME_LENGTH));
+        for (int i = 0; i < path.length() && name.length() < MAX_NAME_LENGTH; i++) {
+            final char c = path.charAt(i);
+            final boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+            name.append(valid ? c : '_');
+        }
+        if (name.length() == 0 || !Character.isLetter(name.charAt(0)) || hasReservedPrefix(name)) {
+            name.insert(0, ESCAPED_PREFIX);
+            name.setLength(Math.min(name.length(), MAX_NAME_LENGTH));
+        }
+        return name.toString();
+    }
+
+    private static boolean hasReservedPrefix(CharSequence name) {
+        final String lowerCase = name.toString().toLowerCase();
+        for (String prefix : RESERVED_PREFIXES) {
+            if (lowerCase.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String truncate(String value) {
+        if (value == null || value.length() <= MAX_VALUE_LENGTH) {
+            return value;
+        }
+        final int end = Character.isHighSurrogate(value.charAt(MAX_VALUE_LENGTH - 1)) ? MAX_VALUE_LENGTH - 1 : MAX_VALUE_LENGTH;
+        return value.substring(0, end);
+    }
+}
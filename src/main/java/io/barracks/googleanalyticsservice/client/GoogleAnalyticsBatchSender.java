@@ -0,0 +1,207 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.client;
+
+import io.barracks.googleanalyticsservice.model.GoogleAnalyticsHit;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Packs hits into Measurement Protocol /batch requests.
+ * A batch is flushed as soon as it holds {@code max_hits} hits, when the next hit would push it over the
+ * payload limit, or when its oldest hit has waited {@code linger_ms} milliseconds.
+ * Batches flushed by the linger timeout are sent by a pool of {@code sender_threads} threads, so that one slow
+ * request does not hold back the next batches.
+ */
+@Slf4j
+@Component
+public class GoogleAnalyticsBatchSender implements DisposableBean {
+
+    static final int MAX_HITS_PER_BATCH = 20;
+    static final int MAX_BATCH_PAYLOAD_BYTES = 16 * 1024;
+    static final int MAX_HIT_PAYLOAD_BYTES = 8 * 1024;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final GoogleAnalyticsClient googleAnalyticsClient;
+    private final int maxHits;
+    private final long lingerMillis;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService senders;
+
+    private final Object lock = new Object();
+    private List<PendingHit> pendingHits = new ArrayList<>();
+    private int pendingBytes = 0;
+    private ScheduledFuture<?> lingerTask;
+
+    @Autowired
+    public GoogleAnalyticsBatchSender(
+            GoogleAnalyticsClient googleAnalyticsClient,
+            @Value("${io.barracks.googleanalytics.batch.max_hits:20}") int maxHits,
+            @Value("${io.barracks.googleanalytics.batch.linger_ms:20}") long lingerMillis,
+            @Value("${io.barracks.googleanalytics.batch.sender_threads:4}") int senderThreads
+    ) {
+        this.googleAnalyticsClient = googleAnalyticsClient;
+        this.maxHits = Math.max(1, Math.min(maxHits, MAX_HITS_PER_BATCH));
+        this.lingerMillis = lingerMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "ga-batch-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final AtomicInteger senderNumber = new AtomicInteger();
+        this.senders = Executors.newFixedThreadPool(Math.max(1, senderThreads), runnable -> {
+            final Thread thread = new Thread(runnable, "ga-batch-sender-" + senderNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a hit for the next batch.
+     *
+     * @return a future completed once the batch holding the hit has been accepted by Google Analytics,
+     * or completed exceptionally with the error that made the batch fail.
+     */
+    public CompletableFuture<Void> send(GoogleAnalyticsHit hit) {
+        return sendPayload(GoogleAnalyticsClient.toPayload(hit));
+    }
+
+    /**
+     * Queues an already encoded hit for the next batch, see {@link #send(GoogleAnalyticsHit)}.
+     */
+    public CompletableFuture<Void> sendPayload(String payload) {
+        final int size = payload.getBytes(StandardCharsets.UTF_8).length;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        if (size > MAX_HIT_PAYLOAD_BYTES) {
+            result.completeExceptionally(new IllegalArgumentException("Hit payload exceeds " + MAX_HIT_PAYLOAD_BYTES + " bytes : " + payload));
+            return result;
+        }
+
+        final List<List<PendingHit>> readyBatches = new ArrayList<>(2);
+        synchronized (lock) {
+            if (!pendingHits.isEmpty() && pendingBytes + 1 + size > MAX_BATCH_PAYLOAD_BYTES) {
+                readyBatches.add(drain());
+            }
+            pendingBytes += pendingHits.isEmpty() ? size : size + 1;
+            pendingHits.add(new PendingHit(payload, result));
+            if (pendingHits.size() >= maxHits) {
+                readyBatches.add(drain());
+            } else if (lingerTask == null) {
+                lingerTask = scheduler.schedule(this::flushLingering, lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        readyBatches.forEach(this::sendBatch);
+        return result;
+    }
+
+    /**
+     * Sends whatever is currently pending without waiting for the linger time.
+     */
+    public void flush() {
+        final List<PendingHit> batch;
+        synchronized (lock) {
+            batch = drain();
+        }
+        sendBatch(batch);
+    }
+
+    private void flushLingering() {
+        final List<PendingHit> batch;
+        synchronized (lock) {
+            batch = drain();
+        }
+        if (!batch.isEmpty()) {
+            senders.execute(() -> sendBatch(batch));
+        }
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdown();
+        flush();
+        senders.shutdown();
+        try {
+            if (!senders.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Giving up on the batches still being sent after {} s", SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<PendingHit> drain() {
+        if (lingerTask != null) {
+            lingerTask.cancel(false);
+            lingerTask = null;
+        }
+        if (pendingHits.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<PendingHit> batch = pendingHits;
+        pendingHits = new ArrayList<>(maxHits);
+        pendingBytes = 0;
+        return batch;
+    }
+
+    private void sendBatch(List<PendingHit> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            googleAnalyticsClient.sendBatchToGoogleAnalytics(
+                    batch.stream().map(PendingHit::getPayload).collect(Collectors.toList())
+            );
+            batch.forEach(pendingHit -> pendingHit.getResult().complete(null));
+        } catch (RuntimeException e) {
+            log.debug("Batch of {} hits failed", batch.size(), e);
+            batch.forEach(pendingHit -> pendingHit.getResult().completeExceptionally(e));
+        }
+    }
+
+    @AllArgsConstructor
+    @Getter
+    private static class PendingHit {
+        private final String payload;
+        private final CompletableFuture<Void> result;
+    }
+}
@@ -26,46 +26,215 @@ package io.barracks.googleanalyticsservice.client;
 
 import io.barracks.commons.util.Endpoint;
 import io.barracks.googleanalyticsservice.client.exception.GoogleAnalyticsClientException;
+import io.barracks.googleanalyticsservice.metrics.PipelineMetrics;
+import io.barracks.googleanalyticsservice.model.GoogleAnalyticsHit;
+import io.barracks.googleanalyticsservice.model.KeyPath;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.RequestEntity;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.AsyncRestTemplate;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
 @Component
 public class GoogleAnalyticsClient {
 
-    static final Endpoint GOOGLE_ANALYTICS_ENDPOINT = Endpoint.from(HttpMethod.POST, "/collect",
-            "v={v}&t={t}&ec={key}&ea={value}&uid={unitId}&cid={unitId}&tid={trackingId}&ua={userAgent}&pr1cd1={versionId}&qt={qt}&uip={IPAddress}");
-    private String googleAnalyticsBaseUrl;
+    static final Endpoint GOOGLE_ANALYTICS_ENDPOINT = Endpoint.from(HttpMethod.POST, "/collect");
+    static final Endpoint GOOGLE_ANALYTICS_BATCH_ENDPOINT = Endpoint.from(HttpMethod.POST, "/batch");
+    private URI collectUri;
+    private URI batchUri;
     private RestTemplate restTemplate;
+    private AsyncRestTemplate asyncRestTemplate;
+    private Semaphore inFlightRequests;
+    private CircuitBreaker circuitBreaker;
+    private PipelineMetrics pipelineMetrics;
 
     @Autowired
     public GoogleAnalyticsClient(
             @Value("${io.barracks.googleanalytics.base_url}") String googleAnalyticsBaseUrl,
-            RestTemplateBuilder restTemplateBuilder
+            RestTemplateBuilder restTemplateBuilder,
+            @Qualifier("googleAnalyticsRequestFactory") ClientHttpRequestFactory requestFactory,
+            @Qualifier("googleAnalyticsAsyncRequestFactory") AsyncClientHttpRequestFactory asyncRequestFactory,
+            @Value("${io.barracks.googleanalytics.async.max_in_flight:500}") int maxInFlightRequests,
+            @Qualifier("googleAnalyticsCircuitBreaker") CircuitBreaker circuitBreaker,
+            PipelineMetrics pipelineMetrics
     ) {
-        this.googleAnalyticsBaseUrl = googleAnalyticsBaseUrl;
-        this.restTemplate = restTemplateBuilder.build();
+        this.collectUri = GOOGLE_ANALYTICS_ENDPOINT.withBase(googleAnalyticsBaseUrl).getURI();
+        this.batchUri = GOOGLE_ANALYTICS_BATCH_ENDPOINT.withBase(googleAnalyticsBaseUrl).getURI();
+        this.restTemplate = restTemplateBuilder.requestFactory(requestFactory).build();
+        this.asyncRestTemplate = new AsyncRestTemplate(asyncRequestFactory);
+        this.inFlightRequests = new Semaphore(maxInFlightRequests);
+        this.circuitBreaker = circuitBreaker;
+        this.pipelineMetrics = pipelineMetrics;
+    }
+
+    public void sendEventToGoogleAnalytics(String trackingId, String userAgent, String unitId, String versionId, KeyPath key, String value, String uip) {
+        send(HitEncoder.current().encode(trackingId, userAgent, unitId, versionId, key, value, uip));
     }
 
-    public void sendEventToGoogleAnalytics(String trackingId, String userAgent, String unitId, String versionId, String key, String value, String uip) {
+    /**
+     * Sends a hit that carries {@link GoogleAnalyticsHit#getParameters() additional parameters}.
+     */
+    public void sendEventToGoogleAnalytics(GoogleAnalyticsHit hit) {
+        send(HitEncoder.current().encode(hit));
+    }
 
-        final String v = "1";
-        final String t = "event";
-        final int qt = 0;
+    private void send(HitEncoder hitEncoder) {
+        circuitBreaker.run(() -> {
+            try {
+                timeRequest(() -> restTemplate.execute(
+                        collectUri,
+                        GOOGLE_ANALYTICS_ENDPOINT.getMethod(),
+                        request -> writeHit(request, hitEncoder),
+                        ClientHttpResponse::getRawStatusCode
+                ));
 
+            } catch (HttpClientErrorException | HttpServerErrorException e) {
+                throw new GoogleAnalyticsClientException(e);
+            }
+        });
+    }
+
+    /**
+     * Sends a hit without waiting for the response.
+     * Blocks the caller only while {@code max_in_flight} requests are already waiting for a response.
+     */
+    public CompletableFuture<Void> sendEventToGoogleAnalyticsAsync(GoogleAnalyticsHit hit) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final HitEncoder hitEncoder = HitEncoder.current().encode(hit);
+        try {
+            circuitBreaker.acquirePermission();
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        inFlightRequests.acquireUninterruptibly();
+        final long start = System.nanoTime();
         try {
-            restTemplate.exchange(
-                    GOOGLE_ANALYTICS_ENDPOINT.withBase(googleAnalyticsBaseUrl).getRequestEntity(v, t, key, value, unitId, unitId, trackingId, userAgent, versionId, qt, uip),
-                    String.class
+            asyncRestTemplate.execute(
+                    collectUri,
+                    GOOGLE_ANALYTICS_ENDPOINT.getMethod(),
+                    request -> writeHit(request, hitEncoder),
+                    ClientHttpResponse::getRawStatusCode
+            ).addCallback(
+                    status -> {
+                        inFlightRequests.release();
+                        pipelineMetrics.recordGoogleAnalyticsRequest(String.valueOf(status), System.nanoTime() - start);
+                        circuitBreaker.onSuccess();
+                        result.complete(null);
+                    },
+                    failure -> {
+                        inFlightRequests.release();
+                        final Throwable translatedFailure = translateAsyncFailure(failure);
+                        pipelineMetrics.recordGoogleAnalyticsRequest(statusOf(translatedFailure), System.nanoTime() - start);
+                        circuitBreaker.onFailure(translatedFailure);
+                        result.completeExceptionally(translatedFailure);
+                    }
             );
+        } catch (RuntimeException e) {
+            inFlightRequests.release();
+            circuitBreaker.onFailure(e);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Sends a hit that has already been form-encoded, see {@link #toPayload(GoogleAnalyticsHit)}.
+     */
+    public void sendPayloadToGoogleAnalytics(String payload) {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+
+        circuitBreaker.run(() -> {
+            try {
+                timeRequest(() -> restTemplate.exchange(
+                        new RequestEntity<>(payload, headers, GOOGLE_ANALYTICS_ENDPOINT.getMethod(), collectUri),
+                        String.class
+                ).getStatusCodeValue());
+            } catch (HttpClientErrorException | HttpServerErrorException e) {
+                throw new GoogleAnalyticsClientException(e);
+            }
+        });
+    }
+
+    public void sendBatchToGoogleAnalytics(List<String> payloads) {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.TEXT_PLAIN);
 
-        } catch (HttpClientErrorException | HttpServerErrorException e) {
-            throw new GoogleAnalyticsClientException(e);
+        circuitBreaker.run(() -> {
+            try {
+                timeRequest(() -> restTemplate.exchange(
+                        new RequestEntity<>(
+                                String.join("\n", payloads),
+                                headers,
+                                GOOGLE_ANALYTICS_BATCH_ENDPOINT.getMethod(),
+                                batchUri
+                        ),
+                        String.class
+                ).getStatusCodeValue());
+            } catch (HttpClientErrorException | HttpServerErrorException e) {
+                throw new GoogleAnalyticsClientException(e);
+            }
+        });
+    }
+
+    private void timeRequest(Supplier<Integer> request) {
+        final long start = System.nanoTime();
+        try {
+            final Integer status = request.get();
+            pipelineMetrics.recordGoogleAnalyticsRequest(String.valueOf(status), System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            pipelineMetrics.recordGoogleAnalyticsRequest(statusOf(e), System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    private static String statusOf(Throwable failure) {
+        if (failure instanceof HttpStatusCodeException) {
+            return String.valueOf(((HttpStatusCodeException) failure).getRawStatusCode());
+        }
+        if (failure.getCause() instanceof HttpStatusCodeException) {
+            return String.valueOf(((HttpStatusCodeException) failure.getCause()).getRawStatusCode());
         }
+        return "error";
+    }
+
+    private static Throwable translateAsyncFailure(Throwable failure) {
+        final Throwable cause = failure instanceof ExecutionException && failure.getCause() != null ? failure.getCause() : failure;
+        if (cause instanceof HttpClientErrorException || cause instanceof HttpServerErrorException) {
+            return new GoogleAnalyticsClientException((HttpStatusCodeException) cause);
+        }
+        return cause;
+    }
+
+    public static String toPayload(GoogleAnalyticsHit hit) {
+        return HitEncoder.current().encode(hit).toString();
+    }
+
+    private static void writeHit(HttpOutputMessage request, HitEncoder hitEncoder) throws IOException {
+        request.getHeaders().setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+        request.getHeaders().setContentLength(hitEncoder.length());
+        hitEncoder.writeTo(request.getBody());
     }
 }
@@ -0,0 +1,226 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.client;
+
+import io.barracks.googleanalyticsservice.model.GoogleAnalyticsHit;
+import io.barracks.googleanalyticsservice.model.KeyPath;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Form-encodes Measurement Protocol event hits into a reusable byte buffer.
+ * The fields shared by every hit of a device message are encoded once and kept until a hit with different
+ * device fields comes along, only {@code ec} and {@code ea} are encoded for each hit, and {@code ec} is copied
+ * as is when the key has already been {@link KeyPath#encoded() encoded}.
+ * Instances are not thread safe, use {@link #current()}.
+ */
+public class HitEncoder {
+
+    private static final ThreadLocal<HitEncoder> ENCODERS = ThreadLocal.withInitial(HitEncoder::new);
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] KEY_PARAMETER = "&ec=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VALUE_PARAMETER = "&ea=".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PARAMETER_SEPARATOR = "&".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PARAMETER_VALUE = "=".getBytes(StandardCharsets.US_ASCII);
+    private static final int INITIAL_CAPACITY = 512;
+    private static final Pattern QUEUE_TIME_PARAMETER = Pattern.compile("&qt=\\d+");
+    private static final Pattern TRACKING_ID_PARAMETER = Pattern.compile("&tid=([^&]*)");
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int length = 0;
+
+    private String trackingId;
+    private String userAgent;
+    private String unitId;
+    private String versionId;
+    private String deviceIP;
+    private byte[] commonFields;
+
+    public static HitEncoder current() {
+        return ENCODERS.get();
+    }
+
+    public HitEncoder encode(GoogleAnalyticsHit hit) {
+        encode(hit.getTrackingId(), hit.getUserAgent(), hit.getUnitId(), hit.getVersionId(), hit.getKey(), hit.getValue(), hit.getDeviceIP());
+        hit.getParameters().forEach((name, value) -> {
+            write(PARAMETER_SEPARATOR);
+            writeEncoded(name);
+            write(PARAMETER_VALUE);
+            writeEncoded(value);
+        });
+        return this;
+    }
+
+    public HitEncoder encode(String trackingId, String userAgent, String unitId, String versionId, KeyPath key, String value, String deviceIP) {
+        final byte[] common = commonFields(trackingId, userAgent, unitId, versionId, deviceIP);
+        length = 0;
+        write(common);
+        write(KEY_PARAMETER);
+        if (key.isEncoded()) {
+            write(key.getEncodedPath());
+        } else {
+            writeEncoded(key.getPath());
+        }
+        write(VALUE_PARAMETER);
+        writeEncoded(value);
+        return this;
+    }
+
+    /**
+     * Rewrites the {@code qt} parameter of an encoded hit, for hits sent later than they happened.
+     */
+    public static String withQueueTime(String payload, long queueTimeMillis) {
+        return QUEUE_TIME_PARAMETER.matcher(payload).replaceFirst("&qt=" + queueTimeMillis);
+    }
+
+    /**
+     * @return the decoded {@code tid} of an encoded hit, or null if it has none.
+     */
+    public static String trackingId(String payload) {
+        final Matcher matcher = TRACKING_ID_PARAMETER.matcher(payload);
+        if (!matcher.find()) {
+            return null;
+        }
+        try {
+            return URLDecoder.decode(matcher.group(1), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(buffer, 0, length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private byte[] commonFields(String trackingId, String userAgent, String unitId, String versionId, String deviceIP) {
+        if (commonFields == null
+                || !Objects.equals(this.trackingId, trackingId)
+                || !Objects.equals(this.userAgent, userAgent)
+                || !Objects.equals(this.unitId, unitId)
+                || !Objects.equals(this.versionId, versionId)
+                || !Objects.equals(this.deviceIP, deviceIP)) {
+            length = 0;
+            writeAscii("v=1&t=event&uid=");
+            writeEncoded(unitId);
+            writeAscii("&cid=");
+            writeEncoded(unitId);
+            writeAscii("&tid=");
+            writeEncoded(trackingId);
+            writeAscii("&ua=");
+            writeEncoded(userAgent);
+            writeAscii("&pr1cd1=");
+            writeEncoded(versionId);
+            writeAscii("&qt=0&uip=");
+            writeEncoded(deviceIP);
+            this.commonFields = Arrays.copyOf(buffer, length);
+            this.trackingId = trackingId;
+            this.userAgent = userAgent;
+            this.unitId = unitId;
+            this.versionId = versionId;
+            this.deviceIP = deviceIP;
+        }
+        return commonFields;
+    }
+
+    private void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void writeAscii(String value) {
+        ensureCapacity(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer[length++] = (byte) value.charAt(i);
+        }
+    }
+
+    /**
+     * Same output as {@link java.net.URLEncoder} with UTF-8, without the intermediate strings.
+     */
+    private void writeEncoded(String value) {
+        if (value == null) {
+            return;
+        }
+        // Worst case is 3 bytes per char, a surrogate pair gives 4 bytes for 2 chars so it fits too
+        ensureCapacity(value.length() * 9);
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '_' || c == '.' || c == '*') {
+                buffer[length++] = (byte) c;
+            } else if (c == ' ') {
+                buffer[length++] = '+';
+            } else if (c < 0x80) {
+                writeEscaped(c);
+            } else if (c < 0x800) {
+                writeEscaped(0xC0 | (c >> 6));
+                writeEscaped(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                writeEscaped(0xF0 | (codePoint >> 18));
+                writeEscaped(0x80 | ((codePoint >> 12) & 0x3F));
+                writeEscaped(0x80 | ((codePoint >> 6) & 0x3F));
+                writeEscaped(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                writeEscaped('?');
+            } else {
+                writeEscaped(0xE0 | (c >> 12));
+                writeEscaped(0x80 | ((c >> 6) & 0x3F));
+                writeEscaped(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    private void writeEscaped(int b) {
+        buffer[length++] = '%';
+        buffer[length++] = HEX[(b >> 4) & 0x0F];
+        buffer[length++] = HEX[b & 0x0F];
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+        }
+    }
+}
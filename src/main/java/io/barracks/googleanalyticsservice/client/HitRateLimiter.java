@@ -0,0 +1,175 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.client;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps each tracking id under its Measurement Protocol quota before hits are sent.
+ * Every tracking id has a {@code per_second} token bucket, kept as a single theoretical arrival time updated with
+ * CAS, and a {@code per_day} counter packed with its UTC day into a single long. Neither takes a lock.
+ * What happens to a hit over the limit depends on {@code policy}: {@code DROP} it, {@code SPOOL} it for later,
+ * or {@code SAMPLE} it, letting {@code sample_ratio} of the throttled hits through.
+ */
+@Component
+public class HitRateLimiter implements PublicMetrics {
+
+    public enum OverLimitPolicy {
+        DROP, SPOOL, SAMPLE
+    }
+
+    public enum Decision {
+        SEND, DROP, SPOOL
+    }
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+
+    private final boolean enabled;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final long perDay;
+    private final OverLimitPolicy policy;
+    private final double sampleRatio;
+    private final LongSupplier nanoClock;
+    private final LongSupplier millisClock;
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final LongAdder throttledHits = new LongAdder();
+
+    @Autowired
+    public HitRateLimiter(
+            @Value("${io.barracks.googleanalytics.rate_limit.enabled:false}") boolean enabled,
+            @Value("${io.barracks.googleanalytics.rate_limit.per_second:500}") long perSecond,
+            @Value("${io.barracks.googleanalytics.rate_limit.per_day:300000}") long perDay,
+            @Value("${io.barracks.googleanalytics.rate_limit.policy:DROP}") OverLimitPolicy policy,
+            @Value("${io.barracks.googleanalytics.rate_limit.sample_ratio:0.1}") double sampleRatio
+    ) {
+        this(enabled, perSecond, perDay, policy, sampleRatio, System::nanoTime, System::currentTimeMillis);
+    }
+
+    HitRateLimiter(boolean enabled, long perSecond, long perDay, OverLimitPolicy policy, double sampleRatio, LongSupplier nanoClock, LongSupplier millisClock) {
+        this.enabled = enabled;
+        this.intervalNanos = perSecond > 0 ? NANOS_PER_SECOND / perSecond : 0;
+        this.burstNanos = NANOS_PER_SECOND - intervalNanos;
+        // The daily count shares its long with the day
+        this.perDay = perDay > 0 ? Math.min(perDay, 0xFFFFFFFFL) : Long.MAX_VALUE;
+        this.policy = policy;
+        this.sampleRatio = sampleRatio;
+        this.nanoClock = nanoClock;
+        this.millisClock = millisClock;
+    }
+
+    public Decision acquire(String trackingId) {
+        if (!enabled) {
+            return Decision.SEND;
+        }
+        final Bucket bucket = buckets.computeIfAbsent(trackingId, id -> new Bucket());
+        if (bucket.tryAcquireSecond(nanoClock.getAsLong()) && bucket.tryAcquireDay(millisClock.getAsLong() / MILLIS_PER_DAY)) {
+            return Decision.SEND;
+        }
+        bucket.throttled.increment();
+        throttledHits.increment();
+        switch (policy) {
+            case SPOOL:
+                return Decision.SPOOL;
+            case SAMPLE:
+                return ThreadLocalRandom.current().nextDouble() < sampleRatio ? Decision.SEND : Decision.DROP;
+            default:
+                return Decision.DROP;
+        }
+    }
+
+    public long getThrottledHits(String trackingId) {
+        final Bucket bucket = buckets.get(trackingId);
+        return bucket == null ? 0 : bucket.throttled.sum();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("ratelimit.throttled", throttledHits.sum()));
+        buckets.forEach((trackingId, bucket) -> {
+            final long throttled = bucket.throttled.sum();
+            if (throttled > 0) {
+                metrics.add(new Metric<>("ratelimit.throttled." + trackingId, throttled));
+            }
+        });
+        return metrics;
+    }
+
+    private class Bucket {
+
+        private final AtomicLong theoreticalArrival = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicLong dailyCount = new AtomicLong();
+        private final LongAdder throttled = new LongAdder();
+
+        boolean tryAcquireSecond(long now) {
+            if (intervalNanos == 0) {
+                return true;
+            }
+            while (true) {
+                final long arrival = theoreticalArrival.get();
+                final long start = Math.max(arrival, now);
+                if (start - now > burstNanos) {
+                    return false;
+                }
+                if (theoreticalArrival.compareAndSet(arrival, start + intervalNanos)) {
+                    return true;
+                }
+            }
+        }
+
+        boolean tryAcquireDay(long day) {
+            if (perDay == Long.MAX_VALUE) {
+                return true;
+            }
+            while (true) {
+                final long current = dailyCount.get();
+                final long count = (current >>> 32) == day ? current & 0xFFFFFFFFL : 0;
+                if (count >= perDay) {
+                    return false;
+                }
+                if (dailyCount.compareAndSet(current, (day << 32) | (count + 1))) {
+                    return true;
+                }
+            }
+        }
+    }
+}
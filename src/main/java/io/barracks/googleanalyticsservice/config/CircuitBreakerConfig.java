@@ -0,0 +1,70 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.config;
+
+import io.barracks.googleanalyticsservice.client.CircuitBreaker;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class CircuitBreakerConfig {
+
+    @Bean
+    public CircuitBreaker googleAnalyticsCircuitBreaker(
+            @Value("${io.barracks.googleanalytics.circuit_breaker.enabled:true}") boolean enabled,
+            @Value("${io.barracks.googleanalytics.circuit_breaker.failure_rate_threshold:50}") int failureRateThreshold,
+            @Value("${io.barracks.googleanalytics.circuit_breaker.window_size:100}") int windowSize,
+            @Value("${io.barracks.googleanalytics.circuit_breaker.minimum_calls:20}") int minimumCalls,
+            @Value("${io.barracks.googleanalytics.circuit_breaker.open_duration_ms:10000}") long openDurationMillis,
+            @Value("${io.barracks.googleanalytics.circuit_breaker.half_open_calls:5}") int halfOpenCalls
+    ) {
+        return new CircuitBreaker("googleanalytics", enabled, failureRateThreshold, windowSize, minimumCalls, openDurationMillis, halfOpenCalls);
+    }
+
+    @Bean
+    public CircuitBreaker authorizationServiceCircuitBreaker(
+            @Value("${io.barracks.authorizationservice.circuit_breaker.enabled:true}") boolean enabled,
+            @Value("${io.barracks.authorizationservice.circuit_breaker.failure_rate_threshold:50}") int failureRateThreshold,
+            @Value("${io.barracks.authorizationservice.circuit_breaker.window_size:50}") int windowSize,
+            @Value("${io.barracks.authorizationservice.circuit_breaker.minimum_calls:10}") int minimumCalls,
+            @Value("${io.barracks.authorizationservice.circuit_breaker.open_duration_ms:10000}") long openDurationMillis,
+            @Value("${io.barracks.authorizationservice.circuit_breaker.half_open_calls:3}") int halfOpenCalls
+    ) {
+        return new CircuitBreaker("authorizationservice", enabled, failureRateThreshold, windowSize, minimumCalls, openDurationMillis, halfOpenCalls);
+    }
+
+    @Bean
+    public HealthIndicator googleAnalyticsCircuitBreakerHealthIndicator(@Qualifier("googleAnalyticsCircuitBreaker") CircuitBreaker circuitBreaker) {
+        return new CircuitBreakerHealthIndicator(circuitBreaker);
+    }
+
+    @Bean
+    public HealthIndicator authorizationServiceCircuitBreakerHealthIndicator(@Qualifier("authorizationServiceCircuitBreaker") CircuitBreaker circuitBreaker) {
+        return new CircuitBreakerHealthIndicator(circuitBreaker);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.config;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+public class HttpClientConfig {
+
+    @Bean(destroyMethod = "shutdown")
+    public PoolingHttpClientConnectionManager googleAnalyticsConnectionManager(
+            @Value("${io.barracks.googleanalytics.http.max_connections:100}") int maxConnections,
+            @Value("${io.barracks.googleanalytics.http.connection_ttl_ms:300000}") long connectionTtl
+    ) {
+        return connectionManager(maxConnections, connectionTtl);
+    }
+
+    @Bean
+    public ClientHttpRequestFactory googleAnalyticsRequestFactory(
+            @Qualifier("googleAnalyticsConnectionManager") PoolingHttpClientConnectionManager connectionManager,
+            @Value("${io.barracks.googleanalytics.http.connect_timeout_ms:2000}") int connectTimeout,
+            @Value("${io.barracks.googleanalytics.http.read_timeout_ms:5000}") int readTimeout,
+            @Value("${io.barracks.googleanalytics.http.pool_timeout_ms:1000}") int poolTimeout,
+            @Value("${io.barracks.googleanalytics.http.idle_timeout_ms:30000}") long idleTimeout
+    ) {
+        return requestFactory(connectionManager, connectTimeout, readTimeout, poolTimeout, idleTimeout);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public PoolingNHttpClientConnectionManager googleAnalyticsAsyncConnectionManager(
+            @Value("${io.barracks.googleanalytics.async.max_connections:200}") int maxConnections,
+            @Value("${io.barracks.googleanalytics.async.io_threads:0}") int ioThreads,
+            @Value("${io.barracks.googleanalytics.http.connection_ttl_ms:300000}") long connectionTtl
+    ) throws IOReactorException {
+        final IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads > 0 ? ioThreads : Runtime.getRuntime().availableProcessors())
+                .build();
+        final Registry<SchemeIOSessionStrategy> sessionStrategies = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", SSLIOSessionStrategy.getDefaultStrategy())
+                .build();
+        final PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(ioReactorConfig),
+                null,
+                sessionStrategies,
+                null,
+                null,
+                connectionTtl,
+                TimeUnit.MILLISECONDS
+        );
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        return connectionManager;
+    }
+
+    /**
+     * The async client has no built-in eviction, so expired and idle connections are closed the same way
+     * the blocking clients do it, checking once per idle timeout.
+     */
+    @Bean(destroyMethod = "shutdownNow")
+    public ScheduledExecutorService googleAnalyticsAsyncConnectionEvictor(
+            @Qualifier("googleAnalyticsAsyncConnectionManager") PoolingNHttpClientConnectionManager connectionManager,
+            @Value("${io.barracks.googleanalytics.http.idle_timeout_ms:30000}") long idleTimeout
+    ) {
+        final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "ga-async-connection-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long interval = idleTimeout > 0 ? idleTimeout : 5000;
+        evictor.scheduleWithFixedDelay(() -> {
+            connectionManager.closeExpiredConnections();
+            if (idleTimeout > 0) {
+                connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        return evictor;
+    }
+
+    @Bean
+    public AsyncClientHttpRequestFactory googleAnalyticsAsyncRequestFactory(
+            @Qualifier("googleAnalyticsAsyncConnectionManager") PoolingNHttpClientConnectionManager connectionManager,
+            @Value("${io.barracks.googleanalytics.http.connect_timeout_ms:2000}") int connectTimeout,
+            @Value("${io.barracks.googleanalytics.http.read_timeout_ms:5000}") int readTimeout,
+            @Value("${io.barracks.googleanalytics.http.pool_timeout_ms:1000}") int poolTimeout
+    ) {
+        final CloseableHttpAsyncClient httpAsyncClient = HttpAsyncClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .setDefaultRequestConfig(requestConfig(connectTimeout, readTimeout, poolTimeout))
+                .build();
+        return new HttpComponentsAsyncClientHttpRequestFactory(httpAsyncClient);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public PoolingHttpClientConnectionManager authorizationServiceConnectionManager(
+            @Value("${io.barracks.authorizationservice.http.max_connections:50}") int maxConnections,
+            @Value("${io.barracks.authorizationservice.http.connection_ttl_ms:300000}") long connectionTtl
+    ) {
+        return connectionManager(maxConnections, connectionTtl);
+    }
+
+    @Bean
+    public ClientHttpRequestFactory authorizationServiceRequestFactory(
+            @Qualifier("authorizationServiceConnectionManager") PoolingHttpClientConnectionManager connectionManager,
+            @Value("${io.barracks.authorizationservice.http.connect_timeout_ms:1000}") int connectTimeout,
+            @Value("${io.barracks.authorizationservice.http.read_timeout_ms:3000}") int readTimeout,
+            @Value("${io.barracks.authorizationservice.http.pool_timeout_ms:1000}") int poolTimeout,
+            @Value("${io.barracks.authorizationservice.http.idle_timeout_ms:30000}") long idleTimeout
+    ) {
+        return requestFactory(connectionManager, connectTimeout, readTimeout, poolTimeout, idleTimeout);
+    }
+
+    @Bean
+    public PublicMetrics httpConnectionPoolMetrics(
+            @Qualifier("googleAnalyticsConnectionManager") PoolingHttpClientConnectionManager googleAnalyticsConnectionManager,
+            @Qualifier("googleAnalyticsAsyncConnectionManager") PoolingNHttpClientConnectionManager googleAnalyticsAsyncConnectionManager,
+            @Qualifier("authorizationServiceConnectionManager") PoolingHttpClientConnectionManager authorizationServiceConnectionManager
+    ) {
+        return new HttpConnectionPoolMetrics()
+                .register("googleanalytics", googleAnalyticsConnectionManager)
+                .register("googleanalytics.async", googleAnalyticsAsyncConnectionManager)
+                .register("authorizationservice", authorizationServiceConnectionManager);
+    }
+
+    private PoolingHttpClientConnectionManager connectionManager(int maxConnections, long connectionTtl) {
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(connectionTtl, TimeUnit.MILLISECONDS);
+        // Each pool only ever talks to a single host
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        connectionManager.setValidateAfterInactivity(2000);
+        return connectionManager;
+    }
+
+    private ClientHttpRequestFactory requestFactory(PoolingHttpClientConnectionManager connectionManager, int connectTimeout, int readTimeout, int poolTimeout, long idleTimeout) {
+        final CloseableHttpClient httpClient = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+                .setDefaultRequestConfig(requestConfig(connectTimeout, readTimeout, poolTimeout))
+                .build();
+        return new HttpComponentsClientHttpRequestFactory(httpClient);
+    }
+
+    private RequestConfig requestConfig(int connectTimeout, int readTimeout, int poolTimeout) {
+        return RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .setConnectionRequestTimeout(poolTimeout)
+                .build();
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.config;
+
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes the usage of the outbound HTTP connection pools, a pool is saturated when {@code pending} stays above 0.
+ */
+public class HttpConnectionPoolMetrics implements PublicMetrics {
+
+    private final Map<String, ConnPoolControl<?>> pools = new LinkedHashMap<>();
+
+    public HttpConnectionPoolMetrics register(String name, ConnPoolControl<?> pool) {
+        pools.put(name, pool);
+        return this;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>();
+        pools.forEach((name, pool) -> {
+            final PoolStats stats = pool.getTotalStats();
+            metrics.add(new Metric<>("http.pool." + name + ".leased", stats.getLeased()));
+            metrics.add(new Metric<>("http.pool." + name + ".pending", stats.getPending()));
+            metrics.add(new Metric<>("http.pool." + name + ".available", stats.getAvailable()));
+            metrics.add(new Metric<>("http.pool." + name + ".max", stats.getMax()));
+        });
+        return metrics;
+    }
+}
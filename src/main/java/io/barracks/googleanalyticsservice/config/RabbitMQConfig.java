@@ -25,40 +25,167 @@
 package io.barracks.googleanalyticsservice.config;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.barracks.googleanalyticsservice.cache.KeyPathTable;
+import io.barracks.googleanalyticsservice.manager.GoogleAnalyticsManager;
+import io.barracks.googleanalyticsservice.metrics.PipelineMetrics;
+import io.barracks.googleanalyticsservice.rabbitmq.DeviceInfoBatchListener;
+import io.barracks.googleanalyticsservice.rabbitmq.DeviceInfoMessageConverter;
+import io.barracks.googleanalyticsservice.rabbitmq.DeviceMessageReceiver;
+import io.barracks.googleanalyticsservice.rabbitmq.ListenerConcurrencyScaler;
+import io.barracks.googleanalyticsservice.rabbitmq.RetryPublisher;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.AmqpAdmin;
 import org.springframework.amqp.rabbit.annotation.EnableRabbit;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
 
 @Configuration
 @EnableRabbit
 public class RabbitMQConfig {
 
+    static final int AVAILABLE_PROCESSORS = Runtime.getRuntime().availableProcessors();
+
     @Value("${io.barracks.googleanalytics.queuename}")
     private String queueName;
     @Value("${io.barracks.amqp.uri}")
     private String uri;
+    @Value("${io.barracks.amqp.streaming_decoder.enabled:true}")
+    private boolean streamingDecoderEnabled;
+    @Value("${io.barracks.amqp.listener.min_consumers:0}")
+    private int minConsumers;
+    @Value("${io.barracks.amqp.listener.max_consumers:0}")
+    private int maxConsumers;
+    @Value("${io.barracks.amqp.listener.prefetch:50}")
+    private int prefetchCount;
+    @Value("${io.barracks.amqp.channel_cache_size:0}")
+    private int channelCacheSize;
+    @Value("${io.barracks.amqp.batch.enabled:false}")
+    private boolean batchEnabled;
+    @Value("${io.barracks.amqp.scheduler.enabled:false}")
+    private boolean schedulerEnabled;
     @Autowired
     private ObjectMapper objectMapper;
 
     @Bean
-    public MessageConverter messageConverter(ObjectMapper objectMapper) {
+    public MessageConverter messageConverter(ObjectMapper objectMapper, KeyPathTable keyPathTable, PipelineMetrics pipelineMetrics) {
         Jackson2JsonMessageConverter jackson2JsonMessageConverter = new Jackson2JsonMessageConverter();
         jackson2JsonMessageConverter.setJsonObjectMapper(objectMapper);
+        if (streamingDecoderEnabled) {
+            return new DeviceInfoMessageConverter(objectMapper, jackson2JsonMessageConverter, keyPathTable, pipelineMetrics);
+        }
         return jackson2JsonMessageConverter;
     }
 
     @Bean
     public ConnectionFactory cf() throws URISyntaxException {
-        return new CachingConnectionFactory(new URI(uri));
+        final CachingConnectionFactory connectionFactory = new CachingConnectionFactory(new URI(uri));
+        // Every consumer holds a channel, keep room for the publishers on top of them
+        connectionFactory.setChannelCacheSize(channelCacheSize > 0 ? channelCacheSize : getMaxConsumers() + AVAILABLE_PROCESSORS);
+        return connectionFactory;
+    }
+
+    @Bean
+    public SimpleRabbitListenerContainerFactory rabbitListenerContainerFactory(ConnectionFactory connectionFactory) {
+        final SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        // The device message receiver reads the body itself, see DeviceMessageReceiver#receiveMessage
+        factory.setConcurrentConsumers(getMinConsumers());
+        factory.setMaxConcurrentConsumers(getMaxConsumers());
+        factory.setPrefetchCount(prefetchCount);
+        if (schedulerEnabled) {
+            // The tenant scheduler acknowledges each message once it has been processed
+            factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        }
+        // In batch mode the queue is consumed by the batch listener container instead
+        factory.setAutoStartup(!batchEnabled);
+        return factory;
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "io.barracks.amqp.batch.enabled")
+    public DeviceInfoBatchListener deviceInfoBatchListener(
+            GoogleAnalyticsManager googleAnalyticsManager,
+            MessageConverter messageConverter,
+            RetryPublisher retryPublisher,
+            @Value("${io.barracks.amqp.batch.size:100}") int batchSize,
+            @Value("${io.barracks.amqp.batch.linger_ms:200}") long lingerMillis,
+            @Value("${io.barracks.amqp.batch.flush_threads:4}") int flushThreads
+    ) {
+        return new DeviceInfoBatchListener(googleAnalyticsManager, messageConverter, retryPublisher, batchSize, lingerMillis, flushThreads);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "io.barracks.amqp.batch.enabled")
+    public SimpleMessageListenerContainer deviceInfoBatchListenerContainer(
+            ConnectionFactory connectionFactory,
+            DeviceInfoBatchListener deviceInfoBatchListener,
+            @Value("${io.barracks.amqp.batch.size:100}") int batchSize
+    ) {
+        final SimpleMessageListenerContainer container = new SimpleMessageListenerContainer(connectionFactory);
+        container.setQueueNames(queueName);
+        container.setMessageListener(deviceInfoBatchListener);
+        container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        container.setConcurrentConsumers(getMinConsumers());
+        container.setMaxConcurrentConsumers(getMaxConsumers());
+        // A batch can only fill up if the broker lets that many messages go unacknowledged
+        container.setPrefetchCount(Math.max(prefetchCount, batchSize));
+        return container;
+    }
+
+    @Bean
+    @ConditionalOnExpression("${io.barracks.amqp.listener.scaling.enabled:false} and !${io.barracks.amqp.scheduler.enabled:false}")
+    public ListenerConcurrencyScaler listenerConcurrencyScaler(
+            AmqpAdmin amqpAdmin,
+            RabbitListenerEndpointRegistry registry,
+            ObjectProvider<SimpleMessageListenerContainer> deviceInfoBatchListenerContainer,
+            @Value("${io.barracks.amqp.listener.scaling.messages_per_consumer:500}") int messagesPerConsumer
+    ) {
+        final Supplier<Collection<MessageListenerContainer>> containers = () -> {
+            // Only the device queue consumers, the retry queue keeps its own fixed consumer count
+            final List<MessageListenerContainer> result = new ArrayList<>(2);
+            final MessageListenerContainer deviceContainer = registry.getListenerContainer(DeviceMessageReceiver.LISTENER_ID);
+            if (deviceContainer != null) {
+                result.add(deviceContainer);
+            }
+            final SimpleMessageListenerContainer batchContainer = deviceInfoBatchListenerContainer.getIfAvailable();
+            if (batchContainer != null) {
+                result.add(batchContainer);
+            }
+            return result;
+        };
+        return new ListenerConcurrencyScaler(amqpAdmin, containers, queueName, getMinConsumers(), getMaxConsumers(), messagesPerConsumer);
+    }
+
+    int getMinConsumers() {
+        return minConsumers > 0 ? minConsumers : AVAILABLE_PROCESSORS;
+    }
+
+    int getMaxConsumers() {
+        if (schedulerEnabled) {
+            // Scheduled messages are acknowledged on the channel of the consumer that received them, it must not go away
+            return getMinConsumers();
+        }
+        return Math.max(getMinConsumers(), maxConsumers > 0 ? maxConsumers : AVAILABLE_PROCESSORS * 4);
     }
 
 }
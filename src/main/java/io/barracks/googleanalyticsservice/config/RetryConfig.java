@@ -0,0 +1,74 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.config;
+
+import io.barracks.googleanalyticsservice.rabbitmq.RetryTopology;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.List;
+
+@Configuration
+public class RetryConfig {
+
+    @Bean
+    public RetryTopology retryTopology(
+            @Value("${io.barracks.googleanalytics.queuename}") String queueName,
+            @Value("${io.barracks.amqp.retry.max_attempts:5}") int maxAttempts,
+            @Value("${io.barracks.amqp.retry.initial_delay_ms:1000}") long initialDelayMillis,
+            @Value("${io.barracks.amqp.retry.multiplier:5}") int multiplier
+    ) {
+        return new RetryTopology(queueName, maxAttempts, initialDelayMillis, multiplier);
+    }
+
+    /**
+     * Picked up and declared by the RabbitAdmin like any other queue bean. The tenant scheduler parks unreadable
+     * messages even when retries are disabled.
+     */
+    @Bean
+    @ConditionalOnExpression("${io.barracks.amqp.retry.enabled:true} or ${io.barracks.amqp.scheduler.enabled:false}")
+    public List<Queue> retryQueues(RetryTopology retryTopology) {
+        return retryTopology.getQueues();
+    }
+
+    /**
+     * Retried hits have their own containers, they keep flowing when the main listener is replaced by the batch one.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory retryListenerContainerFactory(
+            ConnectionFactory connectionFactory,
+            @Value("${io.barracks.amqp.retry.consumers:2}") int consumers
+    ) {
+        final SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setConcurrentConsumers(Math.max(1, consumers));
+        return factory;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.manager;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.ValueNode;
+import io.barracks.googleanalyticsservice.cache.KeyPathTable;
+import io.barracks.googleanalyticsservice.model.KeyPath;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Walks the custom client data of a device and hands every leaf to a {@link PropertySink} under its dotted key.
+ * An empty object is reported as a leaf with an empty value, nodes that are neither objects nor values are skipped.
+ * Keys come from the {@link KeyPathTable} so payloads of the same shape share them.
+ * With a {@link KeyFilter}, rejected leaves are not reported and the subtrees it cannot accept anything from are not walked.
+ */
+@Slf4j
+@Component
+public class AdditionalPropertiesFlattener {
+
+    private static final int INITIAL_DEPTH = 8;
+
+    private final KeyPathTable keyPathTable;
+
+    @Autowired
+    public AdditionalPropertiesFlattener(KeyPathTable keyPathTable) {
+        this.keyPathTable = keyPathTable;
+    }
+
+    public void flatten(ObjectNode root, PropertySink sink) {
+        flatten(root, KeyFilter.ALL, sink);
+    }
+
+    /**
+     * @return the number of keys filtered out, a subtree skipped as a whole counts once.
+     */
+    public int flatten(ObjectNode root, KeyFilter filter, PropertySink sink) {
+        return new Walker(keyPathTable, filter).walk(root, sink);
+    }
+
+    @FunctionalInterface
+    public interface PropertySink {
+        void accept(KeyPath key, String value);
+    }
+
+    /**
+     * Explicit stack of field iterators, each level remembers the key of the object it iterates over and the
+     * filter state reached there.
+     */
+    private static class Walker {
+
+        private final KeyPathTable keyPathTable;
+        private final KeyFilter filter;
+        @SuppressWarnings("unchecked")
+        private Iterator<Map.Entry<String, JsonNode>>[] iterators = new Iterator[INITIAL_DEPTH];
+        private KeyPath[] parents = new KeyPath[INITIAL_DEPTH];
+        private KeyFilter.State[] states = new KeyFilter.State[INITIAL_DEPTH];
+        private int depth = -1;
+        private int filtered = 0;
+
+        Walker(KeyPathTable keyPathTable, KeyFilter filter) {
+            this.keyPathTable = keyPathTable;
+            this.filter = filter;
+        }
+
+        int walk(ObjectNode root, PropertySink sink) {
+            if (!root.fieldNames().hasNext()) {
+                report(sink, KeyPath.ROOT, filter.start(), "");
+                return filtered;
+            }
+            push(root, KeyPath.ROOT, filter.start());
+            while (depth >= 0) {
+                final Iterator<Map.Entry<String, JsonNode>> fields = iterators[depth];
+                if (!fields.hasNext()) {
+                    iterators[depth] = null;
+                    parents[depth] = null;
+                    states[depth--] = null;
+                    continue;
+                }
+                final Map.Entry<String, JsonNode> field = fields.next();
+                final KeyPath key = keyPathTable.child(parents[depth], field.getKey());
+                final KeyFilter.State state = filter.enter(states[depth], field.getKey());
+
+                final JsonNode value = field.getValue();
+                if (value instanceof ObjectNode) {
+                    if (!value.fieldNames().hasNext()) {
+                        report(sink, key, state, "");
+                    } else if (filter.mayAccept(state)) {
+                        push((ObjectNode) value, key, state);
+                    } else {
+                        filtered++;
+                    }
+                } else if (value instanceof ValueNode) {
+                    report(sink, key, state, value.asText());
+                } else {
+                    log.error("Value {} of {} is not of the expected type", value, key);
+                }
+            }
+            return filtered;
+        }
+
+        private void report(PropertySink sink, KeyPath key, KeyFilter.State state, String value) {
+            if (filter.accepts(state)) {
+                sink.accept(key, value);
+            } else {
+                filtered++;
+            }
+        }
+
+        private void push(ObjectNode node, KeyPath key, KeyFilter.State state) {
+            if (++depth == iterators.length) {
+                iterators = Arrays.copyOf(iterators, depth * 2);
+                parents = Arrays.copyOf(parents, depth * 2);
+                states = Arrays.copyOf(states, depth * 2);
+            }
+            iterators[depth] = node.fields();
+            parents[depth] = key;
+            states[depth] = state;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.manager;
+
+import io.barracks.googleanalyticsservice.model.KeyPath;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Custom dimensions ({@code cdN}) and custom metrics ({@code cmN}) that custom client data keys are packed into,
+ * so that all the mapped leaves of a message are sent as a single hit instead of one event hit each.
+ * Immutable, share instances through {@link io.barracks.googleanalyticsservice.cache.DimensionMappingCache}.
+ */
+public final class DimensionMapping {
+
+    public static final DimensionMapping NONE = new DimensionMapping(Collections.emptyMap());
+
+    private static final Pattern PARAMETER = Pattern.compile("c([dm])([1-9][0-9]{0,2})");
+    private static final Pattern INTEGER = Pattern.compile("-?[0-9]{1,18}");
+    private static final int MAX_INDEX = 200;
+    private static final char METRIC = 'm';
+
+    private final Map<String, String> parameters;
+
+    private DimensionMapping(Map<String, String> parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * @param mapping custom client data keys to {@code cdN} or {@code cmN}, N between 1 and 200. Invalid entries are ignored.
+     * @return the mapping, {@link #NONE} if there is no valid entry.
+     */
+    public static DimensionMapping compile(Map<String, String> mapping) {
+        if (mapping == null || mapping.isEmpty()) {
+            return NONE;
+        }
+        final Map<String, String> parameters = new HashMap<>();
+        mapping.forEach((key, parameter) -> {
+            if (key == null || parameter == null) {
+                return;
+            }
+            final Matcher matcher = PARAMETER.matcher(parameter.trim());
+            if (matcher.matches() && Integer.parseInt(matcher.group(2)) <= MAX_INDEX) {
+                parameters.put(key, matcher.group());
+            }
+        });
+        return parameters.isEmpty() ? NONE : new DimensionMapping(parameters);
+    }
+
+    public boolean isEmpty() {
+        return parameters.isEmpty();
+    }
+
+    /**
+     * @return the parameter the leaf is packed into, or null if the key is not mapped or is mapped to a custom
+     * metric and the value is not an integer, the leaf is then sent as its own event hit.
+     */
+    public String parameterFor(KeyPath key, String value) {
+        final String parameter = parameters.get(key.getPath());
+        if (parameter == null || value == null) {
+            return null;
+        }
+        if (parameter.charAt(1) == METRIC && !INTEGER.matcher(value).matches()) {
+            return null;
+        }
+        return parameter;
+    }
+}
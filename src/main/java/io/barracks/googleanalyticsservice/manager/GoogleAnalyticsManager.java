@@ -24,77 +24,441 @@
 
 package io.barracks.googleanalyticsservice.manager;
 
-import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.fasterxml.jackson.databind.node.ValueNode;
-import io.barracks.googleanalyticsservice.client.AuthorizationServiceClient;
+import io.barracks.googleanalyticsservice.aggregation.NumericAggregator;
+import io.barracks.googleanalyticsservice.cache.ChangeSuppressionCache;
+import io.barracks.googleanalyticsservice.cache.DimensionMappingCache;
+import io.barracks.googleanalyticsservice.cache.KeyFilterCache;
+import io.barracks.googleanalyticsservice.cache.UserCache;
+import io.barracks.googleanalyticsservice.client.GoogleAnalyticsBatchSender;
+import io.barracks.googleanalyticsservice.client.Ga4MeasurementClient;
 import io.barracks.googleanalyticsservice.client.GoogleAnalyticsClient;
+import io.barracks.googleanalyticsservice.client.HitRateLimiter;
+import io.barracks.googleanalyticsservice.client.exception.CircuitBreakerOpenException;
 import io.barracks.googleanalyticsservice.client.exception.GoogleAnalyticsClientException;
+import io.barracks.googleanalyticsservice.metrics.PipelineMetrics;
 import io.barracks.googleanalyticsservice.model.DeviceInfo;
+import io.barracks.googleanalyticsservice.model.FlattenedProperties;
+import io.barracks.googleanalyticsservice.model.Ga4Event;
+import io.barracks.googleanalyticsservice.model.GoogleAnalyticsHit;
+import io.barracks.googleanalyticsservice.model.KeyPath;
 import io.barracks.googleanalyticsservice.model.User;
+import io.barracks.googleanalyticsservice.rabbitmq.RetryPublisher;
+import io.barracks.googleanalyticsservice.sampling.UnitSampler;
+import io.barracks.googleanalyticsservice.spool.HitSpool;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
+import org.springframework.web.client.ResourceAccessException;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Slf4j
 @Component
-public class GoogleAnalyticsManager {
+public class GoogleAnalyticsManager implements DisposableBean {
+
+    private static final Runnable NOTHING = () -> {
+    };
 
     @Autowired
-    private AuthorizationServiceClient authorizationServiceClient;
+    private UserCache userCache;
     @Autowired
     private GoogleAnalyticsClient googleAnalyticsClient;
+    @Autowired
+    private GoogleAnalyticsBatchSender googleAnalyticsBatchSender;
+    @Autowired
+    private Ga4MeasurementClient ga4MeasurementClient;
+    @Autowired
+    private AdditionalPropertiesFlattener additionalPropertiesFlattener;
+    @Autowired
+    private RetryPublisher retryPublisher;
+    @Autowired
+    private HitSpool hitSpool;
+    @Autowired
+    private HitRateLimiter hitRateLimiter;
+    @Autowired
+    private ChangeSuppressionCache changeSuppressionCache;
+    @Autowired
+    private KeyFilterCache keyFilterCache;
+    @Autowired
+    private NumericAggregator numericAggregator;
+    @Autowired
+    private UnitSampler unitSampler;
+    @Autowired
+    private DimensionMappingCache dimensionMappingCache;
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+    @Value("${io.barracks.googleanalytics.batch.enabled:false}")
+    private boolean batchEnabled;
+    @Value("${io.barracks.googleanalytics.async.enabled:false}")
+    private boolean asyncEnabled;
+    @Value("${io.barracks.googleanalytics.packing.event_category:custom_client_data}")
+    private String packingEventCategory;
+    @Value("${io.barracks.googleanalytics.packing.event_action:packed}")
+    private String packingEventAction;
 
     public void sendEventToGoogleAnalytics(DeviceInfo deviceInfo) {
-        final User user = authorizationServiceClient.getUserById(deviceInfo.getUserId());
-        if (!StringUtils.isEmpty(user.getGaTrackingId())) {
-            final ObjectNode customClientData = deviceInfo.getAdditionalProperties();
-            final List<String> prefix = new ArrayList<>();
-            sendObjectKeyValues(user, deviceInfo, prefix, customClientData);
-        }
-    }
-
-    private void sendObjectKeyValues(User user, DeviceInfo deviceInfo, List<String> prefix, ObjectNode node) {
-        if(!node.fieldNames().hasNext()) {
-            googleAnalyticsClient.sendEventToGoogleAnalytics(
-                    user.getGaTrackingId(),
-                    deviceInfo.getUserAgent(),
-                    deviceInfo.getUnitId(),
-                    deviceInfo.getVersionId(),
-                    String.join(".", prefix),
-                    "",
-                    deviceInfo.getDeviceIP());
-        }
-
-        node.fields().forEachRemaining(entry -> {
-            List<String> prefixCopy = new ArrayList<>(prefix);
-            prefixCopy.add(entry.getKey());
-            if (entry.getValue() instanceof ObjectNode) {
-                sendObjectKeyValues(
-                        user,
-                        deviceInfo,
-                        prefixCopy,
-                        ((ObjectNode) entry.getValue())
-                );
-            } else if (entry.getValue() instanceof ValueNode) {
+        if (isSampledOutBeforeLookup(deviceInfo)) {
+            return;
+        }
+        final User user = userCache.getUserById(deviceInfo.getUserId());
+        if (!StringUtils.isEmpty(user.getGaTrackingId()) && isSampled(user, deviceInfo)) {
+            final List<PendingHit> pendingHits = new ArrayList<>();
+            sendCustomClientData(user, deviceInfo, pendingHits);
+            awaitHits(pendingHits);
+            recordEndToEnd(deviceInfo);
+        }
+    }
+
+    /**
+     * Sends the custom client data of several devices, each user is looked up once for the whole batch and
+     * all the hits are awaited together. A failure for one user does not prevent the others from being sent.
+     *
+     * @return the devices that could not be processed because their user could not be looked up, with the lookup error.
+     */
+    public Map<DeviceInfo, RuntimeException> sendEventsToGoogleAnalytics(List<DeviceInfo> deviceInfos) {
+        final Map<String, User> users = new HashMap<>();
+        final List<PendingHit> pendingHits = new ArrayList<>();
+        final Map<DeviceInfo, RuntimeException> failedDevices = new IdentityHashMap<>();
+        final List<DeviceInfo> sentDevices = new ArrayList<>(deviceInfos.size());
+        for (DeviceInfo deviceInfo : deviceInfos) {
+            if (isSampledOutBeforeLookup(deviceInfo)) {
+                continue;
+            }
+            final User user;
+            try {
+                user = users.computeIfAbsent(deviceInfo.getUserId(), userCache::getUserById);
+            } catch (RuntimeException e) {
+                log.error("Unable to get user {} of device {}", deviceInfo.getUserId(), deviceInfo.getUnitId(), e);
+                failedDevices.put(deviceInfo, e);
+                continue;
+            }
+            if (user != null && !StringUtils.isEmpty(user.getGaTrackingId()) && isSampled(user, deviceInfo)) {
                 try {
-                    googleAnalyticsClient.sendEventToGoogleAnalytics(
-                            user.getGaTrackingId(),
-                            deviceInfo.getUserAgent(),
-                            deviceInfo.getUnitId(),
-                            deviceInfo.getVersionId(),
-                            String.join(".", prefixCopy),
-                            entry.getValue().asText(),
-                            deviceInfo.getDeviceIP());
-                } catch (GoogleAnalyticsClientException e) {
-                    log.error("Problem sending custom client data | Value : " + entry.getValue().asText() + " | Key : " + entry.getKey(), e);
+                    sendCustomClientData(user, deviceInfo, pendingHits);
+                    sentDevices.add(deviceInfo);
+                } catch (RuntimeException e) {
+                    log.error("Unable to send data of device {}", deviceInfo.getUnitId(), e);
+                    failedDevices.put(deviceInfo, e);
+                }
+            }
+        }
+        awaitHits(pendingHits);
+        sentDevices.forEach(this::recordEndToEnd);
+        return failedDevices;
+    }
+
+    /**
+     * Drops a sampled out device using the cached user, so that it costs neither a lookup nor any flattening.
+     * Devices of users that are not cached yet are sampled by {@link #isSampled(User, DeviceInfo)} after the lookup.
+     */
+    private boolean isSampledOutBeforeLookup(DeviceInfo deviceInfo) {
+        final User cachedUser = userCache.getCachedUser(deviceInfo.getUserId());
+        if (cachedUser == null || StringUtils.isEmpty(cachedUser.getGaTrackingId())
+                || unitSampler.isSampled(cachedUser.getGaTrackingId(), deviceInfo.getUnitId())) {
+            return false;
+        }
+        unitSampler.record(cachedUser.getGaTrackingId(), false);
+        return true;
+    }
+
+    private boolean isSampled(User user, DeviceInfo deviceInfo) {
+        final boolean sampled = unitSampler.isSampled(user.getGaTrackingId(), deviceInfo.getUnitId());
+        unitSampler.record(user.getGaTrackingId(), sampled);
+        return sampled;
+    }
+
+    private void sendCustomClientData(User user, DeviceInfo deviceInfo, List<PendingHit> pendingHits) {
+        final MessageStats stats = new MessageStats();
+        final KeyFilter filter = keyFilterCache.get(user);
+        final FlattenedProperties.Builder ga4Properties = isGa4(user) ? FlattenedProperties.builder() : null;
+        final DimensionMapping mapping = ga4Properties != null ? DimensionMapping.NONE : dimensionMappingCache.get(user);
+        final ChangeSuppressionCache.UnitFingerprints fingerprints = changeSuppressionCache.isEnabled() && deviceInfo.getUnitId() != null
+                ? changeSuppressionCache.get(deviceInfo.getUnitId())
+                : null;
+        // Values only count as sent for change suppression once their hit has been accepted
+        final Map<String, String> suppressedValues = new LinkedHashMap<>();
+        final Map<String, String> packedParameters = new LinkedHashMap<>();
+        final AdditionalPropertiesFlattener.PropertySink send;
+        if (ga4Properties != null) {
+            send = (key, value) -> {
+                ga4Properties.add(key, value);
+                if (fingerprints != null) {
+                    suppressedValues.put(key.getPath(), value);
+                }
+            };
+        } else if (mapping.isEmpty()) {
+            send = (key, value) -> sendHit(user, deviceInfo, key, value, Collections.emptyMap(), pendingHits, stats, recordSent(fingerprints, key, value));
+        } else {
+            send = (key, value) -> {
+                final String parameter = mapping.parameterFor(key, value);
+                if (parameter != null) {
+                    packedParameters.put(parameter, value);
+                    if (fingerprints != null) {
+                        suppressedValues.put(key.getPath(), value);
+                    }
+                } else {
+                    sendHit(user, deviceInfo, key, value, Collections.emptyMap(), pendingHits, stats, recordSent(fingerprints, key, value));
+                }
+            };
+        }
+        final AdditionalPropertiesFlattener.PropertySink unaggregated;
+        if (fingerprints != null) {
+            unaggregated = (key, value) -> {
+                if (fingerprints.hasChanged(key.getPath(), value)) {
+                    send.accept(key, value);
+                }
+            };
+        } else {
+            unaggregated = send;
+        }
+        final AdditionalPropertiesFlattener.PropertySink sink;
+        if (numericAggregator.isEnabled() && ga4Properties == null && deviceInfo.getUnitId() != null) {
+            // Numeric samples go out later as one summary per window, before change suppression sees them
+            final GoogleAnalyticsHit template = toHit(user, deviceInfo, null, null, Collections.emptyMap());
+            sink = (key, value) -> {
+                if (!numericAggregator.add(template, key, value)) {
+                    unaggregated.accept(key, value);
+                }
+            };
+        } else {
+            sink = unaggregated;
+        }
+
+        final Optional<FlattenedProperties> flattenedProperties = deviceInfo.getFlattenedAdditionalProperties();
+        if (flattenedProperties.isPresent()) {
+            // Already flattened by the streaming decoder, the time is part of the deserialization
+            flattenedProperties.get().forEach((key, value) -> {
+                if (filter.accepts(key)) {
+                    sink.accept(key, value);
+                } else {
+                    stats.filtered++;
                 }
+            });
+        } else {
+            final long start = System.nanoTime();
+            stats.filtered += additionalPropertiesFlattener.flatten(deviceInfo.getAdditionalProperties(), filter, sink);
+            pipelineMetrics.recordFlattening(System.nanoTime() - start - stats.sendNanos);
+        }
+        if (stats.filtered > 0) {
+            keyFilterCache.recordFiltered(stats.filtered);
+        }
+        if (!packedParameters.isEmpty()) {
+            // All the mapped leaves of the message go in one hit, sent after the unmapped ones
+            sendHit(user, deviceInfo, KeyPath.of(packingEventCategory), packingEventAction, packedParameters, pendingHits, stats, recordSent(fingerprints, suppressedValues));
+            dimensionMappingCache.recordPacked(packedParameters.size());
+        }
+        if (ga4Properties != null && sendGa4Events(user, deviceInfo, ga4Properties.build(), stats)) {
+            recordSent(fingerprints, suppressedValues).run();
+        }
+        pipelineMetrics.recordMessage(stats.hits);
+
+        if (fingerprints != null) {
+            changeSuppressionCache.update(deviceInfo.getUnitId(), fingerprints);
+        }
+    }
+
+    private boolean isGa4(User user) {
+        return Ga4MeasurementClient.isMeasurementId(user.getGaTrackingId()) && !StringUtils.isEmpty(user.getGaApiSecret());
+    }
+
+    /**
+     * Sends the whole message as GA4 events, one request per {@link Ga4MeasurementClient#MAX_EVENTS_PER_REQUEST} events.
+     * Failed requests are logged, the retry queue and the spool only hold Universal Analytics hits.
+     *
+     * @return true if every request was sent.
+     */
+    private boolean sendGa4Events(User user, DeviceInfo deviceInfo, FlattenedProperties properties, MessageStats stats) {
+        final List<Ga4Event> events = ga4MeasurementClient.toEvents(properties);
+        boolean allSent = true;
+        for (int from = 0; from < events.size(); from += Ga4MeasurementClient.MAX_EVENTS_PER_REQUEST) {
+            final List<Ga4Event> requestEvents = events.subList(from, Math.min(events.size(), from + Ga4MeasurementClient.MAX_EVENTS_PER_REQUEST));
+            if (hitRateLimiter.acquire(user.getGaTrackingId()) != HitRateLimiter.Decision.SEND) {
+                log.debug("Dropping throttled GA4 request of {}", user.getGaTrackingId());
+                allSent = false;
+                continue;
+            }
+            stats.hits++;
+            try {
+                ga4MeasurementClient.sendEvents(user.getGaTrackingId(), user.getGaApiSecret(), deviceInfo.getUnitId(), deviceInfo.getVersionId(), requestEvents);
+            } catch (GoogleAnalyticsClientException | ResourceAccessException | CircuitBreakerOpenException e) {
+                log.error("Problem sending custom client data to GA4 | Events : {}", requestEvents, e);
+                allSent = false;
+            }
+        }
+        return allSent;
+    }
+
+    private static Runnable recordSent(ChangeSuppressionCache.UnitFingerprints fingerprints, KeyPath key, String value) {
+        return fingerprints == null ? NOTHING : () -> fingerprints.recordSent(key.getPath(), value);
+    }
+
+    private static Runnable recordSent(ChangeSuppressionCache.UnitFingerprints fingerprints, Map<String, String> values) {
+        return fingerprints == null || values.isEmpty() ? NOTHING : () -> values.forEach(fingerprints::recordSent);
+    }
+
+    private void sendHit(User user, DeviceInfo deviceInfo, KeyPath key, String value, Map<String, String> parameters, List<PendingHit> pendingHits, MessageStats stats, Runnable onAccepted) {
+        final long start = System.nanoTime();
+        stats.hits++;
+        try {
+            sendHit(toHit(user, deviceInfo, key, value, parameters), pendingHits, onAccepted);
+        } finally {
+            stats.sendNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * @param onAccepted run once the hit has been sent, spooled or handed to the retry queue, but not when it is
+     *                   dropped or fails for good.
+     */
+    private void sendHit(GoogleAnalyticsHit hit, List<PendingHit> pendingHits, Runnable onAccepted) {
+        final HitRateLimiter.Decision decision = hitRateLimiter.acquire(hit.getTrackingId());
+        if (decision == HitRateLimiter.Decision.DROP) {
+            return;
+        }
+        if (decision == HitRateLimiter.Decision.SPOOL) {
+            if (hitSpool.append(GoogleAnalyticsClient.toPayload(hit))) {
+                onAccepted.run();
             } else {
-                log.error(" Value " + entry.getValue().asText() + " is not of the expected type. ");
+                log.debug("Dropping throttled hit of {}, the spool is unavailable", hit.getTrackingId());
+            }
+            return;
+        }
+        if (hitSpool.isDegraded() && hitSpool.append(GoogleAnalyticsClient.toPayload(hit))) {
+            onAccepted.run();
+            return;
+        }
+        if (batchEnabled) {
+            pendingHits.add(new PendingHit(hit, googleAnalyticsBatchSender.send(hit), onAccepted));
+        } else if (asyncEnabled) {
+            pendingHits.add(new PendingHit(hit, googleAnalyticsClient.sendEventToGoogleAnalyticsAsync(hit), onAccepted));
+        } else {
+            try {
+                if (hit.getParameters().isEmpty()) {
+                    googleAnalyticsClient.sendEventToGoogleAnalytics(
+                            hit.getTrackingId(),
+                            hit.getUserAgent(),
+                            hit.getUnitId(),
+                            hit.getVersionId(),
+                            hit.getKey(),
+                            hit.getValue(),
+                            hit.getDeviceIP());
+                } else {
+                    googleAnalyticsClient.sendEventToGoogleAnalytics(hit);
+                }
+                onAccepted.run();
+            } catch (GoogleAnalyticsClientException | ResourceAccessException | CircuitBreakerOpenException e) {
+                if (retryOrLog(hit, e)) {
+                    onAccepted.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the hit has been spooled or handed to the retry queue, false if it is lost.
+     */
+    private boolean retryOrLog(GoogleAnalyticsHit hit, Throwable failure) {
+        final String payload = GoogleAnalyticsClient.toPayload(hit);
+        if (hitSpool.isEnabled() && RetryPublisher.isRetryable(failure) && hitSpool.append(payload)) {
+            return true;
+        }
+        if (!retryPublisher.retryHit(payload, failure)) {
+            log.error("Problem sending custom client data | Value : {} | Key : {}", hit.getValue(), hit.getKey(), failure);
+            return false;
+        }
+        return true;
+    }
+
+    private GoogleAnalyticsHit toHit(User user, DeviceInfo deviceInfo, KeyPath key, String value, Map<String, String> parameters) {
+        return GoogleAnalyticsHit.builder()
+                .trackingId(user.getGaTrackingId())
+                .userAgent(deviceInfo.getUserAgent())
+                .unitId(deviceInfo.getUnitId())
+                .versionId(deviceInfo.getVersionId())
+                .key(key)
+                .value(value)
+                .deviceIP(deviceInfo.getDeviceIP())
+                .parameters(parameters)
+                .build();
+    }
+
+    @Scheduled(fixedDelayString = "${io.barracks.googleanalytics.aggregation.tick_ms:1000}")
+    public void closeAggregationWindows() {
+        if (numericAggregator.isEnabled()) {
+            sendSummaryHits(numericAggregator.closeDue());
+        }
+    }
+
+    /**
+     * Sends the windows that are still open, their samples are not kept anywhere else.
+     */
+    @Override
+    public void destroy() {
+        if (numericAggregator.isEnabled()) {
+            sendSummaryHits(numericAggregator.closeAll());
+        }
+    }
+
+    private void sendSummaryHits(List<GoogleAnalyticsHit> hits) {
+        final List<PendingHit> pendingHits = new ArrayList<>();
+        for (GoogleAnalyticsHit hit : hits) {
+            try {
+                sendHit(hit, pendingHits, NOTHING);
+            } catch (RuntimeException e) {
+                // There is no message to hand the failure back to
+                retryOrLog(hit, e);
+            }
+        }
+        awaitHits(pendingHits);
+    }
+
+    private void recordEndToEnd(DeviceInfo deviceInfo) {
+        final Date receptionDate = deviceInfo.getReceptionDate();
+        if (receptionDate != null) {
+            pipelineMetrics.recordEndToEnd(System.currentTimeMillis() - receptionDate.getTime());
+        }
+    }
+
+    private void awaitHits(List<PendingHit> pendingHits) {
+        pendingHits.forEach(pendingHit -> {
+            try {
+                pendingHit.getResult().join();
+                pendingHit.getOnAccepted().run();
+            } catch (CompletionException e) {
+                if (retryOrLog(pendingHit.getHit(), e.getCause())) {
+                    pendingHit.getOnAccepted().run();
+                }
             }
         });
     }
+
+    @AllArgsConstructor
+    @Getter
+    private static class PendingHit {
+        private final GoogleAnalyticsHit hit;
+        private final CompletableFuture<Void> result;
+        private final Runnable onAccepted;
+    }
+
+    private static class MessageStats {
+        private int hits;
+        private int filtered;
+        private long sendNanos;
+    }
 }
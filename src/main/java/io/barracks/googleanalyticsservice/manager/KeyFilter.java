@@ -0,0 +1,239 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.manager;
+
+import io.barracks.googleanalyticsservice.model.KeyPath;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Include and exclude patterns over dotted keys, compiled into two tries walked segment by segment.
+ * A segment {@code *} matches any one segment and {@code **} any number of segments, including none.
+ * Patterns starting with {@code !} exclude the keys they match. A key is kept when it matches no exclude pattern
+ * and, if there are include patterns, at least one of them.
+ * <p>
+ * Walking a tree goes through {@link #start()}, {@link #enter(State, String)} for each field and
+ * {@link #mayAccept(State)} to skip the subtrees nothing below can be kept from. Already flattened keys are checked
+ * with {@link #accepts(KeyPath)}, whose answers are memoized for keys from the
+ * {@link io.barracks.googleanalyticsservice.cache.KeyPathTable}.
+ */
+public final class KeyFilter {
+
+    public static final KeyFilter ALL = new KeyFilter(new Node(false), new Node(false), false);
+
+    private static final String ANY_SEGMENT = "*";
+    private static final String ANY_SEGMENTS = "**";
+    private static final String EXCLUDE_PREFIX = "!";
+    private static final int MAX_MEMOIZED_KEYS = 4096;
+    private static final Node[] NO_NODES = new Node[0];
+
+    private final boolean hasIncludes;
+    private final State start;
+    private final ConcurrentMap<KeyPath, Boolean> decisions = new ConcurrentHashMap<>();
+
+    private KeyFilter(Node includes, Node excludes, boolean hasIncludes) {
+        this.hasIncludes = hasIncludes;
+        this.start = new State(closure(NO_NODES, includes), closure(NO_NODES, excludes));
+    }
+
+    /**
+     * @return the filter for the given patterns, {@link #ALL} if there are none. Blank patterns are ignored.
+     */
+    public static KeyFilter compile(Collection<String> patterns) {
+        if (patterns == null || patterns.isEmpty()) {
+            return ALL;
+        }
+        final Node includes = new Node(false);
+        final Node excludes = new Node(false);
+        boolean hasIncludes = false;
+        boolean hasPatterns = false;
+        for (String pattern : patterns) {
+            if (pattern == null || pattern.trim().isEmpty()) {
+                continue;
+            }
+            String path = pattern.trim();
+            final boolean exclude = path.startsWith(EXCLUDE_PREFIX);
+            if (exclude) {
+                path = path.substring(EXCLUDE_PREFIX.length());
+            }
+            Node node = exclude ? excludes : includes;
+            for (String segment : path.split("\\.", -1)) {
+                node = node.child(segment);
+            }
+            node.terminal = true;
+            hasIncludes |= !exclude;
+            hasPatterns = true;
+        }
+        return hasPatterns ? new KeyFilter(includes, excludes, hasIncludes) : ALL;
+    }
+
+    public State start() {
+        return start;
+    }
+
+    public State enter(State state, String name) {
+        if (this == ALL) {
+            return state;
+        }
+        return new State(step(state.includes, name), step(state.excludes, name));
+    }
+
+    /**
+     * @return false when no key at or below the state can be kept, so the subtree does not need to be walked.
+     */
+    public boolean mayAccept(State state) {
+        if (hasIncludes && state.includes.length == 0) {
+            return false;
+        }
+        for (Node node : state.excludes) {
+            if (node.anySegments && node.terminal) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean accepts(State state) {
+        return (!hasIncludes || isTerminal(state.includes)) && !isTerminal(state.excludes);
+    }
+
+    public boolean accepts(KeyPath key) {
+        if (this == ALL) {
+            return true;
+        }
+        final Boolean decision = decisions.get(key);
+        if (decision != null) {
+            return decision;
+        }
+        final String path = key.getPath();
+        State state = start;
+        if (!path.isEmpty()) {
+            int segmentStart = 0;
+            int dot;
+            while ((dot = path.indexOf('.', segmentStart)) >= 0) {
+                state = enter(state, path.substring(segmentStart, dot));
+                segmentStart = dot + 1;
+            }
+            state = enter(state, path.substring(segmentStart));
+        }
+        final boolean accepted = accepts(state);
+        if (key.isEncoded() && decisions.size() < MAX_MEMOIZED_KEYS) {
+            decisions.put(key, accepted);
+        }
+        return accepted;
+    }
+
+    private static boolean isTerminal(Node[] nodes) {
+        for (Node node : nodes) {
+            if (node.terminal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Node[] step(Node[] nodes, String name) {
+        Node[] next = NO_NODES;
+        for (Node node : nodes) {
+            if (node.anySegments) {
+                next = closure(next, node);
+            }
+            final Node child = node.children.get(name);
+            if (child != null) {
+                next = closure(next, child);
+            }
+            if (node.anySegment != null) {
+                next = closure(next, node.anySegment);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Adds the node and, since {@code **} also matches no segment at all, the {@code **} nodes right below it.
+     */
+    private static Node[] closure(Node[] nodes, Node node) {
+        for (Node existing : nodes) {
+            if (existing == node) {
+                return nodes;
+            }
+        }
+        Node[] result = Arrays.copyOf(nodes, nodes.length + 1);
+        result[nodes.length] = node;
+        if (node.anySegmentsChild != null) {
+            result = closure(result, node.anySegmentsChild);
+        }
+        return result;
+    }
+
+    /**
+     * Position in both tries after the segments of a key, immutable so it can be kept on the walker's stack.
+     */
+    public static final class State {
+
+        private final Node[] includes;
+        private final Node[] excludes;
+
+        private State(Node[] includes, Node[] excludes) {
+            this.includes = includes;
+            this.excludes = excludes;
+        }
+    }
+
+    private static final class Node {
+
+        private final boolean anySegments;
+        private final Map<String, Node> children = new HashMap<>();
+        private Node anySegment;
+        private Node anySegmentsChild;
+        private boolean terminal;
+
+        Node(boolean anySegments) {
+            this.anySegments = anySegments;
+        }
+
+        Node child(String segment) {
+            switch (segment) {
+                case ANY_SEGMENT:
+                    if (anySegment == null) {
+                        anySegment = new Node(false);
+                    }
+                    return anySegment;
+                case ANY_SEGMENTS:
+                    if (anySegmentsChild == null) {
+                        anySegmentsChild = new Node(true);
+                    }
+                    return anySegmentsChild;
+                default:
+                    return children.computeIfAbsent(segment, name -> new Node(false));
+            }
+        }
+    }
+}
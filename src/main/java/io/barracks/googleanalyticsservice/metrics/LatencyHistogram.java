@@ -0,0 +1,102 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.metrics;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Wait-free recording of a value distribution. Recording goes to an HdrHistogram {@link Recorder},
+ * quantiles are computed over the last complete window of {@code windowMillis} while count and sum cover the
+ * whole lifetime, which is what a Prometheus summary expects.
+ */
+public class LatencyHistogram {
+
+    private final long highestTrackableValue;
+    private final long windowMillis;
+    private final LongSupplier clock;
+    private final Recorder recorder;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    private Histogram window;
+    private Histogram recycled;
+    private long windowStart;
+
+    public LatencyHistogram(long highestTrackableValue, long windowMillis) {
+        this(highestTrackableValue, windowMillis, System::currentTimeMillis);
+    }
+
+    LatencyHistogram(long highestTrackableValue, long windowMillis, LongSupplier clock) {
+        this.highestTrackableValue = highestTrackableValue;
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+        this.recorder = new Recorder(highestTrackableValue, 2);
+        this.windowStart = clock.getAsLong();
+    }
+
+    public void record(long value) {
+        final long bounded = Math.max(0, Math.min(value, highestTrackableValue));
+        recorder.recordValue(bounded);
+        count.increment();
+        sum.add(bounded);
+    }
+
+    public synchronized Snapshot snapshot() {
+        final long now = clock.getAsLong();
+        if (window == null || now - windowStart >= windowMillis) {
+            final Histogram interval = recorder.getIntervalHistogram(recycled);
+            recycled = window;
+            window = interval;
+            windowStart = now;
+        }
+        return new Snapshot(
+                count.sum(),
+                sum.sum(),
+                window.getValueAtPercentile(50),
+                window.getValueAtPercentile(90),
+                window.getValueAtPercentile(99),
+                window.getValueAtPercentile(99.9),
+                window.getMaxValue()
+        );
+    }
+
+    @AllArgsConstructor
+    @Getter
+    public static class Snapshot {
+        private final long count;
+        private final long sum;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.metrics;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograms of the time spent in each stage between an AMQP delivery and the last Google Analytics hit.
+ * Durations are recorded in microseconds, {@code quantile_window_ms} sets how long quantiles are computed over.
+ * Exposed in /metrics as {@code pipeline.*} and in the Prometheus format by {@link PrometheusEndpoint}.
+ */
+@Component
+public class PipelineMetrics implements PublicMetrics {
+
+    private static final long MAX_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final long MAX_END_TO_END_MICROS = TimeUnit.DAYS.toMicros(1);
+    private static final long MAX_HITS_PER_MESSAGE = 1000000;
+
+    private final long windowMillis;
+    private final LatencyHistogram deserialization;
+    private final LatencyHistogram cachedUserLookup;
+    private final LatencyHistogram remoteUserLookup;
+    private final LatencyHistogram flattening;
+    private final LatencyHistogram hitsPerMessage;
+    private final LatencyHistogram endToEnd;
+    private final ConcurrentMap<String, LatencyHistogram> googleAnalyticsRequests = new ConcurrentHashMap<>();
+    private final LongAdder messages = new LongAdder();
+
+    public PipelineMetrics(@Value("${io.barracks.metrics.quantile_window_ms:60000}") long windowMillis) {
+        this.windowMillis = windowMillis;
+        this.deserialization = new LatencyHistogram(MAX_LATENCY_MICROS, windowMillis);
+        this.cachedUserLookup = new LatencyHistogram(MAX_LATENCY_MICROS, windowMillis);
+        this.remoteUserLookup = new LatencyHistogram(MAX_LATENCY_MICROS, windowMillis);
+        this.flattening = new LatencyHistogram(MAX_LATENCY_MICROS, windowMillis);
+        this.hitsPerMessage = new LatencyHistogram(MAX_HITS_PER_MESSAGE, windowMillis);
+        this.endToEnd = new LatencyHistogram(MAX_END_TO_END_MICROS, windowMillis);
+    }
+
+    public void recordDeserialization(long nanos) {
+        deserialization.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void recordUserLookup(boolean cached, long nanos) {
+        (cached ? cachedUserLookup : remoteUserLookup).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void recordFlattening(long nanos) {
+        flattening.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void recordMessage(int hits) {
+        messages.increment();
+        hitsPerMessage.record(hits);
+    }
+
+    /**
+     * @param status the HTTP status of the response, or {@code error} when there was none.
+     */
+    public void recordGoogleAnalyticsRequest(String status, long nanos) {
+        googleAnalyticsRequests.computeIfAbsent(status, key -> new LatencyHistogram(MAX_LATENCY_MICROS, windowMillis))
+                .record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void recordEndToEnd(long millis) {
+        endToEnd.record(TimeUnit.MILLISECONDS.toMicros(millis));
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("pipeline.messages", messages.sum()));
+        addMetrics(metrics, "pipeline.deserialization", deserialization);
+        addMetrics(metrics, "pipeline.user_lookup.cache", cachedUserLookup);
+        addMetrics(metrics, "pipeline.user_lookup.remote", remoteUserLookup);
+        addMetrics(metrics, "pipeline.flattening", flattening);
+        addMetrics(metrics, "pipeline.hits_per_message", hitsPerMessage);
+        addMetrics(metrics, "pipeline.end_to_end", endToEnd);
+        googleAnalyticsRequests.forEach((status, histogram) -> addMetrics(metrics, "pipeline.googleanalytics." + status, histogram));
+        return metrics;
+    }
+
+    /**
+     * Writes every histogram as a Prometheus summary, durations in seconds.
+     */
+    void writePrometheus(StringBuilder output) {
+        output.append("# TYPE ga_pipeline_messages_total counter\n")
+                .append("ga_pipeline_messages_total ").append(messages.sum()).append('\n');
+        writeSummary(output, "ga_pipeline_deserialization_seconds", "", deserialization.snapshot(), 1e-6);
+        output.append("# TYPE ga_pipeline_user_lookup_seconds summary\n");
+        writeSamples(output, "ga_pipeline_user_lookup_seconds", "source=\"cache\"", cachedUserLookup.snapshot(), 1e-6);
+        writeSamples(output, "ga_pipeline_user_lookup_seconds", "source=\"remote\"", remoteUserLookup.snapshot(), 1e-6);
+        writeSummary(output, "ga_pipeline_flattening_seconds", "", flattening.snapshot(), 1e-6);
+        writeSummary(output, "ga_pipeline_hits_per_message", "", hitsPerMessage.snapshot(), 1);
+        writeSummary(output, "ga_pipeline_end_to_end_seconds", "", endToEnd.snapshot(), 1e-6);
+        output.append("# TYPE ga_pipeline_googleanalytics_request_seconds summary\n");
+        for (Map.Entry<String, LatencyHistogram> request : googleAnalyticsRequests.entrySet()) {
+            writeSamples(output, "ga_pipeline_googleanalytics_request_seconds", "status=\"" + request.getKey() + "\"", request.getValue().snapshot(), 1e-6);
+        }
+    }
+
+    private static void addMetrics(List<Metric<?>> metrics, String name, LatencyHistogram histogram) {
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        metrics.add(new Metric<>(name + ".count", snapshot.getCount()));
+        metrics.add(new Metric<>(name + ".p50", snapshot.getP50()));
+        metrics.add(new Metric<>(name + ".p99", snapshot.getP99()));
+        metrics.add(new Metric<>(name + ".max", snapshot.getMax()));
+    }
+
+    private static void writeSummary(StringBuilder output, String name, String labels, LatencyHistogram.Snapshot snapshot, double scale) {
+        output.append("# TYPE ").append(name).append(" summary\n");
+        writeSamples(output, name, labels, snapshot, scale);
+    }
+
+    private static void writeSamples(StringBuilder output, String name, String labels, LatencyHistogram.Snapshot snapshot, double scale) {
+        final String prefix = labels.isEmpty() ? "" : labels + ",";
+        writeSample(output, name, prefix + "quantile=\"0.5\"", snapshot.getP50() * scale);
+        writeSample(output, name, prefix + "quantile=\"0.9\"", snapshot.getP90() * scale);
+        writeSample(output, name, prefix + "quantile=\"0.99\"", snapshot.getP99() * scale);
+        writeSample(output, name, prefix + "quantile=\"0.999\"", snapshot.getP999() * scale);
+        writeSample(output, name + "_sum", labels, snapshot.getSum() * scale);
+        writeSample(output, name + "_count", labels, snapshot.getCount());
+    }
+
+    private static void writeSample(StringBuilder output, String name, String labels, double value) {
+        output.append(name);
+        if (!labels.isEmpty()) {
+            output.append('{').append(labels).append('}');
+        }
+        output.append(' ').append(value).append('\n');
+    }
+}
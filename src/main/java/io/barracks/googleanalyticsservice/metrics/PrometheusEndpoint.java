@@ -0,0 +1,129 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.metrics;
+
+import lombok.AllArgsConstructor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.endpoint.mvc.AbstractMvcEndpoint;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the pipeline histograms and every other public metric in the Prometheus text format on /prometheus.
+ * Public metrics are exposed as untyped gauges, their names with anything but letters, digits and underscores
+ * replaced by underscores. Metrics named after a tracking id or a user id are exposed as a single family labelled
+ * with the id instead, so that ids neither create a metric each nor collide once their invalid characters are replaced.
+ * Sensitive, as some of the labels are users and tracking ids.
+ */
+@Component
+public class PrometheusEndpoint extends AbstractMvcEndpoint {
+
+    static final String CONTENT_TYPE = "text/plain;version=0.0.4;charset=utf-8";
+    private static final Pattern INVALID_NAME_CHARACTERS = Pattern.compile("[^a-zA-Z0-9_]");
+    private static final List<LabelledFamily> LABELLED_FAMILIES = Arrays.asList(
+            new LabelledFamily(Pattern.compile("^ratelimit\\.throttled\\.(?<id>.+)$"), "ratelimit_tracking_id_throttled", "tracking_id"),
+            new LabelledFamily(Pattern.compile("^sampling\\.(?<id>.+)\\.(sent|dropped)$"), "sampling_tracking_id_$2", "tracking_id"),
+            new LabelledFamily(Pattern.compile("^scheduler\\.tenant\\.(?<id>.+)\\.(depth|lag_ms)$"), "scheduler_tenant_$2", "user_id")
+    );
+
+    private final PipelineMetrics pipelineMetrics;
+    private final Collection<PublicMetrics> publicMetrics;
+
+    @Autowired
+    public PrometheusEndpoint(PipelineMetrics pipelineMetrics, Collection<PublicMetrics> publicMetrics) {
+        super("/prometheus", true);
+        this.pipelineMetrics = pipelineMetrics;
+        this.publicMetrics = publicMetrics;
+    }
+
+    @RequestMapping(method = RequestMethod.GET, produces = CONTENT_TYPE)
+    @ResponseBody
+    public String invoke() {
+        final StringBuilder output = new StringBuilder(4096);
+        pipelineMetrics.writePrometheus(output);
+        // The samples of a family must be written together
+        final Map<String, StringBuilder> samplesByFamily = new LinkedHashMap<>();
+        for (PublicMetrics metrics : publicMetrics) {
+            if (metrics == pipelineMetrics) {
+                continue;
+            }
+            for (Metric<?> metric : metrics.metrics()) {
+                writeSample(samplesByFamily, metric);
+            }
+        }
+        samplesByFamily.values().forEach(output::append);
+        return output.toString();
+    }
+
+    private static void writeSample(Map<String, StringBuilder> samplesByFamily, Metric<?> metric) {
+        for (LabelledFamily family : LABELLED_FAMILIES) {
+            final Matcher matcher = family.pattern.matcher(metric.getName());
+            if (matcher.matches()) {
+                final String id = matcher.group("id");
+                final String name = matcher.replaceFirst(family.name);
+                samplesByFamily.computeIfAbsent(name, key -> new StringBuilder())
+                        .append(name).append('{').append(family.label).append("=\"").append(escapeLabelValue(id)).append("\"} ")
+                        .append(metric.getValue().doubleValue()).append('\n');
+                return;
+            }
+        }
+        final String name = toPrometheusName(metric.getName());
+        samplesByFamily.computeIfAbsent(name, key -> new StringBuilder())
+                .append(name).append(' ').append(metric.getValue().doubleValue()).append('\n');
+    }
+
+    static String toPrometheusName(String name) {
+        return INVALID_NAME_CHARACTERS.matcher(name).replaceAll("_");
+    }
+
+    static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @AllArgsConstructor
+    private static class LabelledFamily {
+        /**
+         * Matches the whole metric name, with the id in the {@code id} group.
+         */
+        private final Pattern pattern;
+        /**
+         * The family name, possibly referring to groups of the pattern.
+         */
+        private final String name;
+        private final String label;
+    }
+}
@@ -25,6 +25,7 @@
 package io.barracks.googleanalyticsservice.model;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -61,6 +62,9 @@ public class DeviceInfo {
 
     private final ObjectNode additionalProperties;
 
+    @JsonIgnore
+    private final FlattenedProperties flattenedAdditionalProperties;
+
     @JsonCreator
     public static DeviceInfo fromJson(
             @JsonProperty("receptionDate") Date receptionDate
@@ -75,6 +79,11 @@ public class DeviceInfo {
         return Optional.ofNullable(additionalProperties).orElse(new ObjectNode(JsonNodeFactory.instance));
     }
 
+    @JsonIgnore
+    public Optional<FlattenedProperties> getFlattenedAdditionalProperties() {
+        return Optional.ofNullable(flattenedAdditionalProperties);
+    }
+
     public Date getReceptionDate() {
         if (this.receptionDate != null) {
             return new Date(receptionDate.getTime());
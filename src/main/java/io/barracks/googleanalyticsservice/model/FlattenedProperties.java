@@ -0,0 +1,81 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.model;
+
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Custom client data already flattened into dotted keys, in document order.
+ */
+@ToString
+@EqualsAndHashCode
+public class FlattenedProperties {
+
+    private final List<KeyPath> keys;
+
+    private final List<String> values;
+
+    private FlattenedProperties(List<KeyPath> keys, List<String> values) {
+        this.keys = Collections.unmodifiableList(keys);
+        this.values = Collections.unmodifiableList(values);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public void forEach(BiConsumer<KeyPath, String> consumer) {
+        for (int i = 0; i < keys.size(); i++) {
+            consumer.accept(keys.get(i), values.get(i));
+        }
+    }
+
+    public static class Builder {
+
+        private final List<KeyPath> keys = new ArrayList<>();
+
+        private final List<String> values = new ArrayList<>();
+
+        public Builder add(KeyPath key, String value) {
+            keys.add(key);
+            values.add(value);
+            return this;
+        }
+
+        public FlattenedProperties build() {
+            return new FlattenedProperties(keys, values);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.model;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Dotted key of a custom client data leaf. Keys handed out by {@link io.barracks.googleanalyticsservice.cache.KeyPathTable}
+ * are shared between messages and carry their form-encoded bytes, ready to be written as the {@code ec} parameter.
+ */
+public final class KeyPath {
+
+    /**
+     * Parent of the top level fields, also the key of custom client data without any field.
+     */
+    public static final KeyPath ROOT = new KeyPath("", new byte[0]);
+
+    private final String path;
+
+    private final byte[] encodedPath;
+
+    private KeyPath(String path, byte[] encodedPath) {
+        this.path = path;
+        this.encodedPath = encodedPath;
+    }
+
+    public static KeyPath of(String path) {
+        return new KeyPath(path, null);
+    }
+
+    public KeyPath child(String name) {
+        return new KeyPath(this == ROOT ? name : path + '.' + name, null);
+    }
+
+    /**
+     * @return the same key with its form-encoded bytes computed.
+     */
+    public KeyPath encoded() {
+        if (encodedPath != null) {
+            return this;
+        }
+        try {
+            return new KeyPath(path, URLEncoder.encode(path, "UTF-8").getBytes(StandardCharsets.US_ASCII));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the form-encoded path, or null if this key has not been {@link #encoded()}. The array must not be modified.
+     */
+    public byte[] getEncodedPath() {
+        return encodedPath;
+    }
+
+    public boolean isEncoded() {
+        return encodedPath != null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof KeyPath && path.equals(((KeyPath) o).path));
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
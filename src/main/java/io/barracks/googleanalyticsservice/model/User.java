@@ -28,16 +28,34 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import lombok.*;
 
+import java.util.List;
+import java.util.Map;
+
 @Builder
 @AllArgsConstructor(access = AccessLevel.PRIVATE)
 @Getter
 @EqualsAndHashCode
-@ToString
+@ToString(exclude = "gaApiSecret")
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class User {
 
     private final String gaTrackingId;
 
+    /**
+     * Include and exclude patterns over the custom client data keys, see {@link io.barracks.googleanalyticsservice.manager.KeyFilter}.
+     */
+    private final List<String> gaKeyFilters;
+
+    /**
+     * Custom client data keys sent as custom dimensions or metrics of a single hit, see {@link io.barracks.googleanalyticsservice.manager.DimensionMapping}.
+     */
+    private final Map<String, String> gaDimensionMapping;
+
+    /**
+     * Measurement Protocol API secret, required to send to a GA4 measurement id. Kept out of {@link #toString()}.
+     */
+    private final String gaApiSecret;
+
     @JsonCreator
     public static User fromJson() {
         return User.builder().build();
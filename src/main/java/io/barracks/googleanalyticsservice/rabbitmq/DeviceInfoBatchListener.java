@@ -0,0 +1,225 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import io.barracks.googleanalyticsservice.manager.GoogleAnalyticsManager;
+import io.barracks.googleanalyticsservice.model.DeviceInfo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects device messages per consumer channel and hands them to {@link GoogleAnalyticsManager} by batches of
+ * {@code batch_size} messages, or whatever arrived within {@code linger_ms} milliseconds.
+ * Full batches are processed on the consumer thread, batches flushed by the linger timeout on a pool of
+ * {@code flush_threads} threads. The batches of a channel are still processed one after the other.
+ * Each batch is acknowledged with a single multiple ack once it has been processed, the container must use manual acks.
+ */
+@Slf4j
+public class DeviceInfoBatchListener implements ChannelAwareMessageListener, DisposableBean {
+
+    private final GoogleAnalyticsManager googleAnalyticsManager;
+    private final MessageConverter messageConverter;
+    private final RetryPublisher retryPublisher;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final ConcurrentMap<Channel, Batch> batches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService flushers;
+
+    public DeviceInfoBatchListener(GoogleAnalyticsManager googleAnalyticsManager, MessageConverter messageConverter, RetryPublisher retryPublisher, int batchSize, long lingerMillis, int flushThreads) {
+        this.googleAnalyticsManager = googleAnalyticsManager;
+        this.messageConverter = messageConverter;
+        this.retryPublisher = retryPublisher;
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerMillis = lingerMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "amqp-batch-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final AtomicInteger flusherNumber = new AtomicInteger();
+        this.flushers = Executors.newFixedThreadPool(Math.max(1, flushThreads), runnable -> {
+            final Thread thread = new Thread(runnable, "amqp-batch-flush-" + flusherNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long checkInterval = Math.max(1, lingerMillis / 2);
+        this.scheduler.scheduleWithFixedDelay(this::flushExpiredBatches, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onMessage(Message message, Channel channel) {
+        final Batch batch = batches.computeIfAbsent(channel, Batch::new);
+        final List<Message> messages;
+        final CompletableFuture<Void> previousFlush;
+        final CompletableFuture<Void> flush = new CompletableFuture<>();
+        synchronized (batch) {
+            batch.add(message);
+            if (batch.size() < batchSize) {
+                return;
+            }
+            messages = batch.detach();
+            previousFlush = batch.chain(flush);
+        }
+        try {
+            previousFlush.join();
+            batch.process(messages);
+        } finally {
+            flush.complete(null);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        scheduler.shutdown();
+        flushers.shutdown();
+    }
+
+    void flushExpiredBatches() {
+        final long now = System.currentTimeMillis();
+        batches.forEach((channel, batch) -> {
+            if (!channel.isOpen()) {
+                // Unacknowledged messages of a closed channel are redelivered by the broker
+                batches.remove(channel, batch);
+                return;
+            }
+            synchronized (batch) {
+                if (batch.size() > 0 && now - batch.getStartTime() >= lingerMillis) {
+                    final List<Message> messages = batch.detach();
+                    final CompletableFuture<Void> flush = new CompletableFuture<>();
+                    batch.chain(flush).whenCompleteAsync((ignored, failure) -> {
+                        try {
+                            batch.process(messages);
+                        } finally {
+                            flush.complete(null);
+                        }
+                    }, flushers);
+                }
+            }
+        });
+    }
+
+    private void retry(Message message, Exception failure) {
+        if (!retryPublisher.retryMessage(message, failure)) {
+            log.error("Error while sending data to google analytics", failure);
+        }
+    }
+
+    private class Batch {
+
+        private final Channel channel;
+        private List<Message> messages = new ArrayList<>(batchSize);
+        private long startTime;
+        private CompletableFuture<Void> lastFlush = CompletableFuture.completedFuture(null);
+
+        Batch(Channel channel) {
+            this.channel = channel;
+        }
+
+        void add(Message message) {
+            if (messages.isEmpty()) {
+                startTime = System.currentTimeMillis();
+            }
+            messages.add(message);
+        }
+
+        int size() {
+            return messages.size();
+        }
+
+        long getStartTime() {
+            return startTime;
+        }
+
+        List<Message> detach() {
+            final List<Message> detached = messages;
+            messages = new ArrayList<>(batchSize);
+            return detached;
+        }
+
+        /**
+         * Makes {@code flush} the last flush of the channel, so that its acks keep the delivery order.
+         *
+         * @return the flush to wait for before processing.
+         */
+        CompletableFuture<Void> chain(CompletableFuture<Void> flush) {
+            final CompletableFuture<Void> previousFlush = lastFlush;
+            lastFlush = flush;
+            return previousFlush;
+        }
+
+        void process(List<Message> messages) {
+            final List<DeviceInfo> deviceInfos = new ArrayList<>(messages.size());
+            final List<Message> deviceMessages = new ArrayList<>(messages.size());
+            for (Message message : messages) {
+                try {
+                    message.getMessageProperties().setInferredArgumentType(DeviceInfo.class);
+                    deviceInfos.add((DeviceInfo) messageConverter.fromMessage(message));
+                    deviceMessages.add(message);
+                } catch (Exception e) {
+                    log.error("Unable to read device message, dropping it", e);
+                }
+            }
+            try {
+                // Failures of a single device are reported in the result, only those devices are retried
+                final Map<DeviceInfo, RuntimeException> failedDevices = googleAnalyticsManager.sendEventsToGoogleAnalytics(deviceInfos);
+                if (failedDevices != null) {
+                    for (int i = 0; i < deviceInfos.size(); i++) {
+                        final RuntimeException failure = failedDevices.get(deviceInfos.get(i));
+                        if (failure != null) {
+                            retry(deviceMessages.get(i), failure);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                // Only reached when the manager fails outside of any single device
+                deviceMessages.forEach(message -> retry(message, e));
+            }
+            final long lastDeliveryTag = messages.get(messages.size() - 1).getMessageProperties().getDeliveryTag();
+            try {
+                channel.basicAck(lastDeliveryTag, true);
+            } catch (IOException e) {
+                log.error("Unable to acknowledge batch up to delivery tag " + lastDeliveryTag, e);
+            }
+        }
+    }
+}
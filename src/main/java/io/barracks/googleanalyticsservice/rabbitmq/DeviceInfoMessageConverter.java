@@ -0,0 +1,217 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.rabbitmq;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.barracks.googleanalyticsservice.cache.KeyPathTable;
+import io.barracks.googleanalyticsservice.metrics.PipelineMetrics;
+import io.barracks.googleanalyticsservice.model.DeviceInfo;
+import io.barracks.googleanalyticsservice.model.FlattenedProperties;
+import io.barracks.googleanalyticsservice.model.KeyPath;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Decodes {@link DeviceInfo} payloads with a streaming parser, the custom client data is flattened while it is read
+ * instead of being materialized as a JSON tree. Any other payload is handed to the delegate converter.
+ */
+@Slf4j
+public class DeviceInfoMessageConverter implements MessageConverter {
+
+    private static final int INITIAL_DEPTH = 8;
+
+    private final ObjectMapper objectMapper;
+    private final MessageConverter delegate;
+    private final KeyPathTable keyPathTable;
+    private final PipelineMetrics pipelineMetrics;
+
+    public DeviceInfoMessageConverter(ObjectMapper objectMapper, MessageConverter delegate, KeyPathTable keyPathTable, PipelineMetrics pipelineMetrics) {
+        this.objectMapper = objectMapper;
+        this.delegate = delegate;
+        this.keyPathTable = keyPathTable;
+        this.pipelineMetrics = pipelineMetrics;
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) throws MessageConversionException {
+        return delegate.toMessage(object, messageProperties);
+    }
+
+    @Override
+    public Object fromMessage(Message message) throws MessageConversionException {
+        if (!DeviceInfo.class.equals(message.getMessageProperties().getInferredArgumentType())) {
+            return delegate.fromMessage(message);
+        }
+        final long start = System.nanoTime();
+        try (JsonParser parser = objectMapper.getFactory().createParser(message.getBody())) {
+            return readDeviceInfo(parser);
+        } catch (IOException e) {
+            throw new MessageConversionException("Failed to convert Message content", e);
+        } finally {
+            pipelineMetrics.recordDeserialization(System.nanoTime() - start);
+        }
+    }
+
+    DeviceInfo readDeviceInfo(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new MessageConversionException("Device info payload is not a JSON object");
+        }
+        final DeviceInfo.DeviceInfoBuilder builder = DeviceInfo.builder();
+        FlattenedProperties additionalProperties = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+            switch (field) {
+                case "unitId":
+                    builder.unitId(readText(parser, token));
+                    break;
+                case "userId":
+                    builder.userId(readText(parser, token));
+                    break;
+                case "segmentId":
+                    builder.segmentId(readText(parser, token));
+                    break;
+                case "versionId":
+                    builder.versionId(readText(parser, token));
+                    break;
+                case "deviceIP":
+                    builder.deviceIP(readText(parser, token));
+                    break;
+                case "userAgent":
+                    builder.userAgent(readText(parser, token));
+                    break;
+                case "receptionDate":
+                    builder.receptionDate(token == JsonToken.VALUE_NULL ? null : objectMapper.readValue(parser, Date.class));
+                    break;
+                case "additionalProperties":
+                    if (token == JsonToken.START_OBJECT) {
+                        additionalProperties = readAdditionalProperties(parser);
+                    } else if (token != JsonToken.VALUE_NULL) {
+                        throw new MessageConversionException("additionalProperties is not a JSON object");
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return builder
+                .flattenedAdditionalProperties(additionalProperties != null ? additionalProperties : FlattenedProperties.builder().add(KeyPath.ROOT, "").build())
+                .build();
+    }
+
+    /**
+     * Mirrors {@link io.barracks.googleanalyticsservice.manager.AdditionalPropertiesFlattener} on the token stream,
+     * the parser is left on the closing token of the custom client data object.
+     */
+    private FlattenedProperties readAdditionalProperties(JsonParser parser) throws IOException {
+        final FlattenedProperties.Builder properties = FlattenedProperties.builder();
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_OBJECT) {
+            return properties.add(KeyPath.ROOT, "").build();
+        }
+
+        KeyPath[] parents = new KeyPath[INITIAL_DEPTH];
+        parents[0] = KeyPath.ROOT;
+        int depth = 0;
+        while (depth >= 0) {
+            if (token == JsonToken.END_OBJECT) {
+                if (--depth >= 0) {
+                    token = parser.nextToken();
+                }
+                continue;
+            }
+            final KeyPath key = keyPathTable.child(parents[depth], parser.getCurrentName());
+
+            final JsonToken value = parser.nextToken();
+            if (value == JsonToken.START_OBJECT) {
+                token = parser.nextToken();
+                if (token == JsonToken.END_OBJECT) {
+                    properties.add(key, "");
+                    token = parser.nextToken();
+                } else {
+                    if (++depth == parents.length) {
+                        parents = Arrays.copyOf(parents, depth * 2);
+                    }
+                    parents[depth] = key;
+                }
+                continue;
+            }
+            if (value == JsonToken.START_ARRAY) {
+                log.error("Value of {} is not of the expected type", key);
+                parser.skipChildren();
+            } else {
+                properties.add(key, readScalar(parser, value));
+            }
+            token = parser.nextToken();
+        }
+        return properties.build();
+    }
+
+    private String readText(JsonParser parser, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (!token.isScalarValue()) {
+            throw new MessageConversionException("Expected a text value for " + parser.getCurrentName());
+        }
+        return parser.getText();
+    }
+
+    /**
+     * Renders a scalar the way {@link com.fasterxml.jackson.databind.JsonNode#asText()} does for the node the tree model would build.
+     */
+    private String readScalar(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_NUMBER_INT:
+                switch (parser.getNumberType()) {
+                    case INT:
+                        return Integer.toString(parser.getIntValue());
+                    case LONG:
+                        return Long.toString(parser.getLongValue());
+                    default:
+                        return parser.getBigIntegerValue().toString();
+                }
+            case VALUE_NUMBER_FLOAT:
+                return Double.toString(parser.getDoubleValue());
+            case VALUE_TRUE:
+                return "true";
+            case VALUE_FALSE:
+                return "false";
+            case VALUE_NULL:
+                return "null";
+            default:
+                return parser.getText();
+        }
+    }
+}
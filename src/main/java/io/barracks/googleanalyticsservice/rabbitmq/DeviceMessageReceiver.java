@@ -24,44 +24,55 @@
 
 package io.barracks.googleanalyticsservice.rabbitmq;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import io.barracks.googleanalyticsservice.manager.GoogleAnalyticsManager;
+import com.rabbitmq.client.Channel;
 import io.barracks.googleanalyticsservice.model.DeviceInfo;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.Exchange;
 import org.springframework.amqp.rabbit.annotation.Queue;
 import org.springframework.amqp.rabbit.annotation.QueueBinding;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Component;
 
-@Component
 @Slf4j
+@Component
 public class DeviceMessageReceiver {
-    private final GoogleAnalyticsManager googleAnalyticsManager;
-    private final ObjectMapper objectMapper;
+
+    public static final String LISTENER_ID = "deviceMessageReceiver";
+
+    private final MessageConverter messageConverter;
+    private final TenantScheduler tenantScheduler;
 
     @Autowired
-    DeviceMessageReceiver(GoogleAnalyticsManager googleAnalyticsManager, ObjectMapper objectMapper) {
-        this.googleAnalyticsManager = googleAnalyticsManager;
-        this.objectMapper = objectMapper;
+    DeviceMessageReceiver(MessageConverter messageConverter, TenantScheduler tenantScheduler) {
+        this.messageConverter = messageConverter;
+        this.tenantScheduler = tenantScheduler;
     }
 
     @RabbitListener(
+            id = LISTENER_ID,
             bindings = @QueueBinding(
                     value = @Queue(value = "${io.barracks.googleanalytics.queuename}", durable = "true", autoDelete = "false"),
                     exchange = @Exchange(value = "${io.barracks.amqp.exchangename}", type = "topic", durable = "true"),
                     key = "${io.barracks.googleanalytics.routingkey}"
             )
     )
-    public void receiveMessage(@Payload DeviceInfo deviceInfo) {
+    /**
+     * The body is read here rather than by the container, so that an unreadable message is still taken off the queue
+     * when the tenant scheduler acknowledges messages manually.
+     */
+    public void receiveMessage(Message message, Channel channel) {
+        final DeviceInfo deviceInfo;
         try {
-            googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
-        } catch (Exception e) {
-            log.error("Error while sending data to google analytics", e);
+            message.getMessageProperties().setInferredArgumentType(DeviceInfo.class);
+            deviceInfo = (DeviceInfo) messageConverter.fromMessage(message);
+        } catch (RuntimeException e) {
+            log.error("Unable to read device message", e);
+            tenantScheduler.discard(message, channel);
+            return;
         }
+        tenantScheduler.submit(deviceInfo, message, channel);
     }
-
-
 }
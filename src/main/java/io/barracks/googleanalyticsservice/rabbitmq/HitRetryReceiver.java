@@ -0,0 +1,69 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.rabbitmq;
+
+import io.barracks.googleanalyticsservice.client.GoogleAnalyticsClient;
+import io.barracks.googleanalyticsservice.client.HitEncoder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sends the hits coming back from their delay queue. The time spent waiting is reported through {@code qt}
+ * so that Google Analytics records the hit when it actually happened.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "io.barracks.amqp.retry.enabled", matchIfMissing = true)
+public class HitRetryReceiver {
+
+    private final GoogleAnalyticsClient googleAnalyticsClient;
+    private final RetryPublisher retryPublisher;
+
+    @Autowired
+    HitRetryReceiver(GoogleAnalyticsClient googleAnalyticsClient, RetryPublisher retryPublisher) {
+        this.googleAnalyticsClient = googleAnalyticsClient;
+        this.retryPublisher = retryPublisher;
+    }
+
+    @RabbitListener(queues = "#{@retryTopology.hitsQueueName}", containerFactory = "retryListenerContainerFactory")
+    public void receiveHit(Message message) {
+        final String payload = new String(message.getBody(), StandardCharsets.US_ASCII);
+        final Object firstFailure = message.getMessageProperties().getHeaders().get(RetryPublisher.FIRST_FAILURE_HEADER);
+        final long queueTime = firstFailure instanceof Number ? System.currentTimeMillis() - ((Number) firstFailure).longValue() : 0;
+        try {
+            googleAnalyticsClient.sendPayloadToGoogleAnalytics(HitEncoder.withQueueTime(payload, Math.max(0, queueTime)));
+        } catch (RuntimeException e) {
+            if (!retryPublisher.retryHit(message, e)) {
+                log.error("Problem sending retried hit | Payload : {}", payload, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.rabbitmq;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.util.Collection;
+import java.util.Properties;
+import java.util.function.Supplier;
+
+/**
+ * Raises the number of consumers of the device queue with its depth, one more consumer per
+ * {@code messages_per_consumer} waiting messages, between the container minimum and maximum.
+ * The container still scales up on its own when consumers stay busy and back down when they idle.
+ */
+@Slf4j
+public class ListenerConcurrencyScaler {
+
+    private final AmqpAdmin amqpAdmin;
+    private final Supplier<Collection<MessageListenerContainer>> containers;
+    private final String queueName;
+    private final int minConsumers;
+    private final int maxConsumers;
+    private final int messagesPerConsumer;
+    private int currentConsumers;
+
+    public ListenerConcurrencyScaler(AmqpAdmin amqpAdmin, Supplier<Collection<MessageListenerContainer>> containers, String queueName, int minConsumers, int maxConsumers, int messagesPerConsumer) {
+        this.amqpAdmin = amqpAdmin;
+        this.containers = containers;
+        this.queueName = queueName;
+        this.minConsumers = minConsumers;
+        this.maxConsumers = maxConsumers;
+        this.messagesPerConsumer = Math.max(1, messagesPerConsumer);
+        this.currentConsumers = minConsumers;
+    }
+
+    @Scheduled(fixedDelayString = "${io.barracks.amqp.listener.scaling.interval_ms:5000}")
+    public void scale() {
+        final Properties queueProperties = amqpAdmin.getQueueProperties(queueName);
+        if (queueProperties == null) {
+            return;
+        }
+        final int depth = ((Number) queueProperties.get(RabbitAdmin.QUEUE_MESSAGE_COUNT)).intValue();
+        final int target = Math.min(maxConsumers, minConsumers + depth / messagesPerConsumer);
+        if (target == currentConsumers) {
+            return;
+        }
+        log.debug("Queue {} holds {} messages, scaling from {} to {} consumers", queueName, depth, currentConsumers, target);
+        for (MessageListenerContainer container : containers.get()) {
+            if (container instanceof SimpleMessageListenerContainer) {
+                ((SimpleMessageListenerContainer) container).setConcurrentConsumers(target);
+            }
+        }
+        currentConsumers = target;
+    }
+
+    int getCurrentConsumers() {
+        return currentConsumers;
+    }
+}
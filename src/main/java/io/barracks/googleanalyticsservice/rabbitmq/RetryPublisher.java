@@ -0,0 +1,141 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.rabbitmq;
+
+import io.barracks.googleanalyticsservice.client.TransientFailures;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Re-routes failed work to the delay queue of its next attempt, or to the parking queue once
+ * {@code max_attempts} is reached. Publishing is all it does, the consumer thread never waits for the delay.
+ * Only {@link TransientFailures transient failures} are retried.
+ */
+@Slf4j
+@Component
+public class RetryPublisher {
+
+    static final String ATTEMPT_HEADER = "x-barracks-attempt";
+    static final String FIRST_FAILURE_HEADER = "x-barracks-first-failure";
+
+    private final RabbitTemplate rabbitTemplate;
+    private final RetryTopology retryTopology;
+    private final boolean enabled;
+
+    @Autowired
+    public RetryPublisher(
+            RabbitTemplate rabbitTemplate,
+            RetryTopology retryTopology,
+            @Value("${io.barracks.amqp.retry.enabled:true}") boolean enabled
+    ) {
+        this.rabbitTemplate = rabbitTemplate;
+        this.retryTopology = retryTopology;
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return false when the failure is not retried and the device message should be considered lost.
+     */
+    public boolean retryMessage(Message message, Throwable failure) {
+        if (!enabled || !isRetryable(failure)) {
+            return false;
+        }
+        reroute(message, retryTopology.getQueueName());
+        return true;
+    }
+
+    /**
+     * Retries a hit that failed for the first time, {@code payload} is its form-encoded body.
+     *
+     * @return false when the failure is not retried and the hit should be considered lost.
+     */
+    public boolean retryHit(String payload, Throwable failure) {
+        if (!enabled || !isRetryable(failure)) {
+            return false;
+        }
+        final Message message = MessageBuilder.withBody(payload.getBytes(StandardCharsets.US_ASCII))
+                .setContentType(MessageProperties.CONTENT_TYPE_TEXT_PLAIN)
+                .setHeader(FIRST_FAILURE_HEADER, System.currentTimeMillis())
+                .build();
+        reroute(message, retryTopology.getHitsQueueName());
+        return true;
+    }
+
+    /**
+     * Retries a hit received from the hits retry queue that failed again.
+     */
+    public boolean retryHit(Message message, Throwable failure) {
+        if (!enabled || !isRetryable(failure)) {
+            return false;
+        }
+        reroute(message, retryTopology.getHitsQueueName());
+        return true;
+    }
+
+    /**
+     * Sends a device message back to the main queue after the initial delay. Unlike a retry, it does not count as an
+     * attempt: the message did not fail, it was only postponed.
+     */
+    public void deferMessage(Message message) {
+        rabbitTemplate.send("", retryTopology.getDeferralQueueName(), message);
+    }
+
+    /**
+     * Parks a device message that can never be processed, such as one whose body cannot be read.
+     */
+    public void parkMessage(Message message) {
+        log.warn("Parking unprocessable message in {}", retryTopology.getParkingQueueName(retryTopology.getQueueName()));
+        rabbitTemplate.send("", retryTopology.getParkingQueueName(retryTopology.getQueueName()), message);
+    }
+
+    public static boolean isRetryable(Throwable failure) {
+        return TransientFailures.isTransient(failure);
+    }
+
+    static int getAttempt(Message message) {
+        final Object attempt = message.getMessageProperties().getHeaders().get(ATTEMPT_HEADER);
+        return attempt instanceof Number ? ((Number) attempt).intValue() : 0;
+    }
+
+    private void reroute(Message message, String targetQueueName) {
+        final int attempt = getAttempt(message) + 1;
+        message.getMessageProperties().setHeader(ATTEMPT_HEADER, attempt);
+        if (attempt > retryTopology.getMaxAttempts()) {
+            log.warn("Giving up after {} attempts, parking message in {}", attempt - 1, retryTopology.getParkingQueueName(targetQueueName));
+            rabbitTemplate.send("", retryTopology.getParkingQueueName(targetQueueName), message);
+        } else {
+            log.debug("Retrying message in {} ms (attempt {})", retryTopology.getDelay(attempt), attempt);
+            rabbitTemplate.send("", retryTopology.getDelayQueueName(targetQueueName, attempt), message);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.rabbitmq;
+
+import lombok.Getter;
+import org.springframework.amqp.core.Queue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Names and declares the queues used to retry failed work.
+ * Attempt {@code n} waits in the {@code <target>.retry.<n>} delay queue for
+ * {@code initial_delay_ms * multiplier^(n-1)} milliseconds, the broker then dead-letters it back to its target queue.
+ * Work that still fails after {@code max_attempts} attempts is parked in {@code <target>.parking}.
+ * Device messages are retried through the main queue, single hits through {@code <main queue>.hits}.
+ */
+@Getter
+public class RetryTopology {
+
+    private final String queueName;
+    private final String hitsQueueName;
+    private final String deferralQueueName;
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final int multiplier;
+
+    public RetryTopology(String queueName, int maxAttempts, long initialDelayMillis, int multiplier) {
+        this.queueName = queueName;
+        this.hitsQueueName = queueName + ".hits";
+        this.deferralQueueName = queueName + ".deferred";
+        this.maxAttempts = Math.max(0, maxAttempts);
+        this.initialDelayMillis = Math.max(1, initialDelayMillis);
+        this.multiplier = Math.max(1, multiplier);
+    }
+
+    public long getDelay(int attempt) {
+        long delay = initialDelayMillis;
+        for (int i = 1; i < attempt; i++) {
+            delay *= multiplier;
+        }
+        return delay;
+    }
+
+    public String getDelayQueueName(String targetQueueName, int attempt) {
+        return targetQueueName + ".retry." + attempt;
+    }
+
+    public String getParkingQueueName(String targetQueueName) {
+        return targetQueueName + ".parking";
+    }
+
+    /**
+     * The main queue is declared by its listener, every other queue of the topology is returned here.
+     */
+    public List<Queue> getQueues() {
+        final List<Queue> queues = new ArrayList<>(2 * maxAttempts + 4);
+        queues.add(new Queue(hitsQueueName, true, false, false));
+        queues.add(new Queue(deferralQueueName, true, false, false, delayArguments(initialDelayMillis, queueName)));
+        for (String target : new String[]{queueName, hitsQueueName}) {
+            for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+                queues.add(new Queue(getDelayQueueName(target, attempt), true, false, false, delayArguments(getDelay(attempt), target)));
+            }
+            queues.add(new Queue(getParkingQueueName(target), true, false, false));
+        }
+        return queues;
+    }
+
+    private static Map<String, Object> delayArguments(long delayMillis, String targetQueueName) {
+        final Map<String, Object> arguments = new HashMap<>();
+        arguments.put("x-message-ttl", (int) Math.min(Integer.MAX_VALUE, delayMillis));
+        arguments.put("x-dead-letter-exchange", "");
+        arguments.put("x-dead-letter-routing-key", targetQueueName);
+        return arguments;
+    }
+}
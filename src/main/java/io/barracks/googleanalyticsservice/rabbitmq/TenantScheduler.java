@@ -0,0 +1,400 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import io.barracks.googleanalyticsservice.manager.GoogleAnalyticsManager;
+import io.barracks.googleanalyticsservice.model.DeviceInfo;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Processes device messages in fair shares between users, so that a user flooding the queue only delays its own
+ * messages. Each user gets its own queue of at most {@code max_depth} messages, and worker threads serve the users
+ * with messages waiting in deficit round-robin: each turn, a user gets as many messages as its weight, 1 unless
+ * configured in {@code weights} as a comma separated list of {@code userId=weight}.
+ * <p>
+ * Messages are acknowledged once processed, the listener container must use manual acks. Queued messages are
+ * therefore redelivered by the broker if the service stops before processing them, and their total is bounded by
+ * the consumers prefetch, which {@code max_depth} must stay below for a user's queue to ever fill up. It defaults to
+ * a quarter of the prefetch. A message of a user whose queue is full is deferred through the deferral queue without
+ * counting as a retry attempt, the listener thread never waits for a user's queue to drain.
+ * When disabled, messages are processed right away on the listener thread.
+ */
+@Slf4j
+@Component
+public class TenantScheduler implements DisposableBean, PublicMetrics {
+
+    private static final int DEFAULT_WEIGHT = 1;
+
+    private final GoogleAnalyticsManager googleAnalyticsManager;
+    private final RetryPublisher retryPublisher;
+    private final boolean enabled;
+    private final int maxDepth;
+    private final int metricsMaxTenants;
+    private final long shutdownTimeoutMillis;
+    private final Map<String, Integer> weights = new HashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Map<String, Tenant> tenants = new HashMap<>();
+    private final ArrayDeque<Tenant> activeTenants = new ArrayDeque<>();
+    private int queued = 0;
+    private boolean running = true;
+
+    private final ExecutorService workers;
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder deferred = new LongAdder();
+
+    @Autowired
+    public TenantScheduler(
+            GoogleAnalyticsManager googleAnalyticsManager,
+            RetryPublisher retryPublisher,
+            @Value("${io.barracks.amqp.scheduler.enabled:false}") boolean enabled,
+            @Value("${io.barracks.amqp.scheduler.workers:0}") int workers,
+            @Value("${io.barracks.amqp.scheduler.max_depth:0}") int maxDepth,
+            @Value("${io.barracks.amqp.listener.prefetch:50}") int prefetch,
+            @Value("${io.barracks.amqp.scheduler.weights:}") String weights,
+            @Value("${io.barracks.amqp.scheduler.metrics_max_tenants:10}") int metricsMaxTenants,
+            @Value("${io.barracks.amqp.scheduler.shutdown_timeout_ms:10000}") long shutdownTimeoutMillis
+    ) {
+        this(
+                googleAnalyticsManager,
+                retryPublisher,
+                enabled,
+                enabled ? (workers > 0 ? workers : Runtime.getRuntime().availableProcessors() * 4) : 0,
+                enabled ? resolveMaxDepth(maxDepth, prefetch) : maxDepth,
+                weights,
+                metricsMaxTenants,
+                shutdownTimeoutMillis
+        );
+    }
+
+    static int resolveMaxDepth(int maxDepth, int prefetch) {
+        if (maxDepth <= 0) {
+            return Math.max(1, prefetch / 4);
+        }
+        if (maxDepth >= prefetch) {
+            throw new IllegalArgumentException("Invalid scheduler max_depth " + maxDepth + ", it must stay below the listener prefetch " + prefetch);
+        }
+        return maxDepth;
+    }
+
+    /**
+     * @param workerCount the number of worker threads to start, none when 0.
+     */
+    TenantScheduler(
+            GoogleAnalyticsManager googleAnalyticsManager,
+            RetryPublisher retryPublisher,
+            boolean enabled,
+            int workerCount,
+            int maxDepth,
+            String weights,
+            int metricsMaxTenants,
+            long shutdownTimeoutMillis
+    ) {
+        this.googleAnalyticsManager = googleAnalyticsManager;
+        this.retryPublisher = retryPublisher;
+        this.enabled = enabled;
+        this.maxDepth = Math.max(1, maxDepth);
+        this.metricsMaxTenants = Math.max(0, metricsMaxTenants);
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        for (String entry : StringUtils.commaDelimitedListToStringArray(weights)) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            final String[] userIdAndWeight = entry.trim().split("=", 2);
+            if (userIdAndWeight.length != 2 || Integer.parseInt(userIdAndWeight[1].trim()) < 1) {
+                throw new IllegalArgumentException("Invalid scheduler weight '" + entry + "', expected userId=weight with a positive weight");
+            }
+            this.weights.put(userIdAndWeight[0].trim(), Integer.parseInt(userIdAndWeight[1].trim()));
+        }
+        if (workerCount > 0) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+                final Thread thread = new Thread(runnable, "tenant-scheduler-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (int i = 0; i < workerCount; i++) {
+                this.workers.execute(this::work);
+            }
+        } else {
+            this.workers = null;
+        }
+    }
+
+    public void submit(DeviceInfo deviceInfo, Message message, Channel channel) {
+        if (!enabled) {
+            process(deviceInfo, message);
+            return;
+        }
+        final String userId = deviceInfo.getUserId();
+        final Task task = new Task(deviceInfo, message, channel, System.currentTimeMillis());
+        final Admission admission = enqueue(userId, task);
+        if (admission == Admission.FULL) {
+            deferred.increment();
+            try {
+                retryPublisher.deferMessage(message);
+                acknowledge(task);
+            } catch (AmqpException e) {
+                log.error("Unable to defer device message " + task.getDeliveryTag() + ", dropping it", e);
+                drop(channel, task.getDeliveryTag());
+            }
+        }
+        // Once stopped the message is left unacknowledged, the broker redelivers it when the consumer channel closes
+    }
+
+    /**
+     * Takes a message that can never be processed off the queue. With manual acks nothing else would, it is parked
+     * then acknowledged, or dropped when it cannot even be parked. When disabled the container acknowledges it.
+     */
+    public void discard(Message message, Channel channel) {
+        if (!enabled) {
+            return;
+        }
+        final long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        try {
+            retryPublisher.parkMessage(message);
+            channel.basicAck(deliveryTag, false);
+        } catch (AmqpException | IOException e) {
+            log.error("Unable to park device message " + deliveryTag + ", dropping it", e);
+            drop(channel, deliveryTag);
+        }
+    }
+
+    private void process(DeviceInfo deviceInfo, Message message) {
+        try {
+            googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+        } catch (Exception e) {
+            if (!retryPublisher.retryMessage(message, e)) {
+                log.error("Error while sending data to google analytics", e);
+            }
+        }
+    }
+
+    Admission enqueue(String userId, Task task) {
+        lock.lock();
+        try {
+            if (!running) {
+                return Admission.STOPPED;
+            }
+            Tenant tenant = tenants.get(userId);
+            if (tenant == null) {
+                tenant = new Tenant(userId, weights.getOrDefault(userId, DEFAULT_WEIGHT));
+                tenants.put(userId, tenant);
+                activeTenants.addLast(tenant);
+            } else if (tenant.tasks.size() >= maxDepth) {
+                return Admission.FULL;
+            }
+            tenant.tasks.addLast(task);
+            queued++;
+            notEmpty.signal();
+            return Admission.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next task in deficit round-robin order, or null once stopped and drained.
+     */
+    Task take() {
+        lock.lock();
+        try {
+            while (activeTenants.isEmpty()) {
+                if (!running) {
+                    return null;
+                }
+                notEmpty.awaitUninterruptibly();
+            }
+            final Tenant tenant = activeTenants.peekFirst();
+            if (tenant.deficit < 1) {
+                tenant.deficit += tenant.weight;
+            }
+            final Task task = tenant.tasks.pollFirst();
+            tenant.deficit--;
+            if (tenant.tasks.isEmpty()) {
+                // An idle user does not keep its turn nor its unused share
+                activeTenants.pollFirst();
+                tenants.remove(tenant.userId);
+            } else if (tenant.deficit < 1) {
+                activeTenants.pollFirst();
+                activeTenants.addLast(tenant);
+            }
+            queued--;
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        Task task;
+        while ((task = take()) != null) {
+            try {
+                process(task.deviceInfo, task.message);
+                acknowledge(task);
+            } catch (AmqpException e) {
+                // The failure could not be handed over to the retry queue
+                log.error("Unable to retry device message " + task.getDeliveryTag() + ", dropping it", e);
+                drop(task.channel, task.getDeliveryTag());
+            }
+            dispatched.increment();
+        }
+    }
+
+    private static void acknowledge(Task task) {
+        try {
+            task.channel.basicAck(task.getDeliveryTag(), false);
+        } catch (IOException e) {
+            log.error("Unable to acknowledge device message " + task.getDeliveryTag(), e);
+        }
+    }
+
+    private static void drop(Channel channel, long deliveryTag) {
+        try {
+            channel.basicReject(deliveryTag, false);
+        } catch (IOException e) {
+            log.error("Unable to reject device message " + deliveryTag, e);
+        }
+    }
+
+    /**
+     * Stops taking new messages and processes the ones already queued, for at most {@code shutdown_timeout_ms}.
+     * Messages still queued after that are not acknowledged, the broker redelivers them.
+     */
+    @Override
+    public void destroy() throws InterruptedException {
+        if (workers == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        workers.shutdown();
+        if (!workers.awaitTermination(shutdownTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            log.warn("Leaving the device messages still queued after {} ms to the broker", shutdownTimeoutMillis);
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Per user metrics are only reported for the {@code metrics_max_tenants} users with the most queued messages.
+     */
+    @Override
+    public Collection<Metric<?>> metrics() {
+        if (!enabled) {
+            return Collections.emptyList();
+        }
+        final long now = System.currentTimeMillis();
+        final Collection<Metric<?>> metrics = new ArrayList<>();
+        lock.lock();
+        try {
+            long maxLag = 0;
+            for (Tenant tenant : activeTenants) {
+                maxLag = Math.max(maxLag, tenant.lag(now));
+            }
+            metrics.add(new Metric<>("scheduler.queued", queued));
+            metrics.add(new Metric<>("scheduler.tenants", activeTenants.size()));
+            metrics.add(new Metric<>("scheduler.lag_ms", maxLag));
+            final List<Tenant> deepest = new ArrayList<>(activeTenants);
+            deepest.sort(Comparator.comparingInt((Tenant tenant) -> tenant.tasks.size()).reversed());
+            for (Tenant tenant : deepest.subList(0, Math.min(metricsMaxTenants, deepest.size()))) {
+                metrics.add(new Metric<>("scheduler.tenant." + tenant.userId + ".depth", tenant.tasks.size()));
+                metrics.add(new Metric<>("scheduler.tenant." + tenant.userId + ".lag_ms", tenant.lag(now)));
+            }
+        } finally {
+            lock.unlock();
+        }
+        metrics.add(new Metric<>("scheduler.dispatched", dispatched.sum()));
+        metrics.add(new Metric<>("scheduler.deferred", deferred.sum()));
+        return metrics;
+    }
+
+    enum Admission {
+        QUEUED, FULL, STOPPED
+    }
+
+    @AllArgsConstructor
+    @Getter
+    static class Task {
+        private final DeviceInfo deviceInfo;
+        private final Message message;
+        private final Channel channel;
+        private final long enqueuedAt;
+
+        long getDeliveryTag() {
+            return message.getMessageProperties().getDeliveryTag();
+        }
+    }
+
+    private static class Tenant {
+        private final String userId;
+        private final int weight;
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        private int deficit;
+
+        Tenant(String userId, int weight) {
+            this.userId = userId;
+            this.weight = weight;
+        }
+
+        long lag(long now) {
+            return now - tasks.peekFirst().enqueuedAt;
+        }
+    }
+}
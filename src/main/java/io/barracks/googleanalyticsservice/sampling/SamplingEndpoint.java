@@ -0,0 +1,102 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.sampling;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.mvc.AbstractMvcEndpoint;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads and changes the {@link UnitSampler} rates on /sampling. Changes are not persisted, a restart goes back to the
+ * configured rates.
+ * <ul>
+ * <li>{@code GET /sampling} lists the default rate and the rate of each tracking id</li>
+ * <li>{@code PUT /sampling?rate=} changes the default rate</li>
+ * <li>{@code PUT /sampling/{trackingId}?rate=} changes the rate of a tracking id</li>
+ * <li>{@code DELETE /sampling/{trackingId}} puts a tracking id back on the default rate</li>
+ * </ul>
+ */
+@Component
+public class SamplingEndpoint extends AbstractMvcEndpoint {
+
+    private final UnitSampler unitSampler;
+
+    @Autowired
+    public SamplingEndpoint(UnitSampler unitSampler) {
+        super("/sampling", true);
+        this.unitSampler = unitSampler;
+    }
+
+    @RequestMapping(method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public Map<String, Object> invoke() {
+        final Map<String, Object> result = new LinkedHashMap<>();
+        result.put("defaultRate", unitSampler.getDefaultRate());
+        result.put("rates", unitSampler.getRates());
+        return result;
+    }
+
+    @RequestMapping(method = RequestMethod.PUT, produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<?> setDefaultRate(@RequestParam double rate) {
+        if (!isValid(rate)) {
+            return ResponseEntity.badRequest().build();
+        }
+        unitSampler.setDefaultRate(rate);
+        return ResponseEntity.ok(invoke());
+    }
+
+    @RequestMapping(value = "/{trackingId:.+}", method = RequestMethod.PUT, produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<?> setRate(@PathVariable String trackingId, @RequestParam double rate) {
+        if (!isValid(rate)) {
+            return ResponseEntity.badRequest().build();
+        }
+        unitSampler.setRate(trackingId, rate);
+        return ResponseEntity.ok(invoke());
+    }
+
+    @RequestMapping(value = "/{trackingId:.+}", method = RequestMethod.DELETE)
+    @ResponseBody
+    public ResponseEntity<?> removeRate(@PathVariable String trackingId) {
+        unitSampler.removeRate(trackingId);
+        return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+    }
+
+    private static boolean isValid(double rate) {
+        return rate >= 0 && rate <= 1;
+    }
+}
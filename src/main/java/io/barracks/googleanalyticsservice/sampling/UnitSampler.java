@@ -0,0 +1,163 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.sampling;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a share of the devices of each tracking id. The decision only depends on a hash of the unit id, so a device
+ * is either always sent or never sent, and the devices kept at a rate are also kept at any higher rate.
+ * Rates start from {@code sampling.rates}, a comma separated list of {@code trackingId=rate}, and can be changed at
+ * runtime through {@link SamplingEndpoint}. Tracking ids without a rate use {@code sampling.default_rate}.
+ */
+@Component
+public class UnitSampler implements PublicMetrics {
+
+    private static final long ALL = 1L << 32;
+
+    private final ConcurrentMap<String, Long> thresholds = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counters> counters = new ConcurrentHashMap<>();
+    private final Counters total = new Counters();
+    private volatile long defaultThreshold;
+
+    @Autowired
+    public UnitSampler(
+            @Value("${io.barracks.googleanalytics.sampling.default_rate:1.0}") double defaultRate,
+            @Value("${io.barracks.googleanalytics.sampling.rates:}") String rates
+    ) {
+        this.defaultThreshold = toThreshold(defaultRate);
+        for (String entry : StringUtils.commaDelimitedListToStringArray(rates)) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            final String[] trackingIdAndRate = entry.trim().split("=", 2);
+            if (trackingIdAndRate.length != 2) {
+                throw new IllegalArgumentException("Invalid sampling rate '" + entry + "', expected trackingId=rate");
+            }
+            setRate(trackingIdAndRate[0].trim(), Double.parseDouble(trackingIdAndRate[1].trim()));
+        }
+    }
+
+    /**
+     * @return true if the unit is kept, always true when the unit id is unknown. Does not count the decision.
+     */
+    public boolean isSampled(String trackingId, String unitId) {
+        final Long threshold = thresholds.get(trackingId);
+        final long limit = threshold != null ? threshold : defaultThreshold;
+        return limit >= ALL || unitId == null || bucket(unitId) < limit;
+    }
+
+    public void record(String trackingId, boolean sampled) {
+        total.record(sampled);
+        if (thresholds.containsKey(trackingId)) {
+            counters.computeIfAbsent(trackingId, id -> new Counters()).record(sampled);
+        }
+    }
+
+    public void setRate(String trackingId, double rate) {
+        thresholds.put(trackingId, toThreshold(rate));
+    }
+
+    public void removeRate(String trackingId) {
+        thresholds.remove(trackingId);
+        counters.remove(trackingId);
+    }
+
+    public void setDefaultRate(double rate) {
+        defaultThreshold = toThreshold(rate);
+    }
+
+    public double getDefaultRate() {
+        return toRate(defaultThreshold);
+    }
+
+    /**
+     * @return the rate of each tracking id that does not use the default one, sorted by tracking id.
+     */
+    public Map<String, Double> getRates() {
+        final Map<String, Double> rates = new TreeMap<>();
+        thresholds.forEach((trackingId, threshold) -> rates.put(trackingId, toRate(threshold)));
+        return Collections.unmodifiableMap(rates);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final Collection<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>("sampling.sent", total.sent.sum()));
+        metrics.add(new Metric<>("sampling.dropped", total.dropped.sum()));
+        counters.forEach((trackingId, trackingIdCounters) -> {
+            metrics.add(new Metric<>("sampling." + trackingId + ".sent", trackingIdCounters.sent.sum()));
+            metrics.add(new Metric<>("sampling." + trackingId + ".dropped", trackingIdCounters.dropped.sum()));
+        });
+        return metrics;
+    }
+
+    /**
+     * Murmur3 finalizer over {@link String#hashCode()}, stable across restarts and spreading similar unit ids.
+     */
+    static long bucket(String unitId) {
+        int hash = unitId.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash & 0xFFFFFFFFL;
+    }
+
+    private static long toThreshold(double rate) {
+        if (Double.isNaN(rate) || rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Sampling rate must be between 0 and 1, got " + rate);
+        }
+        return Math.round(rate * ALL);
+    }
+
+    private static double toRate(long threshold) {
+        return (double) threshold / ALL;
+    }
+
+    private static class Counters {
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+
+        void record(boolean sampled) {
+            (sampled ? sent : dropped).increment();
+        }
+    }
+}
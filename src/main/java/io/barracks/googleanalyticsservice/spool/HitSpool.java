@@ -0,0 +1,355 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.spool;
+
+import io.barracks.googleanalyticsservice.client.CircuitBreaker;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only local spool for encoded hits, used while Google Analytics is degraded, that is while its circuit breaker
+ * is not closed. A single failed hit is spooled on its own without diverting the rest of the traffic.
+ * <p>
+ * Hits are appended to memory-mapped segment files of {@code segment_bytes} bytes. A record is
+ * {@code [length][enqueue time][crc32][payload]}, its length is written last so a record is only visible once complete.
+ * The writer always starts a new segment after a restart, segments beyond {@code max_bytes} are dropped oldest first.
+ * The read position is only persisted by {@link #commit()}, through an atomic rename of the offset file, so a crash
+ * replays at most the hits read since the last commit.
+ */
+@Slf4j
+@Component
+public class HitSpool implements DisposableBean, PublicMetrics {
+
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String OFFSET_FILE = "offset";
+    private static final int HEADER_BYTES = 16;
+
+    private final CircuitBreaker circuitBreaker;
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer;
+    private long readSegment;
+    private int readPosition;
+    private MappedByteBuffer readBuffer;
+    private long readBufferSegment = -1;
+
+    private final AtomicLong appendedHits = new AtomicLong();
+    private final AtomicLong rejectedHits = new AtomicLong();
+    private final AtomicLong droppedSegments = new AtomicLong();
+
+    @Autowired
+    public HitSpool(
+            @Qualifier("googleAnalyticsCircuitBreaker") CircuitBreaker circuitBreaker,
+            @Value("${io.barracks.googleanalytics.spool.enabled:false}") boolean enabled,
+            @Value("${io.barracks.googleanalytics.spool.directory:${java.io.tmpdir}/googleanalytics-spool}") String directory,
+            @Value("${io.barracks.googleanalytics.spool.segment_bytes:8388608}") int segmentBytes,
+            @Value("${io.barracks.googleanalytics.spool.max_bytes:536870912}") long maxBytes
+    ) {
+        this.circuitBreaker = circuitBreaker;
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.segmentBytes = Math.max(HEADER_BYTES * 64, segmentBytes);
+        this.maxSegments = (int) Math.max(2, maxBytes / this.segmentBytes);
+        if (enabled) {
+            try {
+                open();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open hit spool in " + directory, e);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Whether hits should go to the spool instead of Google Analytics.
+     */
+    public boolean isDegraded() {
+        return enabled && circuitBreaker.getState() != CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * @return false if the spool is disabled or the hit could not be written, the caller still owns the hit.
+     */
+    public boolean append(String payload) {
+        return append(payload, System.currentTimeMillis());
+    }
+
+    /**
+     * Appends a hit that has been waiting since {@code enqueuedAt}, its {@code qt} will be computed from that time.
+     */
+    public boolean append(String payload, long enqueuedAt) {
+        if (!enabled) {
+            return false;
+        }
+        final byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0 || HEADER_BYTES + bytes.length > segmentBytes) {
+            rejectedHits.incrementAndGet();
+            return false;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        synchronized (this) {
+            try {
+                if (writeBuffer.position() + HEADER_BYTES + bytes.length > segmentBytes) {
+                    rotate();
+                }
+                final int position = writeBuffer.position();
+                writeBuffer.putLong(position + 4, enqueuedAt);
+                writeBuffer.putInt(position + 12, (int) crc.getValue());
+                writeBuffer.position(position + HEADER_BYTES);
+                writeBuffer.put(bytes);
+                writeBuffer.putInt(position, bytes.length);
+            } catch (IOException e) {
+                log.error("Unable to write to hit spool", e);
+                rejectedHits.incrementAndGet();
+                return false;
+            }
+        }
+        appendedHits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return the oldest hit that has not been consumed, or null when the spool is empty. It stays there until
+     * {@link #advance()} is called.
+     */
+    public synchronized SpooledHit peek() {
+        if (!enabled) {
+            return null;
+        }
+        while (true) {
+            final Map.Entry<Long, Path> segment = segments.ceilingEntry(readSegment);
+            if (segment == null) {
+                return null;
+            }
+            if (segment.getKey() != readSegment) {
+                readSegment = segment.getKey();
+                readPosition = 0;
+            }
+            final ByteBuffer buffer = readBuffer(segment);
+            final SpooledHit hit = buffer == null ? null : readRecord(buffer, readPosition);
+            if (hit != null) {
+                return hit;
+            }
+            if (readSegment == writeSegment) {
+                return null;
+            }
+            // Everything in this segment has been read, or the rest of it was torn by a crash
+            deleteSegment(readSegment);
+            readSegment++;
+            readPosition = 0;
+        }
+    }
+
+    /**
+     * Consumes the hit returned by the last {@link #peek()}.
+     */
+    public synchronized void advance() {
+        final SpooledHit hit = peek();
+        if (hit != null) {
+            readPosition += HEADER_BYTES + hit.getLength();
+        }
+    }
+
+    /**
+     * Persists the read position and flushes the current segment.
+     */
+    public synchronized void commit() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            writeBuffer.force();
+            final Path temporary = directory.resolve(OFFSET_FILE + ".tmp");
+            Files.write(temporary, (readSegment + ":" + readPosition).getBytes(StandardCharsets.US_ASCII));
+            Files.move(temporary, directory.resolve(OFFSET_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Unable to persist hit spool offset", e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        commit();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final int segmentCount;
+        synchronized (this) {
+            segmentCount = segments.size();
+        }
+        return Arrays.asList(
+                new Metric<>("spool.degraded", isDegraded() ? 1 : 0),
+                new Metric<>("spool.segments", segmentCount),
+                new Metric<>("spool.segments.dropped", droppedSegments.get()),
+                new Metric<>("spool.hits.appended", appendedHits.get()),
+                new Metric<>("spool.hits.rejected", rejectedHits.get())
+        );
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unexpected file {} in hit spool", file);
+                }
+            }
+        }
+        readSegment = segments.isEmpty() ? 0 : segments.firstKey();
+        readPosition = 0;
+        final Path offsetFile = directory.resolve(OFFSET_FILE);
+        if (Files.exists(offsetFile)) {
+            final String[] offset = new String(Files.readAllBytes(offsetFile), StandardCharsets.US_ASCII).trim().split(":");
+            readSegment = Long.parseLong(offset[0]);
+            readPosition = Integer.parseInt(offset[1]);
+        }
+        while (!segments.isEmpty() && segments.firstKey() < readSegment) {
+            deleteSegment(segments.firstKey());
+        }
+        writeSegment = segments.isEmpty() ? readSegment : segments.lastKey();
+        rotate();
+    }
+
+    private void rotate() throws IOException {
+        if (writeBuffer != null) {
+            writeBuffer.force();
+        }
+        writeSegment++;
+        while (segments.size() >= maxSegments) {
+            final long oldest = segments.firstKey();
+            log.warn("Hit spool is full, dropping segment {}", oldest);
+            droppedSegments.incrementAndGet();
+            deleteSegment(oldest);
+        }
+        final Path file = directory.resolve(writeSegment + SEGMENT_SUFFIX);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            writeBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        segments.put(writeSegment, file);
+    }
+
+    private ByteBuffer readBuffer(Map.Entry<Long, Path> segment) {
+        if (segment.getKey() == writeSegment) {
+            return writeBuffer;
+        }
+        if (readBufferSegment != segment.getKey()) {
+            try (FileChannel channel = FileChannel.open(segment.getValue(), StandardOpenOption.READ)) {
+                readBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                readBufferSegment = segment.getKey();
+            } catch (IOException e) {
+                log.error("Unable to read hit spool segment {}, skipping it", segment.getValue(), e);
+                return null;
+            }
+        }
+        return readBuffer;
+    }
+
+    private static SpooledHit readRecord(ByteBuffer buffer, int position) {
+        if (position + HEADER_BYTES > buffer.limit()) {
+            return null;
+        }
+        final int length = buffer.getInt(position);
+        if (length <= 0 || position + HEADER_BYTES + length > buffer.limit()) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        final ByteBuffer record = buffer.duplicate();
+        record.position(position + HEADER_BYTES);
+        record.get(bytes);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((int) crc.getValue() != buffer.getInt(position + 12)) {
+            return null;
+        }
+        return new SpooledHit(new String(bytes, StandardCharsets.UTF_8), buffer.getLong(position + 4), length);
+    }
+
+    private void deleteSegment(long segment) {
+        final Path file = segments.remove(segment);
+        if (segment == readBufferSegment) {
+            // The mapping itself is released by the garbage collector, the file can go away before that on Linux
+            readBuffer = null;
+            readBufferSegment = -1;
+        }
+        if (segment == readSegment) {
+            readPosition = 0;
+        }
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.error("Unable to delete hit spool segment {}", file, e);
+            }
+        }
+    }
+
+    @AllArgsConstructor
+    @Getter
+    public static class SpooledHit {
+        private final String payload;
+        private final long enqueuedAt;
+        private final int length;
+    }
+}
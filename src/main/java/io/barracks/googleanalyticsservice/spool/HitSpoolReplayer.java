@@ -0,0 +1,161 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.spool;
+
+import io.barracks.googleanalyticsservice.client.GoogleAnalyticsBatchSender;
+import io.barracks.googleanalyticsservice.client.HitEncoder;
+import io.barracks.googleanalyticsservice.client.HitRateLimiter;
+import io.barracks.googleanalyticsservice.rabbitmq.RetryPublisher;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drains the {@link HitSpool} in the background, each hit with a {@code qt} matching the time it spent in the spool.
+ * Hits are replayed through the {@link GoogleAnalyticsBatchSender} {@code COMMIT_INTERVAL} at a time, the read position
+ * being committed once they have all been answered. While the Google Analytics circuit breaker is not closed, only the
+ * oldest spooled hit is sent as a probe. A hit that fails again goes back to the end of the spool and ends the run.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "io.barracks.googleanalytics.spool.enabled")
+public class HitSpoolReplayer implements PublicMetrics {
+
+    /**
+     * Google Analytics ignores hits with a queue time above 4 hours.
+     */
+    static final long MAX_QUEUE_TIME_MILLIS = TimeUnit.HOURS.toMillis(4);
+    static final int COMMIT_INTERVAL = 100;
+    /**
+     * Throttled hits go back to the end of the spool, a run stops after that many to avoid going round in circles.
+     */
+    static final int MAX_REQUEUED_PER_RUN = 1000;
+
+    private final HitSpool hitSpool;
+    private final GoogleAnalyticsBatchSender googleAnalyticsBatchSender;
+    private final HitRateLimiter hitRateLimiter;
+    private final AtomicLong replayedHits = new AtomicLong();
+    private final AtomicLong expiredHits = new AtomicLong();
+    private final AtomicLong failedHits = new AtomicLong();
+
+    @Autowired
+    public HitSpoolReplayer(HitSpool hitSpool, GoogleAnalyticsBatchSender googleAnalyticsBatchSender, HitRateLimiter hitRateLimiter) {
+        this.hitSpool = hitSpool;
+        this.googleAnalyticsBatchSender = googleAnalyticsBatchSender;
+        this.hitRateLimiter = hitRateLimiter;
+    }
+
+    @Scheduled(fixedDelayString = "${io.barracks.googleanalytics.spool.replay_interval_ms:5000}")
+    public void replay() {
+        int requeued = 0;
+        boolean drained = false;
+        while (!drained && requeued < MAX_REQUEUED_PER_RUN) {
+            final int chunkSize = hitSpool.isDegraded() ? 1 : COMMIT_INTERVAL;
+            final List<PendingReplay> pendingReplays = new ArrayList<>(chunkSize);
+            int read = 0;
+            HitSpool.SpooledHit hit = null;
+            while (read < chunkSize && requeued < MAX_REQUEUED_PER_RUN && (hit = hitSpool.peek()) != null) {
+                final long queueTime = System.currentTimeMillis() - hit.getEnqueuedAt();
+                if (queueTime > MAX_QUEUE_TIME_MILLIS) {
+                    expiredHits.incrementAndGet();
+                } else if (isThrottled(hit)) {
+                    hitSpool.append(hit.getPayload(), hit.getEnqueuedAt());
+                    requeued++;
+                } else {
+                    pendingReplays.add(new PendingReplay(
+                            hit,
+                            googleAnalyticsBatchSender.sendPayload(HitEncoder.withQueueTime(hit.getPayload(), Math.max(0, queueTime)))
+                    ));
+                    read++;
+                }
+                hitSpool.advance();
+            }
+            drained = hit == null;
+            googleAnalyticsBatchSender.flush();
+            if (!awaitReplays(pendingReplays)) {
+                drained = true;
+            }
+            hitSpool.commit();
+        }
+    }
+
+    /**
+     * @return false if Google Analytics is still unavailable.
+     */
+    private boolean awaitReplays(List<PendingReplay> pendingReplays) {
+        boolean available = true;
+        for (PendingReplay pendingReplay : pendingReplays) {
+            try {
+                pendingReplay.result.join();
+                replayedHits.incrementAndGet();
+            } catch (CompletionException e) {
+                if (RetryPublisher.isRetryable(e.getCause())) {
+                    log.debug("Google Analytics is still unavailable, keeping spooled hit", e.getCause());
+                    hitSpool.append(pendingReplay.hit.getPayload(), pendingReplay.hit.getEnqueuedAt());
+                    available = false;
+                } else {
+                    log.error("Problem sending spooled hit | Payload : {}", pendingReplay.hit.getPayload(), e.getCause());
+                    failedHits.incrementAndGet();
+                }
+            }
+        }
+        return available;
+    }
+
+    private boolean isThrottled(HitSpool.SpooledHit hit) {
+        final String trackingId = HitEncoder.trackingId(hit.getPayload());
+        // Over the limit, a spooled hit can only wait for more room, whatever the policy
+        return trackingId != null && hitRateLimiter.acquire(trackingId) != HitRateLimiter.Decision.SEND;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>("spool.hits.replayed", replayedHits.get()),
+                new Metric<>("spool.hits.expired", expiredHits.get()),
+                new Metric<>("spool.hits.failed", failedHits.get())
+        );
+    }
+
+    @AllArgsConstructor
+    private static class PendingReplay {
+        private final HitSpool.SpooledHit hit;
+        private final CompletableFuture<Void> result;
+    }
+}
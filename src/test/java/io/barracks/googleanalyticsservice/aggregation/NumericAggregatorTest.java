@@ -0,0 +1,146 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.aggregation;
+
+import io.barracks.googleanalyticsservice.manager.KeyFilter;
+import io.barracks.googleanalyticsservice.model.GoogleAnalyticsHit;
+import io.barracks.googleanalyticsservice.model.KeyPath;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class NumericAggregatorTest {
+
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+    private final GoogleAnalyticsHit template = GoogleAnalyticsHit.builder()
+            .trackingId("UA-1").userAgent("ua").unitId("unit").versionId("v1").deviceIP("ip")
+            .build();
+
+    @Test
+    public void add_whenValueIsNotNumeric_shouldNotAggregate() {
+        // Given
+        final NumericAggregator aggregator = new NumericAggregator(true, 60000, 1000, 1000, KeyFilter.ALL, now::get);
+
+        // Then
+        assertThat(aggregator.add(template, KeyPath.of("battery.brand"), "Apple")).isFalse();
+        assertThat(aggregator.add(template, KeyPath.of("battery.damaged"), "false")).isFalse();
+        assertThat(aggregator.add(template, KeyPath.of("version"), "1.2.3")).isFalse();
+        assertThat(aggregator.add(template, KeyPath.of("battery.level"), null)).isFalse();
+        assertThat(aggregator.closeAll()).isEmpty();
+    }
+
+    @Test
+    public void add_whenKeyIsNotAggregated_shouldNotAggregate() {
+        // Given
+        final NumericAggregator aggregator = new NumericAggregator(true, 60000, 1000, 1000,
+                KeyFilter.compile(Collections.singletonList("battery.*")), now::get);
+
+        // Then
+        assertThat(aggregator.add(template, KeyPath.of("battery.level"), "50")).isTrue();
+        assertThat(aggregator.add(template, KeyPath.of("howMuch"), "3.5")).isFalse();
+    }
+
+    @Test
+    public void closeDue_shouldSummarizeWindowsOnceTheyAreOver() {
+        // Given
+        final NumericAggregator aggregator = new NumericAggregator(true, 60000, 1000, 1000, KeyFilter.ALL, now::get);
+        aggregator.add(template, KeyPath.of("battery.level"), "50");
+        now.addAndGet(10000);
+        aggregator.add(template, KeyPath.of("battery.level"), "40");
+        aggregator.add(template, KeyPath.of("battery.useCases.time"), "12.5");
+        aggregator.add(template.toBuilder().unitId("unit2").build(), KeyPath.of("battery.level"), "-3");
+        now.addAndGet(20000);
+        aggregator.add(template, KeyPath.of("battery.level"), "45");
+
+        // When
+        now.addAndGet(29000);
+        final List<GoogleAnalyticsHit> early = aggregator.closeDue();
+        now.addAndGet(1000);
+        final List<GoogleAnalyticsHit> first = aggregator.closeDue();
+        now.addAndGet(10000);
+        final List<GoogleAnalyticsHit> second = aggregator.closeDue();
+
+        // Then
+        assertThat(early).isEmpty();
+        assertThat(first).containsExactly(template.toBuilder()
+                .key("battery.level")
+                .value("45")
+                .parameter("el", "min=40,max=50,mean=45,count=3")
+                .parameter("ev", "3")
+                .build());
+        assertThat(second).hasSize(2);
+        assertThat(second).extracting(GoogleAnalyticsHit::getUnitId).containsOnly("unit", "unit2");
+        assertThat(second).filteredOn(hit -> hit.getUnitId().equals("unit2")).extracting(GoogleAnalyticsHit::getValue).containsExactly("-3");
+        assertThat(second).filteredOn(hit -> hit.getUnitId().equals("unit")).extracting(hit -> hit.getParameters().get("el"))
+                .containsExactly("min=12.5,max=12.5,mean=12.5,count=1");
+    }
+
+    @Test
+    public void closeDue_whenTicksWereMissed_shouldStillCloseWindows() {
+        // Given
+        final NumericAggregator aggregator = new NumericAggregator(true, 5000, 1000, 1000, KeyFilter.ALL, now::get);
+        aggregator.add(template, KeyPath.of("battery.level"), "50");
+
+        // When
+        now.addAndGet(3_600_000);
+        final List<GoogleAnalyticsHit> hits = aggregator.closeDue();
+
+        // Then
+        assertThat(hits).extracting(GoogleAnalyticsHit::getKey).containsExactly(KeyPath.of("battery.level"));
+        assertThat(aggregator.closeAll()).isEmpty();
+    }
+
+    @Test
+    public void add_whenStripeIsFull_shouldNotAggregateNewSeries() {
+        // Given
+        final NumericAggregator aggregator = new NumericAggregator(true, 60000, 1000, 16, KeyFilter.ALL, now::get);
+        int aggregated = 0;
+
+        // When
+        for (int i = 0; i < 200; i++) {
+            if (aggregator.add(template, KeyPath.of("key" + i), "1")) {
+                aggregated++;
+            }
+        }
+
+        // Then
+        assertThat(aggregated).isLessThan(200);
+        assertThat(aggregator.closeAll()).hasSize(aggregated);
+        assertThat(aggregator.metrics()).extracting("name", "value")
+                .contains(tuple("aggregation.overflow", (long) (200 - aggregated)));
+    }
+
+    @Test
+    public void format_shouldWriteIntegralValuesWithoutFraction() {
+        assertThat(NumericAggregator.format(50)).isEqualTo("50");
+        assertThat(NumericAggregator.format(-3)).isEqualTo("-3");
+        assertThat(NumericAggregator.format(12.4)).isEqualTo("12.4");
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.cache;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChangeSuppressionCacheTest {
+
+    private final AtomicLong clock = new AtomicLong(TimeUnit.DAYS.toMillis(17000));
+    private final ChangeSuppressionCache changeSuppressionCache = new ChangeSuppressionCache(true, 6, 1024 * 1024, clock::get);
+
+    @Test
+    public void hasChanged_whenValueIsUnchanged_shouldSkipIt() {
+        // Given
+        final ChangeSuppressionCache.UnitFingerprints fingerprints = changeSuppressionCache.get("unit");
+        fingerprints.recordSent("battery.brand", "Apple");
+
+        // When
+        final boolean unchanged = fingerprints.hasChanged("battery.brand", "Apple");
+        final boolean changed = fingerprints.hasChanged("battery.brand", "Samsung");
+        final boolean otherUnit = changeSuppressionCache.get("other").hasChanged("battery.brand", "Samsung");
+
+        // Then
+        assertThat(unchanged).isFalse();
+        assertThat(changed).isTrue();
+        assertThat(otherUnit).isTrue();
+    }
+
+    @Test
+    public void hasChanged_whenResendIntervalElapsed_shouldSendAgain() {
+        // Given
+        final ChangeSuppressionCache.UnitFingerprints fingerprints = changeSuppressionCache.get("unit");
+        fingerprints.recordSent("battery.brand", "Apple");
+
+        // When
+        clock.addAndGet(TimeUnit.HOURS.toMillis(5));
+        final boolean beforeResend = fingerprints.hasChanged("battery.brand", "Apple");
+        clock.addAndGet(TimeUnit.HOURS.toMillis(1));
+        final boolean afterResend = fingerprints.hasChanged("battery.brand", "Apple");
+
+        // Then
+        assertThat(beforeResend).isFalse();
+        assertThat(afterResend).isTrue();
+    }
+
+    @Test
+    public void hasChanged_whenValueWasNotRecordedAsSent_shouldNotSkipIt() {
+        // Given
+        final ChangeSuppressionCache.UnitFingerprints fingerprints = changeSuppressionCache.get("unit");
+        fingerprints.hasChanged("battery.brand", "Apple");
+
+        // When
+        final boolean changed = fingerprints.hasChanged("battery.brand", "Apple");
+
+        // Then
+        assertThat(changed).isTrue();
+    }
+
+    @Test
+    public void update_whenUnitHasManyKeys_shouldKeepAllOfThem() {
+        // Given
+        final ChangeSuppressionCache.UnitFingerprints fingerprints = changeSuppressionCache.get("unit");
+        for (int i = 0; i < 100; i++) {
+            fingerprints.recordSent("key" + i, "value");
+        }
+
+        // When
+        changeSuppressionCache.update("unit", fingerprints);
+
+        // Then
+        final ChangeSuppressionCache.UnitFingerprints stored = changeSuppressionCache.get("unit");
+        for (int i = 0; i < 100; i++) {
+            assertThat(stored.hasChanged("key" + i, "value")).isFalse();
+        }
+    }
+
+    @Test
+    public void recordSent_whenKeysAreSentAgainAfterGrowing_shouldUpdateTheirValues() {
+        // Given
+        final ChangeSuppressionCache.UnitFingerprints fingerprints = changeSuppressionCache.get("unit");
+        for (int i = 0; i < 100; i++) {
+            fingerprints.recordSent("key" + i, "value");
+        }
+
+        // When
+        for (int i = 0; i < 100; i += 2) {
+            fingerprints.recordSent("key" + i, "other");
+        }
+
+        // Then
+        for (int i = 0; i < 100; i++) {
+            assertThat(fingerprints.hasChanged("key" + i, "other")).isEqualTo(i % 2 != 0);
+        }
+    }
+
+    @Test
+    public void get_whenBudgetIsExceeded_shouldEvictUnits() {
+        // Given
+        final ChangeSuppressionCache smallCache = new ChangeSuppressionCache(true, 6, 10 * 1024, clock::get);
+
+        // When
+        for (int i = 0; i < 10000; i++) {
+            smallCache.get("unit" + i).recordSent("key", "value");
+        }
+        smallCache.cleanUp();
+
+        // Then
+        final long units = smallCache.metrics().stream()
+                .filter(metric -> metric.getName().equals("delta.units"))
+                .findFirst().get().getValue().longValue();
+        assertThat(units).isLessThan(10000);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.cache;
+
+import io.barracks.googleanalyticsservice.model.KeyPath;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KeyPathTableTest {
+
+    @Test
+    public void child_whenCalledTwice_shouldReturnSameEncodedKey() throws Exception {
+        // Given
+        final KeyPathTable keyPathTable = new KeyPathTable(100, 150);
+
+        // When
+        final KeyPath first = keyPathTable.child(keyPathTable.child(KeyPath.ROOT, "battery"), "use cases");
+        final KeyPath second = keyPathTable.child(keyPathTable.child(KeyPath.ROOT, "battery"), "use cases");
+
+        // Then
+        assertThat(second).isSameAs(first);
+        assertThat(first.getPath()).isEqualTo("battery.use cases");
+        assertThat(new String(first.getEncodedPath(), StandardCharsets.US_ASCII)).isEqualTo(URLEncoder.encode("battery.use cases", "UTF-8"));
+        assertThat(getMetric(keyPathTable, "keypaths.hit")).isEqualTo(2L);
+        assertThat(getMetric(keyPathTable, "keypaths.miss")).isEqualTo(2L);
+    }
+
+    @Test
+    public void child_whenNameTooLongOrParentNotInTable_shouldNotStoreKey() {
+        // Given
+        final KeyPathTable keyPathTable = new KeyPathTable(100, 5);
+
+        // When
+        final KeyPath longName = keyPathTable.child(KeyPath.ROOT, "battery");
+        final KeyPath child = keyPathTable.child(longName, "level");
+
+        // Then
+        assertThat(longName.isEncoded()).isFalse();
+        assertThat(child.isEncoded()).isFalse();
+        assertThat(child.getPath()).isEqualTo("battery.level");
+        assertThat(getMetric(keyPathTable, "keypaths.size")).isEqualTo(0L);
+    }
+
+    @Test
+    public void child_whenMoreKeysThanMaxSize_shouldEvict() {
+        // Given
+        final KeyPathTable keyPathTable = new KeyPathTable(10, 150);
+
+        // When
+        for (int i = 0; i < 1000; i++) {
+            keyPathTable.child(KeyPath.ROOT, "key" + i);
+        }
+        keyPathTable.cleanUp();
+
+        // Then
+        assertThat(getMetric(keyPathTable, "keypaths.size")).isLessThanOrEqualTo(10L);
+        assertThat(getMetric(keyPathTable, "keypaths.eviction")).isGreaterThan(0L);
+    }
+
+    private long getMetric(KeyPathTable keyPathTable, String name) {
+        return keyPathTable.metrics().stream()
+                .filter(metric -> metric.getName().equals(name))
+                .map(Metric::getValue)
+                .findFirst()
+                .orElseThrow(IllegalStateException::new)
+                .longValue();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.cache;
+
+import io.barracks.googleanalyticsservice.client.AuthorizationServiceClient;
+import io.barracks.googleanalyticsservice.client.TransientFailures;
+import io.barracks.googleanalyticsservice.client.exception.AuthorizationServiceClientException;
+import io.barracks.googleanalyticsservice.metrics.PipelineMetrics;
+import io.barracks.googleanalyticsservice.model.User;
+import io.barracks.googleanalyticsservice.utils.UserUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class UserCacheTest {
+
+    @Mock
+    private AuthorizationServiceClient authorizationServiceClient;
+
+    @Mock
+    private PipelineMetrics pipelineMetrics;
+
+    @Test
+    public void getUserById_whenCalledTwice_shouldCallClientOnce() {
+        // Given
+        final UserCache userCache = new UserCache(authorizationServiceClient, pipelineMetrics, 100, 600, 60);
+        final String userId = UUID.randomUUID().toString();
+        final User user = UserUtils.getUser();
+        doReturn(user).when(authorizationServiceClient).getUserById(userId);
+
+        // When
+        final User first = userCache.getUserById(userId);
+        final User second = userCache.getUserById(userId);
+
+        // Then
+        verify(authorizationServiceClient, times(1)).getUserById(userId);
+        assertThat(first).isEqualTo(user);
+        assertThat(second).isEqualTo(user);
+        assertThat(getMetric(userCache, "cache.users.hit")).isEqualTo(1L);
+        assertThat(getMetric(userCache, "cache.users.miss")).isEqualTo(1L);
+        verify(pipelineMetrics).recordUserLookup(eq(false), anyLong());
+        verify(pipelineMetrics).recordUserLookup(eq(true), anyLong());
+    }
+
+    @Test
+    public void getCachedUser_shouldNeitherLookUpNorCountTheUser() {
+        // Given
+        final UserCache userCache = new UserCache(authorizationServiceClient, pipelineMetrics, 100, 600, 60);
+        final String userId = UUID.randomUUID().toString();
+        final User user = UserUtils.getUser();
+        doReturn(user).when(authorizationServiceClient).getUserById(userId);
+
+        // When
+        final User beforeLookup = userCache.getCachedUser(userId);
+        userCache.getUserById(userId);
+        final User afterLookup = userCache.getCachedUser(userId);
+
+        // Then
+        verify(authorizationServiceClient, times(1)).getUserById(userId);
+        assertThat(beforeLookup).isNull();
+        assertThat(afterLookup).isEqualTo(user);
+        assertThat(getMetric(userCache, "cache.users.hit")).isEqualTo(0L);
+        assertThat(getMetric(userCache, "cache.users.miss")).isEqualTo(1L);
+    }
+
+    @Test
+    public void getUserById_whenUserHasNoTrackingIdAndShortTtlExpired_shouldCallClientAgain() {
+        // Given
+        final UserCache userCache = new UserCache(authorizationServiceClient, pipelineMetrics, 100, 600, 0);
+        final String userId = UUID.randomUUID().toString();
+        final User user = User.builder().gaTrackingId(null).build();
+        doReturn(user).when(authorizationServiceClient).getUserById(userId);
+
+        // When
+        userCache.getUserById(userId);
+        userCache.getUserById(userId);
+
+        // Then
+        verify(authorizationServiceClient, times(2)).getUserById(userId);
+    }
+
+    @Test
+    public void getUserById_whenClientReturnsNothing_shouldNotCacheIt() {
+        // Given
+        final UserCache userCache = new UserCache(authorizationServiceClient, pipelineMetrics, 100, 600, 60);
+        final String userId = UUID.randomUUID().toString();
+        doReturn(null).when(authorizationServiceClient).getUserById(userId);
+
+        // When
+        final User result = userCache.getUserById(userId);
+        userCache.getUserById(userId);
+
+        // Then
+        assertThat(result).isNull();
+        verify(authorizationServiceClient, times(2)).getUserById(userId);
+    }
+
+    @Test
+    public void getUserById_whenConcurrentMisses_shouldCallClientOnce() throws Exception {
+        // Given
+        final UserCache userCache = new UserCache(authorizationServiceClient, pipelineMetrics, 100, 600, 60);
+        final String userId = UUID.randomUUID().toString();
+        final User user = UserUtils.getUser();
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            return user;
+        }).when(authorizationServiceClient).getUserById(userId);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        // When
+        final List<Future<User>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(() -> userCache.getUserById(userId)));
+        }
+        Thread.sleep(200);
+        release.countDown();
+
+        // Then
+        for (Future<User> result : results) {
+            assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo(user);
+        }
+        executor.shutdown();
+        verify(authorizationServiceClient, times(1)).getUserById(userId);
+    }
+
+    @Test
+    public void getUserById_whenSharedLookupFails_shouldThrowClientExceptionToEveryCaller() throws Exception {
+        // Given
+        final UserCache userCache = new UserCache(authorizationServiceClient, pipelineMetrics, 100, 600, 60);
+        final String userId = UUID.randomUUID().toString();
+        final AuthorizationServiceClientException exception = new AuthorizationServiceClientException(new HttpServerErrorException(HttpStatus.BAD_GATEWAY));
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            throw exception;
+        }).when(authorizationServiceClient).getUserById(userId);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        // When
+        final List<Future<User>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(() -> userCache.getUserById(userId)));
+        }
+        Thread.sleep(200);
+        release.countDown();
+
+        // Then
+        for (Future<User> result : results) {
+            assertThatThrownBy(() -> result.get(5, TimeUnit.SECONDS))
+                    .isInstanceOf(ExecutionException.class)
+                    .hasCauseExactlyInstanceOf(AuthorizationServiceClientException.class);
+        }
+        executor.shutdown();
+        verify(authorizationServiceClient, times(1)).getUserById(userId);
+    }
+
+    @Test
+    public void getUserById_whenSharedLookupFailsWithoutResponse_shouldThrowOwnTransientClientExceptionToWaiters() throws Exception {
+        // Given
+        final UserCache userCache = new UserCache(authorizationServiceClient, pipelineMetrics, 100, 600, 60);
+        final String userId = UUID.randomUUID().toString();
+        final ResourceAccessException exception = new ResourceAccessException("timeout");
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            throw exception;
+        }).when(authorizationServiceClient).getUserById(userId);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        // When
+        final List<Future<User>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(executor.submit(() -> userCache.getUserById(userId)));
+        }
+        Thread.sleep(200);
+        release.countDown();
+
+        // Then
+        final List<Throwable> failures = new ArrayList<>();
+        for (Future<User> result : results) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                failures.add(e.getCause());
+            }
+        }
+        executor.shutdown();
+        assertThat(failures).hasSize(4).doesNotHaveDuplicates().containsOnlyOnce(exception);
+        failures.stream()
+                .filter(failure -> failure != exception)
+                .forEach(failure -> {
+                    assertThat(failure).isExactlyInstanceOf(AuthorizationServiceClientException.class);
+                    assertThat(TransientFailures.isTransient(failure)).isTrue();
+                });
+        verify(authorizationServiceClient, times(1)).getUserById(userId);
+    }
+
+    private long getMetric(UserCache userCache, String name) {
+        return userCache.metrics().stream()
+                .filter(metric -> metric.getName().equals(name))
+                .map(Metric::getValue)
+                .findFirst()
+                .orElseThrow(IllegalStateException::new)
+                .longValue();
+    }
+}
@@ -27,12 +27,15 @@ package io.barracks.googleanalyticsservice.client;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.barracks.commons.util.Endpoint;
 import io.barracks.googleanalyticsservice.client.exception.AuthorizationServiceClientException;
+import io.barracks.googleanalyticsservice.config.CircuitBreakerConfig;
+import io.barracks.googleanalyticsservice.config.HttpClientConfig;
 import io.barracks.googleanalyticsservice.model.User;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.web.client.RestClientTest;
+import org.springframework.context.annotation.Import;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
@@ -51,6 +54,7 @@ import static org.springframework.test.web.client.response.MockRestResponseCreat
 import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
 
 @RunWith(SpringRunner.class)
+@Import({HttpClientConfig.class, CircuitBreakerConfig.class})
 @RestClientTest(AuthorizationServiceClient.class)
 public class AuthorizationServiceClientTest {
 
@@ -0,0 +1,152 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.client;
+
+import io.barracks.googleanalyticsservice.client.exception.AuthorizationServiceClientException;
+import io.barracks.googleanalyticsservice.client.exception.CircuitBreakerOpenException;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CircuitBreakerTest {
+
+    private final AtomicLong clock = new AtomicLong(1000);
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker("test", true, 50, 10, 4, 5000, 2, clock::get);
+
+    @Test
+    public void call_whenFailureRateReachesThreshold_shouldOpenAndFailFast() {
+        // Given
+        succeed();
+        succeed();
+        fail(new ResourceAccessException("timeout"));
+        fail(new ResourceAccessException("timeout"));
+
+        // When / Then
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThatThrownBy(this::succeed).isInstanceOf(CircuitBreakerOpenException.class);
+        assertThat(circuitBreaker.getRejectedCalls()).isEqualTo(1);
+    }
+
+    @Test
+    public void call_whenFailuresAreNotTransient_shouldStayClosed() {
+        // Given
+        for (int i = 0; i < 10; i++) {
+            fail(new AuthorizationServiceClientException(new HttpClientErrorException(HttpStatus.NOT_FOUND)));
+        }
+
+        // When / Then
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(circuitBreaker.getFailureRate()).isEqualTo(0);
+    }
+
+    @Test
+    public void call_whenOpenDurationElapsedAndProbesSucceed_shouldClose() {
+        // Given
+        openBreaker();
+        clock.addAndGet(5000);
+
+        // When
+        succeed();
+        final CircuitBreaker.State afterFirstProbe = circuitBreaker.getState();
+        succeed();
+
+        // Then
+        assertThat(afterFirstProbe).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(circuitBreaker.getTransitions()).isEqualTo(3);
+    }
+
+    @Test
+    public void call_whenProbeFails_shouldOpenAgain() {
+        // Given
+        openBreaker();
+        clock.addAndGet(5000);
+
+        // When
+        fail(new ResourceAccessException("timeout"));
+
+        // Then
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThatThrownBy(this::succeed).isInstanceOf(CircuitBreakerOpenException.class);
+    }
+
+    @Test
+    public void call_whenHalfOpen_shouldOnlyLetConfiguredProbesThrough() {
+        // Given
+        openBreaker();
+        clock.addAndGet(5000);
+
+        // When
+        circuitBreaker.acquirePermission();
+        circuitBreaker.acquirePermission();
+
+        // Then
+        assertThatThrownBy(circuitBreaker::acquirePermission).isInstanceOf(CircuitBreakerOpenException.class);
+    }
+
+    @Test
+    public void call_whenDisabled_shouldNeverOpen() {
+        // Given
+        final CircuitBreaker disabled = new CircuitBreaker("disabled", false, 50, 10, 1, 5000, 1, clock::get);
+
+        // When
+        for (int i = 0; i < 10; i++) {
+            try {
+                disabled.run(() -> {
+                    throw new ResourceAccessException("timeout");
+                });
+            } catch (ResourceAccessException e) {
+                // Expected
+            }
+        }
+
+        // Then
+        assertThat(disabled.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        disabled.acquirePermission();
+    }
+
+    private void openBreaker() {
+        for (int i = 0; i < 4; i++) {
+            fail(new ResourceAccessException("timeout"));
+        }
+        assertThat(circuitBreaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    }
+
+    private void succeed() {
+        circuitBreaker.call(() -> "ok");
+    }
+
+    private void fail(RuntimeException failure) {
+        assertThatThrownBy(() -> circuitBreaker.run(() -> {
+            throw failure;
+        })).isSameAs(failure);
+    }
+}
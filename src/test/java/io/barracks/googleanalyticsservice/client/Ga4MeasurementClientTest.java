@@ -0,0 +1,154 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.client;
+
+import io.barracks.googleanalyticsservice.client.exception.GoogleAnalyticsClientException;
+import io.barracks.googleanalyticsservice.config.CircuitBreakerConfig;
+import io.barracks.googleanalyticsservice.config.HttpClientConfig;
+import io.barracks.googleanalyticsservice.metrics.PipelineMetrics;
+import io.barracks.googleanalyticsservice.model.FlattenedProperties;
+import io.barracks.googleanalyticsservice.model.Ga4Event;
+import io.barracks.googleanalyticsservice.model.KeyPath;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.autoconfigure.web.client.RestClientTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.client.MockRestServiceServer;
+
+import java.util.Collections;
+import java.util.List;
+
+import static io.barracks.googleanalyticsservice.client.Ga4MeasurementClient.GA4_COLLECT_ENDPOINT;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.entry;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.content;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+
+@RunWith(SpringRunner.class)
+@Import({HttpClientConfig.class, CircuitBreakerConfig.class, PipelineMetrics.class})
+@RestClientTest(Ga4MeasurementClient.class)
+public class Ga4MeasurementClientTest {
+
+    @Autowired
+    private MockRestServiceServer mockServer;
+    @Autowired
+    private Ga4MeasurementClient ga4MeasurementClient;
+    @Value("${io.barracks.googleanalytics.base_url}")
+    private String baseUrl;
+
+    @Test
+    public void toEvents_shouldGroupLeavesByTopLevelField() {
+        // Given
+        final FlattenedProperties properties = FlattenedProperties.builder()
+                .add(KeyPath.of("battery.level"), "50")
+                .add(KeyPath.of("what"), "this")
+                .add(KeyPath.of("battery.useCases.normal"), "yes")
+                .add(KeyPath.of("2g-signal.strength"), "-80")
+                .build();
+
+        // When
+        final List<Ga4Event> events = ga4MeasurementClient.toEvents(properties);
+
+        // Then
+        assertThat(events).extracting(Ga4Event::getName).containsExactly("battery", "custom_client_data", "cc_2g_signal");
+        assertThat(events.get(0).getParams()).containsExactly(entry("level", "50"), entry("useCases_normal", "yes"));
+        assertThat(events.get(1).getParams()).containsExactly(entry("what", "this"));
+        assertThat(events.get(2).getParams()).containsExactly(entry("strength", "-80"));
+    }
+
+    @Test
+    public void toEvents_whenEventHasTooManyParams_shouldSplitIt() {
+        // Given
+        final FlattenedProperties.Builder builder = FlattenedProperties.builder();
+        for (int i = 0; i < Ga4MeasurementClient.MAX_PARAMS_PER_EVENT + 1; i++) {
+            builder.add(KeyPath.of("battery.cell" + i), new String(new char[150]).replace('\0', 'a'));
+        }
+
+        // When
+        final List<Ga4Event> events = ga4MeasurementClient.toEvents(builder.build());
+
+        // Then
+        assertThat(events).extracting(Ga4Event::getName).containsExactly("battery", "battery");
+        assertThat(events.get(0).size()).isEqualTo(Ga4MeasurementClient.MAX_PARAMS_PER_EVENT);
+        assertThat(events.get(1).getParams().get("cell25")).hasSize(Ga4MeasurementClient.MAX_VALUE_LENGTH);
+    }
+
+    @Test
+    public void toEvents_whenNoLeaves_shouldReturnDefaultEvent() {
+        // When
+        final List<Ga4Event> events = ga4MeasurementClient.toEvents(FlattenedProperties.builder().build());
+
+        // Then
+        assertThat(events).containsExactly(new Ga4Event("custom_client_data"));
+    }
+
+    @Test
+    public void sendEvents_whenServiceSucceeds_shouldPostJsonEvents() {
+        // Given
+        final Ga4Event event = new Ga4Event("battery");
+        event.put("level", "50");
+        event.put("brand", "Apple \"A\"");
+        mockServer.expect(method(GA4_COLLECT_ENDPOINT.getMethod()))
+                .andExpect(requestTo(GA4_COLLECT_ENDPOINT.withBase(baseUrl).getURI() + "?measurement_id=G-ABC123&api_secret=secret"))
+                .andExpect(content().contentType(MediaType.APPLICATION_JSON_UTF8))
+                .andExpect(content().string("{\"client_id\":\"unit\",\"user_id\":\"unit\"," +
+                        "\"user_properties\":{\"version_id\":{\"value\":\"v1\"}}," +
+                        "\"events\":[{\"name\":\"battery\",\"params\":{\"level\":50,\"brand\":\"Apple \\\"A\\\"\"}}]}"))
+                .andRespond(withStatus(HttpStatus.NO_CONTENT));
+
+        // When
+        ga4MeasurementClient.sendEvents("G-ABC123", "secret", "unit", "v1", Collections.singletonList(event));
+
+        // Then
+        mockServer.verify();
+    }
+
+    @Test
+    public void sendEvents_whenServiceFails_shouldThrowException() {
+        // Given
+        mockServer.expect(method(GA4_COLLECT_ENDPOINT.getMethod()))
+                .andRespond(withStatus(HttpStatus.FORBIDDEN));
+
+        // Then
+        assertThatExceptionOfType(GoogleAnalyticsClientException.class)
+                .isThrownBy(() -> ga4MeasurementClient.sendEvents("G-ABC123", "secret", "unit", null, Collections.singletonList(new Ga4Event("battery"))));
+        mockServer.verify();
+    }
+
+    @Test
+    public void isMeasurementId_shouldOnlyAcceptGa4Ids() {
+        assertThat(Ga4MeasurementClient.isMeasurementId("G-ABC123")).isTrue();
+        assertThat(Ga4MeasurementClient.isMeasurementId("UA-12348765-65")).isFalse();
+        assertThat(Ga4MeasurementClient.isMeasurementId(null)).isFalse();
+    }
+}
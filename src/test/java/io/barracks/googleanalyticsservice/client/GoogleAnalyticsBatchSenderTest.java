@@ -0,0 +1,182 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.client;
+
+import io.barracks.googleanalyticsservice.client.exception.GoogleAnalyticsClientException;
+import io.barracks.googleanalyticsservice.model.GoogleAnalyticsHit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GoogleAnalyticsBatchSenderTest {
+
+    @Mock
+    private GoogleAnalyticsClient googleAnalyticsClient;
+
+    private GoogleAnalyticsBatchSender batchSender;
+
+    @Before
+    public void setUp() {
+        batchSender = new GoogleAnalyticsBatchSender(googleAnalyticsClient, 20, 60000, 1);
+    }
+
+    @After
+    public void tearDown() {
+        batchSender.destroy();
+    }
+
+    @Test
+    public void send_whenBatchIsFull_shouldSendOneBatchRequest() {
+        // Given
+        final List<CompletableFuture<Void>> results = new ArrayList<>();
+
+        // When
+        for (int i = 0; i < GoogleAnalyticsBatchSender.MAX_HITS_PER_BATCH; i++) {
+            results.add(batchSender.send(getHit("value")));
+        }
+
+        // Then
+        @SuppressWarnings("unchecked")
+        final ArgumentCaptor<List<String>> captor = ArgumentCaptor.forClass((Class) List.class);
+        verify(googleAnalyticsClient, times(1)).sendBatchToGoogleAnalytics(captor.capture());
+        assertThat(captor.getValue()).hasSize(GoogleAnalyticsBatchSender.MAX_HITS_PER_BATCH);
+        assertThat(results).allMatch(result -> result.isDone() && !result.isCompletedExceptionally());
+    }
+
+    @Test
+    public void send_whenPayloadLimitIsReached_shouldSplitBatches() {
+        // Given
+        final String value = new String(new char[7000]).replace('\0', 'a');
+
+        // When
+        batchSender.send(getHit(value));
+        batchSender.send(getHit(value));
+        batchSender.send(getHit(value));
+
+        // Then
+        verify(googleAnalyticsClient, times(1)).sendBatchToGoogleAnalytics(anyListOf(String.class));
+        batchSender.flush();
+        verify(googleAnalyticsClient, times(2)).sendBatchToGoogleAnalytics(anyListOf(String.class));
+    }
+
+    @Test
+    public void send_whenHitIsTooLarge_shouldFailWithoutSending() {
+        // Given
+        final String value = new String(new char[GoogleAnalyticsBatchSender.MAX_HIT_PAYLOAD_BYTES]).replace('\0', 'a');
+
+        // When
+        final CompletableFuture<Void> result = batchSender.send(getHit(value));
+
+        // Then
+        assertThat(result.isCompletedExceptionally()).isTrue();
+        batchSender.flush();
+        verifyZeroInteractions(googleAnalyticsClient);
+    }
+
+    @Test
+    public void send_whenLingerTimeElapses_shouldSendPartialBatch() throws Exception {
+        // Given
+        final GoogleAnalyticsBatchSender lingeringSender = new GoogleAnalyticsBatchSender(googleAnalyticsClient, 20, 10, 1);
+
+        // When
+        final CompletableFuture<Void> result = lingeringSender.send(getHit("value"));
+
+        // Then
+        result.get(5, TimeUnit.SECONDS);
+        verify(googleAnalyticsClient).sendBatchToGoogleAnalytics(anyListOf(String.class));
+        lingeringSender.destroy();
+    }
+
+    @Test
+    public void send_whenLingeringBatchIsSlow_shouldStillSendNextLingeringBatch() throws Exception {
+        // Given
+        final GoogleAnalyticsBatchSender lingeringSender = new GoogleAnalyticsBatchSender(googleAnalyticsClient, 20, 10, 2);
+        final CountDownLatch slowRequest = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            slowRequest.await(5, TimeUnit.SECONDS);
+            return null;
+        }).doNothing().when(googleAnalyticsClient).sendBatchToGoogleAnalytics(anyListOf(String.class));
+        final CompletableFuture<Void> slow = lingeringSender.send(getHit("slow"));
+        verify(googleAnalyticsClient, timeout(5000)).sendBatchToGoogleAnalytics(anyListOf(String.class));
+
+        // When
+        final CompletableFuture<Void> result = lingeringSender.send(getHit("value"));
+
+        // Then
+        result.get(5, TimeUnit.SECONDS);
+        assertThat(slow.isDone()).isFalse();
+        slowRequest.countDown();
+        slow.get(5, TimeUnit.SECONDS);
+        lingeringSender.destroy();
+    }
+
+    @Test
+    public void send_whenBatchFails_shouldFailEveryHitOfTheBatch() {
+        // Given
+        final GoogleAnalyticsClientException exception = new GoogleAnalyticsClientException(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE));
+        doThrow(exception).when(googleAnalyticsClient).sendBatchToGoogleAnalytics(anyListOf(String.class));
+        final CompletableFuture<Void> first = batchSender.send(getHit("first"));
+        final CompletableFuture<Void> second = batchSender.send(getHit("second"));
+
+        // When
+        batchSender.flush();
+
+        // Then
+        assertThatThrownBy(first::join).isInstanceOf(CompletionException.class).hasCauseInstanceOf(GoogleAnalyticsClientException.class);
+        assertThatThrownBy(second::join).isInstanceOf(CompletionException.class).hasCauseInstanceOf(GoogleAnalyticsClientException.class);
+    }
+
+    private GoogleAnalyticsHit getHit(String value) {
+        return GoogleAnalyticsHit.builder()
+                .trackingId("UA-12348765-65")
+                .userAgent(UUID.randomUUID().toString())
+                .unitId(UUID.randomUUID().toString())
+                .versionId(UUID.randomUUID().toString())
+                .key(UUID.randomUUID().toString())
+                .value(value)
+                .deviceIP("1233.234.1.1")
+                .build();
+    }
+}
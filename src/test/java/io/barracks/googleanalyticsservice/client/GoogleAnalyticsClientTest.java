@@ -27,7 +27,11 @@ package io.barracks.googleanalyticsservice.client;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.barracks.commons.util.Endpoint;
 import io.barracks.googleanalyticsservice.client.exception.GoogleAnalyticsClientException;
+import io.barracks.googleanalyticsservice.config.CircuitBreakerConfig;
+import io.barracks.googleanalyticsservice.config.HttpClientConfig;
+import io.barracks.googleanalyticsservice.metrics.PipelineMetrics;
 import io.barracks.googleanalyticsservice.model.DeviceInfo;
+import io.barracks.googleanalyticsservice.model.KeyPath;
 import io.barracks.googleanalyticsservice.model.User;
 import io.barracks.googleanalyticsservice.utils.DeviceInfoUtils;
 import io.barracks.googleanalyticsservice.utils.UserUtils;
@@ -36,19 +40,25 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.web.client.RestClientTest;
+import org.springframework.context.annotation.Import;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.client.MockRestServiceServer;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.UUID;
 
 import static io.barracks.googleanalyticsservice.client.GoogleAnalyticsClient.GOOGLE_ANALYTICS_ENDPOINT;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.content;
 import static org.springframework.test.web.client.match.MockRestRequestMatchers.method;
 import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
 import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
 
 @RunWith(SpringRunner.class)
+@Import({HttpClientConfig.class, CircuitBreakerConfig.class, PipelineMetrics.class})
 @RestClientTest(GoogleAnalyticsClient.class)
 public class GoogleAnalyticsClientTest {
 
@@ -62,7 +72,7 @@ public class GoogleAnalyticsClientTest {
     private String baseUrl;
 
     @Test
-    public void sendDataToGoogleAnalytics_whenServiceFails_shouldThrowException() {
+    public void sendDataToGoogleAnalytics_whenServiceFails_shouldThrowException() throws Exception {
         // Given
         final User user = UserUtils.getUser();
         final DeviceInfo deviceInfo = DeviceInfoUtils.getDeviceInfo();
@@ -81,7 +91,9 @@ public class GoogleAnalyticsClientTest {
         final int qt = 0;
 
         mockServer.expect(method(GOOGLE_ANALYTICS_ENDPOINT.getMethod()))
-                .andExpect(requestTo(GOOGLE_ANALYTICS_ENDPOINT.withBase(baseUrl).getURI(v, t, ec, ea, uid, uid, tid, ua, pr1cd1, qt, uip)))
+                .andExpect(requestTo(GOOGLE_ANALYTICS_ENDPOINT.withBase(baseUrl).getURI()))
+                .andExpect(content().contentType(MediaType.APPLICATION_FORM_URLENCODED))
+                .andExpect(content().string(getFormBody(v, t, uid, tid, ua, pr1cd1, qt, uip, ec, ea)))
                 .andRespond(withStatus(HttpStatus.FORBIDDEN));
 
         // When
@@ -91,7 +103,7 @@ public class GoogleAnalyticsClientTest {
                         deviceInfo.getUserAgent(),
                         deviceInfo.getUnitId(),
                         deviceInfo.getVersionId(),
-                        key,
+                        KeyPath.of(key),
                         value,
                         uip)
                 );
@@ -121,7 +133,9 @@ public class GoogleAnalyticsClientTest {
 
         final Endpoint endpoint = GOOGLE_ANALYTICS_ENDPOINT;
         mockServer.expect(method(endpoint.getMethod()))
-                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(v, t, ec, ea, uid, uid, tid, ua, pr1cd1, qt, uip)))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI()))
+                .andExpect(content().contentType(MediaType.APPLICATION_FORM_URLENCODED))
+                .andExpect(content().string(getFormBody(v, t, uid, tid, ua, pr1cd1, qt, uip, ec, ea)))
                 .andRespond(withStatus(HttpStatus.OK));
 
         // When
@@ -130,11 +144,19 @@ public class GoogleAnalyticsClientTest {
                 deviceInfo.getUserAgent(),
                 deviceInfo.getUnitId(),
                 deviceInfo.getVersionId(),
-                key,
+                KeyPath.of(key),
                 value,
                 uip);
         // Then
         mockServer.verify();
     }
 
+    private String getFormBody(String v, String t, String uid, String tid, String ua, String pr1cd1, int qt, String uip, String ec, String ea) throws UnsupportedEncodingException {
+        return "v=" + v + "&t=" + t +
+                "&uid=" + URLEncoder.encode(uid, "UTF-8") + "&cid=" + URLEncoder.encode(uid, "UTF-8") +
+                "&tid=" + URLEncoder.encode(tid, "UTF-8") + "&ua=" + URLEncoder.encode(ua, "UTF-8") +
+                "&pr1cd1=" + URLEncoder.encode(pr1cd1, "UTF-8") + "&qt=" + qt + "&uip=" + URLEncoder.encode(uip, "UTF-8") +
+                "&ec=" + URLEncoder.encode(ec, "UTF-8") + "&ea=" + URLEncoder.encode(ea, "UTF-8");
+    }
+
 }
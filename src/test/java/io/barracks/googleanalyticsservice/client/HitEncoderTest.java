@@ -0,0 +1,118 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.client;
+
+import io.barracks.googleanalyticsservice.model.GoogleAnalyticsHit;
+import io.barracks.googleanalyticsservice.model.KeyPath;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HitEncoderTest {
+
+    @Test
+    public void encode_whenSpecialCharacters_shouldEncodeLikeUrlEncoder() throws Exception {
+        // Given
+        final String value = "a b&c=d+e/f?g%hé€😀~'!*-._";
+        final HitEncoder hitEncoder = new HitEncoder();
+
+        // When
+        final String result = hitEncoder.encode("UA-1", "sdk/1.0 (linux)", "unit 1", "v1.0", KeyPath.of("battery.level"), value, "10.0.0.1").toString();
+
+        // Then
+        assertThat(result).isEqualTo("v=1&t=event&uid=unit+1&cid=unit+1&tid=UA-1&ua=" + URLEncoder.encode("sdk/1.0 (linux)", "UTF-8") +
+                "&pr1cd1=v1.0&qt=0&uip=10.0.0.1&ec=battery.level&ea=" + URLEncoder.encode(value, "UTF-8"));
+    }
+
+    @Test
+    public void encode_whenDeviceFieldsChange_shouldReencodeCommonFields() {
+        // Given
+        final HitEncoder hitEncoder = new HitEncoder();
+        final GoogleAnalyticsHit hit = GoogleAnalyticsHit.builder()
+                .trackingId("UA-1").userAgent("ua").unitId("unit").versionId("v1").deviceIP("ip")
+                .key("key").value("value")
+                .build();
+
+        // When
+        final String first = hitEncoder.encode(hit).toString();
+        final String second = hitEncoder.encode(hit.toBuilder().key("other").build()).toString();
+        final String third = hitEncoder.encode(hit.toBuilder().unitId("unit2").build()).toString();
+
+        // Then
+        assertThat(first).isEqualTo("v=1&t=event&uid=unit&cid=unit&tid=UA-1&ua=ua&pr1cd1=v1&qt=0&uip=ip&ec=key&ea=value");
+        assertThat(second).isEqualTo("v=1&t=event&uid=unit&cid=unit&tid=UA-1&ua=ua&pr1cd1=v1&qt=0&uip=ip&ec=other&ea=value");
+        assertThat(third).isEqualTo("v=1&t=event&uid=unit2&cid=unit2&tid=UA-1&ua=ua&pr1cd1=v1&qt=0&uip=ip&ec=key&ea=value");
+    }
+
+    @Test
+    public void encode_whenHitHasParameters_shouldAppendThemAfterEvent() {
+        // Given
+        final HitEncoder hitEncoder = new HitEncoder();
+        final GoogleAnalyticsHit hit = GoogleAnalyticsHit.builder()
+                .trackingId("UA-1").userAgent("ua").unitId("unit").versionId("v1").deviceIP("ip")
+                .key("custom_client_data").value("packed")
+                .parameter("cd3", "big grey")
+                .parameter("cm1", "42")
+                .build();
+
+        // When
+        final String result = hitEncoder.encode(hit).toString();
+
+        // Then
+        assertThat(result).isEqualTo("v=1&t=event&uid=unit&cid=unit&tid=UA-1&ua=ua&pr1cd1=v1&qt=0&uip=ip&ec=custom_client_data&ea=packed&cd3=big+grey&cm1=42");
+    }
+
+    @Test
+    public void writeTo_whenValueIsLarge_shouldWriteWholeHit() throws Exception {
+        // Given
+        final String value = new String(new char[5000]).replace('\0', 'é');
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final HitEncoder hitEncoder = new HitEncoder().encode("UA-1", null, "unit", "v1", KeyPath.of("key"), value, null);
+
+        // When
+        hitEncoder.writeTo(outputStream);
+
+        // Then
+        assertThat(outputStream.size()).isEqualTo(hitEncoder.length());
+        assertThat(new String(outputStream.toByteArray(), StandardCharsets.US_ASCII))
+                .isEqualTo("v=1&t=event&uid=unit&cid=unit&tid=UA-1&ua=&pr1cd1=v1&qt=0&uip=&ec=key&ea=" + URLEncoder.encode(value, "UTF-8"));
+    }
+
+    @Test
+    public void withQueueTime_shouldReplaceQueueTimeOnly() {
+        // Given
+        final String payload = new HitEncoder().encode("UA-1", "ua", "unit", "v1", KeyPath.of("qt"), "&qt=0", "ip").toString();
+
+        // When
+        final String result = HitEncoder.withQueueTime(payload, 4200);
+
+        // Then
+        assertThat(result).isEqualTo("v=1&t=event&uid=unit&cid=unit&tid=UA-1&ua=ua&pr1cd1=v1&qt=4200&uip=ip&ec=qt&ea=%26qt%3D0");
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.client;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HitRateLimiterTest {
+
+    private final AtomicLong nanos = new AtomicLong(0);
+    private final AtomicLong millis = new AtomicLong(TimeUnit.DAYS.toMillis(17000));
+
+    @Test
+    public void acquire_whenPerSecondBudgetIsExhausted_shouldThrottleUntilTokensAreRefilled() {
+        // Given
+        final HitRateLimiter hitRateLimiter = newLimiter(10, 0, HitRateLimiter.OverLimitPolicy.DROP);
+        for (int i = 0; i < 10; i++) {
+            assertThat(hitRateLimiter.acquire("UA-1")).isEqualTo(HitRateLimiter.Decision.SEND);
+        }
+
+        // When
+        final HitRateLimiter.Decision throttled = hitRateLimiter.acquire("UA-1");
+        final HitRateLimiter.Decision otherTrackingId = hitRateLimiter.acquire("UA-2");
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        final HitRateLimiter.Decision refilled = hitRateLimiter.acquire("UA-1");
+
+        // Then
+        assertThat(throttled).isEqualTo(HitRateLimiter.Decision.DROP);
+        assertThat(otherTrackingId).isEqualTo(HitRateLimiter.Decision.SEND);
+        assertThat(refilled).isEqualTo(HitRateLimiter.Decision.SEND);
+        assertThat(hitRateLimiter.getThrottledHits("UA-1")).isEqualTo(1);
+        assertThat(hitRateLimiter.getThrottledHits("UA-2")).isEqualTo(0);
+    }
+
+    @Test
+    public void acquire_whenPerDayBudgetIsExhausted_shouldThrottleUntilNextDay() {
+        // Given
+        final HitRateLimiter hitRateLimiter = newLimiter(0, 3, HitRateLimiter.OverLimitPolicy.SPOOL);
+        for (int i = 0; i < 3; i++) {
+            hitRateLimiter.acquire("UA-1");
+        }
+
+        // When
+        final HitRateLimiter.Decision throttled = hitRateLimiter.acquire("UA-1");
+        millis.addAndGet(TimeUnit.DAYS.toMillis(1));
+        final HitRateLimiter.Decision nextDay = hitRateLimiter.acquire("UA-1");
+
+        // Then
+        assertThat(throttled).isEqualTo(HitRateLimiter.Decision.SPOOL);
+        assertThat(nextDay).isEqualTo(HitRateLimiter.Decision.SEND);
+    }
+
+    @Test
+    public void acquire_whenSamplingEverything_shouldSendThrottledHits() {
+        // Given
+        final HitRateLimiter hitRateLimiter = new HitRateLimiter(true, 0, 1, HitRateLimiter.OverLimitPolicy.SAMPLE, 1.0, nanos::get, millis::get);
+        hitRateLimiter.acquire("UA-1");
+
+        // When
+        final HitRateLimiter.Decision sampled = hitRateLimiter.acquire("UA-1");
+
+        // Then
+        assertThat(sampled).isEqualTo(HitRateLimiter.Decision.SEND);
+        assertThat(hitRateLimiter.getThrottledHits("UA-1")).isEqualTo(1);
+    }
+
+    @Test
+    public void acquire_whenDisabled_shouldAlwaysSend() {
+        // Given
+        final HitRateLimiter hitRateLimiter = new HitRateLimiter(false, 1, 1, HitRateLimiter.OverLimitPolicy.DROP, 0, nanos::get, millis::get);
+
+        // When / Then
+        for (int i = 0; i < 10; i++) {
+            assertThat(hitRateLimiter.acquire("UA-1")).isEqualTo(HitRateLimiter.Decision.SEND);
+        }
+        assertThat(hitRateLimiter.metrics()).hasSize(1);
+    }
+
+    private HitRateLimiter newLimiter(long perSecond, long perDay, HitRateLimiter.OverLimitPolicy policy) {
+        return new HitRateLimiter(true, perSecond, perDay, policy, 0, nanos::get, millis::get);
+    }
+}
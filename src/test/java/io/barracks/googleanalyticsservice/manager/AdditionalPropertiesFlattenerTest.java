@@ -0,0 +1,147 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.manager;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.barracks.googleanalyticsservice.cache.KeyPathTable;
+import io.barracks.googleanalyticsservice.model.KeyPath;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class AdditionalPropertiesFlattenerTest {
+
+    private final AdditionalPropertiesFlattener flattener = new AdditionalPropertiesFlattener(new KeyPathTable(1000, 150));
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void flatten_whenNestedObjects_shouldReportEveryLeafUnderItsDottedKey() throws IOException {
+        // Given
+        final ObjectNode root = readAdditionalProperties("deviceInfo.json");
+        final Map<String, String> result = new LinkedHashMap<>();
+
+        // When
+        flattener.flatten(root, (key, value) -> result.put(key.getPath(), value));
+
+        // Then
+        assertThat(result).containsExactly(
+                entry("battery.level", "50"),
+                entry("battery.damaged", "false"),
+                entry("battery.brand", "Apple"),
+                entry("battery.useCases.normal", "yes"),
+                entry("battery.useCases.time", "12.4"),
+                entry("battery.useCases.beaver", "true"),
+                entry("battery.useCases.yes.yes", "true"),
+                entry("battery.useCases.yes.no", "false"),
+                entry("battery.useCases.oui", "oui"),
+                entry("elephants.animal", "big"),
+                entry("what", "this"),
+                entry("howMuch", "3.5")
+        );
+    }
+
+    @Test
+    public void flatten_whenEmptyNestedObject_shouldReportItWithEmptyValue() throws IOException {
+        // Given
+        final ObjectNode root = readAdditionalProperties("deviceInfoMissingValueForAKey.json");
+        final Map<String, String> result = new LinkedHashMap<>();
+
+        // When
+        flattener.flatten(root, (key, value) -> result.put(key.getPath(), value));
+
+        // Then
+        assertThat(result).contains(entry("battery.useCases", "")).hasSize(7);
+    }
+
+    @Test
+    public void flatten_whenEmptyRoot_shouldReportEmptyKeyAndValue() {
+        // Given
+        final Map<String, String> result = new LinkedHashMap<>();
+
+        // When
+        flattener.flatten(objectMapper.createObjectNode(), (key, value) -> result.put(key.getPath(), value));
+
+        // Then
+        assertThat(result).containsExactly(entry("", ""));
+    }
+
+    @Test
+    public void flatten_whenArrayOrDeepNesting_shouldSkipArraysAndKeepFullKeys() {
+        // Given
+        final ObjectNode root = objectMapper.createObjectNode();
+        ObjectNode node = root;
+        final StringBuilder expectedKey = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            node = node.putObject("level" + i);
+            expectedKey.append(i == 0 ? "" : ".").append("level").append(i);
+        }
+        node.put("leaf", 1);
+        root.putArray("list").add(1).add(2);
+        root.put("after", "value");
+        final Map<String, String> result = new LinkedHashMap<>();
+
+        // When
+        flattener.flatten(root, (key, value) -> result.put(key.getPath(), value));
+
+        // Then
+        assertThat(result).containsExactly(
+                entry(expectedKey + ".leaf", "1"),
+                entry("after", "value")
+        );
+    }
+
+    @Test
+    public void flatten_whenSameShapeTwice_shouldReuseEncodedKeys() throws IOException {
+        // Given
+        final ObjectNode root = readAdditionalProperties("deviceInfo.json");
+        final List<KeyPath> first = new ArrayList<>();
+        final List<KeyPath> second = new ArrayList<>();
+
+        // When
+        flattener.flatten(root, (key, value) -> first.add(key));
+        flattener.flatten(root.deepCopy(), (key, value) -> second.add(key));
+
+        // Then
+        assertThat(first).hasSize(12).allMatch(KeyPath::isEncoded);
+        for (int i = 0; i < first.size(); i++) {
+            assertThat(second.get(i)).isSameAs(first.get(i));
+        }
+    }
+
+    private ObjectNode readAdditionalProperties(String fileName) throws IOException {
+        final ClassPathResource resource = new ClassPathResource(fileName, getClass());
+        return (ObjectNode) objectMapper.readTree(resource.getInputStream()).get("additionalProperties");
+    }
+}
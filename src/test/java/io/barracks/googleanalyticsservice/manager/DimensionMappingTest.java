@@ -0,0 +1,68 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.manager;
+
+import io.barracks.googleanalyticsservice.model.KeyPath;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DimensionMappingTest {
+
+    @Test
+    public void compile_whenNoValidEntry_shouldReturnNone() {
+        // Given
+        final Map<String, String> mapping = new HashMap<>();
+        mapping.put("battery.level", "cd0");
+        mapping.put("battery.brand", "cd201");
+        mapping.put("what", "ec");
+
+        // When
+        final DimensionMapping result = DimensionMapping.compile(mapping);
+
+        // Then
+        assertThat(result).isSameAs(DimensionMapping.NONE);
+        assertThat(result.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void parameterFor_shouldReturnMappedParameter_whenValueFits() {
+        // Given
+        final Map<String, String> mapping = new HashMap<>();
+        mapping.put("battery.brand", " cd12 ");
+        mapping.put("battery.level", "cm200");
+        final DimensionMapping dimensionMapping = DimensionMapping.compile(mapping);
+
+        // Then
+        assertThat(dimensionMapping.parameterFor(KeyPath.of("battery.brand"), "Apple")).isEqualTo("cd12");
+        assertThat(dimensionMapping.parameterFor(KeyPath.of("battery.level"), "-50")).isEqualTo("cm200");
+        assertThat(dimensionMapping.parameterFor(KeyPath.of("battery.level"), "12.4")).isNull();
+        assertThat(dimensionMapping.parameterFor(KeyPath.of("battery.brand"), null)).isNull();
+        assertThat(dimensionMapping.parameterFor(KeyPath.of("what"), "this")).isNull();
+    }
+}
@@ -25,10 +25,27 @@
 package io.barracks.googleanalyticsservice.manager;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import io.barracks.googleanalyticsservice.client.AuthorizationServiceClient;
+import io.barracks.googleanalyticsservice.aggregation.NumericAggregator;
+import io.barracks.googleanalyticsservice.cache.ChangeSuppressionCache;
+import io.barracks.googleanalyticsservice.cache.DimensionMappingCache;
+import io.barracks.googleanalyticsservice.cache.KeyFilterCache;
+import io.barracks.googleanalyticsservice.cache.KeyPathTable;
+import io.barracks.googleanalyticsservice.cache.UserCache;
+import io.barracks.googleanalyticsservice.client.Ga4MeasurementClient;
 import io.barracks.googleanalyticsservice.client.GoogleAnalyticsClient;
+import io.barracks.googleanalyticsservice.client.HitRateLimiter;
+import io.barracks.googleanalyticsservice.client.exception.CircuitBreakerOpenException;
+import io.barracks.googleanalyticsservice.client.exception.GoogleAnalyticsClientException;
+import io.barracks.googleanalyticsservice.metrics.PipelineMetrics;
 import io.barracks.googleanalyticsservice.model.DeviceInfo;
+import io.barracks.googleanalyticsservice.model.FlattenedProperties;
+import io.barracks.googleanalyticsservice.model.Ga4Event;
+import io.barracks.googleanalyticsservice.model.GoogleAnalyticsHit;
+import io.barracks.googleanalyticsservice.model.KeyPath;
 import io.barracks.googleanalyticsservice.model.User;
+import io.barracks.googleanalyticsservice.rabbitmq.RetryPublisher;
+import io.barracks.googleanalyticsservice.sampling.UnitSampler;
+import io.barracks.googleanalyticsservice.spool.HitSpool;
 import io.barracks.googleanalyticsservice.utils.DeviceInfoUtils;
 import io.barracks.googleanalyticsservice.utils.UserUtils;
 import org.junit.Test;
@@ -36,15 +53,25 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.internal.verification.Times;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
@@ -53,9 +80,31 @@ import static org.mockito.Mockito.*;
 public class GoogleAnalyticsManagerTest {
 
     @Mock
-    private AuthorizationServiceClient authorizationServiceClient;
+    private UserCache userCache;
     @Mock
     private GoogleAnalyticsClient googleAnalyticsClient;
+    @Mock
+    private Ga4MeasurementClient ga4MeasurementClient;
+    @Mock
+    private RetryPublisher retryPublisher;
+    @Mock
+    private HitSpool hitSpool;
+    @Mock
+    private HitRateLimiter hitRateLimiter;
+    @Mock
+    private PipelineMetrics pipelineMetrics;
+    @Spy
+    private ChangeSuppressionCache changeSuppressionCache = new ChangeSuppressionCache(false, 24, 1024 * 1024);
+    @Spy
+    private KeyFilterCache keyFilterCache = new KeyFilterCache(100);
+    @Spy
+    private DimensionMappingCache dimensionMappingCache = new DimensionMappingCache(100);
+    @Spy
+    private NumericAggregator numericAggregator = new NumericAggregator(false, 60000, 1000, 1000, "");
+    @Spy
+    private UnitSampler unitSampler = new UnitSampler(1.0, "");
+    @Spy
+    private AdditionalPropertiesFlattener additionalPropertiesFlattener = new AdditionalPropertiesFlattener(new KeyPathTable(1000, 150));
 
     @InjectMocks
     private GoogleAnalyticsManager googleAnalyticsManager;
@@ -84,14 +133,14 @@ public class GoogleAnalyticsManagerTest {
         keyValues.put("howMuch", "3.5");
 
         final String userId = deviceInfo.getUserId();
-        doReturn(user).when(authorizationServiceClient).getUserById(userId);
+        doReturn(user).when(userCache).getUserById(userId);
 
         // When
         googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
 
         // When / Then
-        verify(authorizationServiceClient).getUserById(userId);
-        ArgumentCaptor<String> keyCaptor = ArgumentCaptor.forClass(String.class);
+        verify(userCache).getUserById(userId);
+        ArgumentCaptor<KeyPath> keyCaptor = ArgumentCaptor.forClass(KeyPath.class);
         ArgumentCaptor<String> valueCaptor = ArgumentCaptor.forClass(String.class);
         verify(googleAnalyticsClient, new Times(12)).sendEventToGoogleAnalytics(
                 eq(user.getGaTrackingId()),
@@ -102,9 +151,10 @@ public class GoogleAnalyticsManagerTest {
                 valueCaptor.capture(),
                 eq(deviceInfo.getDeviceIP()));
 
-        assertThat(keyCaptor.getAllValues()).containsOnlyElementsOf(keyValues.keySet());
+        assertThat(keyCaptor.getAllValues().stream().map(KeyPath::getPath)).containsOnlyElementsOf(keyValues.keySet());
         assertThat(valueCaptor.getAllValues()).containsOnlyElementsOf(keyValues.values());
-
+        verify(pipelineMetrics).recordFlattening(anyLong());
+        verify(pipelineMetrics).recordMessage(12);
     }
 
     @Test
@@ -112,13 +162,13 @@ public class GoogleAnalyticsManagerTest {
         // Given
         final DeviceInfo deviceInfo = DeviceInfoUtils.getDeviceInfo();
         final User user = User.builder().gaTrackingId(null).build();
-        doReturn(user).when(authorizationServiceClient).getUserById(any());
+        doReturn(user).when(userCache).getUserById(any());
 
         //When
         googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
 
         //Then
-        verify(googleAnalyticsClient, never()).sendEventToGoogleAnalytics(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyString());
+        verify(googleAnalyticsClient, never()).sendEventToGoogleAnalytics(anyString(), anyString(), anyString(), anyString(), any(KeyPath.class), anyString(), anyString());
     }
 
     @Test
@@ -130,19 +180,19 @@ public class GoogleAnalyticsManagerTest {
         final User user = UserUtils.getUser();
 
         final String userId = deviceInfo.getUserId();
-        doReturn(user).when(authorizationServiceClient).getUserById(userId);
+        doReturn(user).when(userCache).getUserById(userId);
 
         // When
         googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
 
         // When / Then
-        verify(authorizationServiceClient).getUserById(userId);
+        verify(userCache).getUserById(userId);
         verify(googleAnalyticsClient, new Times(1)).sendEventToGoogleAnalytics(
                 user.getGaTrackingId(),
                 deviceInfo.getUserAgent(),
                 deviceInfo.getUnitId(),
                 deviceInfo.getVersionId(),
-                "",
+                KeyPath.ROOT,
                 "",
                 deviceInfo.getDeviceIP());
 
@@ -157,19 +207,19 @@ public class GoogleAnalyticsManagerTest {
         final User user = UserUtils.getUser();
 
         final String userId = deviceInfo.getUserId();
-        doReturn(user).when(authorizationServiceClient).getUserById(userId);
+        doReturn(user).when(userCache).getUserById(userId);
 
         // When
         googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
 
         // When / Then
-        verify(authorizationServiceClient).getUserById(userId);
+        verify(userCache).getUserById(userId);
         verify(googleAnalyticsClient, new Times(1)).sendEventToGoogleAnalytics(
                 user.getGaTrackingId(),
                 deviceInfo.getUserAgent(),
                 deviceInfo.getUnitId(),
                 deviceInfo.getVersionId(),
-                "",
+                KeyPath.ROOT,
                 "",
                 deviceInfo.getDeviceIP());
 
@@ -192,14 +242,14 @@ public class GoogleAnalyticsManagerTest {
         keyValues.put("howMuch", "3.5");
 
         final String userId = deviceInfo.getUserId();
-        doReturn(user).when(authorizationServiceClient).getUserById(userId);
+        doReturn(user).when(userCache).getUserById(userId);
 
         // When
         googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
 
         // When / Then
-        verify(authorizationServiceClient).getUserById(userId);
-        ArgumentCaptor<String> keyCaptor = ArgumentCaptor.forClass(String.class);
+        verify(userCache).getUserById(userId);
+        ArgumentCaptor<KeyPath> keyCaptor = ArgumentCaptor.forClass(KeyPath.class);
         ArgumentCaptor<String> valueCaptor = ArgumentCaptor.forClass(String.class);
         verify(googleAnalyticsClient, new Times(7)).sendEventToGoogleAnalytics(
                 eq(user.getGaTrackingId()),
@@ -210,11 +260,359 @@ public class GoogleAnalyticsManagerTest {
                 valueCaptor.capture(),
                 eq(deviceInfo.getDeviceIP()));
 
-        assertThat(keyCaptor.getAllValues()).containsOnlyElementsOf(keyValues.keySet());
+        assertThat(keyCaptor.getAllValues().stream().map(KeyPath::getPath)).containsOnlyElementsOf(keyValues.keySet());
         assertThat(valueCaptor.getAllValues()).containsOnlyElementsOf(keyValues.values());
 
     }
 
+    @Test
+    public void sendDataToGoogleAnalytics_whenAsyncEnabled_shouldSendEveryHitAsynchronously() throws IOException {
+        // Given
+        ReflectionTestUtils.setField(googleAnalyticsManager, "asyncEnabled", true);
+        final ClassPathResource resource = new ClassPathResource("deviceInfo.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        final User user = UserUtils.getUser();
+        final CompletableFuture<Void> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new GoogleAnalyticsClientException(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE)));
+
+        doReturn(user).when(userCache).getUserById(deviceInfo.getUserId());
+        doReturn(CompletableFuture.completedFuture(null)).doReturn(failure).when(googleAnalyticsClient).sendEventToGoogleAnalyticsAsync(any());
+
+        // When
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+
+        // Then
+        final ArgumentCaptor<GoogleAnalyticsHit> hitCaptor = ArgumentCaptor.forClass(GoogleAnalyticsHit.class);
+        verify(googleAnalyticsClient, new Times(12)).sendEventToGoogleAnalyticsAsync(hitCaptor.capture());
+        verify(googleAnalyticsClient, never()).sendEventToGoogleAnalytics(anyString(), anyString(), anyString(), anyString(), any(KeyPath.class), anyString(), anyString());
+        assertThat(hitCaptor.getAllValues()).allMatch(hit -> user.getGaTrackingId().equals(hit.getTrackingId()));
+        assertThat(hitCaptor.getAllValues().stream().map(hit -> hit.getKey().getPath())).contains("battery.useCases.yes.no", "howMuch");
+    }
+
+    @Test
+    public void sendEventsToGoogleAnalytics_whenDevicesShareAUser_shouldLookUpTheUserOnce() throws IOException {
+        // Given
+        final ClassPathResource resource = new ClassPathResource("deviceInfoEmptyCustomClientData.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        final User user = UserUtils.getUser();
+        doReturn(user).when(userCache).getUserById(deviceInfo.getUserId());
+
+        // When
+        googleAnalyticsManager.sendEventsToGoogleAnalytics(Arrays.asList(deviceInfo, deviceInfo));
+
+        // Then
+        verify(userCache).getUserById(deviceInfo.getUserId());
+        verify(googleAnalyticsClient, new Times(2)).sendEventToGoogleAnalytics(
+                user.getGaTrackingId(),
+                deviceInfo.getUserAgent(),
+                deviceInfo.getUnitId(),
+                deviceInfo.getVersionId(),
+                KeyPath.ROOT,
+                "",
+                deviceInfo.getDeviceIP());
+    }
+
+    @Test
+    public void sendEventsToGoogleAnalytics_whenOneDeviceFails_shouldReportOnlyThatDevice() throws IOException {
+        // Given
+        final ClassPathResource resource = new ClassPathResource("deviceInfoEmptyCustomClientData.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        final DeviceInfo failingDeviceInfo = deviceInfo.toBuilder().unitId("failing").build();
+        final User user = UserUtils.getUser();
+        final IllegalStateException failure = new IllegalStateException();
+        doReturn(user).when(userCache).getUserById(deviceInfo.getUserId());
+        doThrow(failure).when(googleAnalyticsClient).sendEventToGoogleAnalytics(anyString(), anyString(), eq("failing"), anyString(), any(KeyPath.class), anyString(), anyString());
+
+        // When
+        final Map<DeviceInfo, RuntimeException> result = googleAnalyticsManager.sendEventsToGoogleAnalytics(Arrays.asList(failingDeviceInfo, deviceInfo));
+
+        // Then
+        assertThat(result).hasSize(1).containsEntry(failingDeviceInfo, failure);
+        verify(googleAnalyticsClient).sendEventToGoogleAnalytics(
+                user.getGaTrackingId(),
+                deviceInfo.getUserAgent(),
+                deviceInfo.getUnitId(),
+                deviceInfo.getVersionId(),
+                KeyPath.ROOT,
+                "",
+                deviceInfo.getDeviceIP());
+    }
+
+    @Test
+    public void sendDataToGoogleAnalytics_whenCircuitBreakerIsOpen_shouldHandHitToRetryPublisher() throws IOException {
+        // Given
+        final ClassPathResource resource = new ClassPathResource("deviceInfoEmptyCustomClientData.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        final User user = UserUtils.getUser();
+        final CircuitBreakerOpenException failure = new CircuitBreakerOpenException("googleanalytics");
+        doReturn(user).when(userCache).getUserById(deviceInfo.getUserId());
+        doThrow(failure).when(googleAnalyticsClient).sendEventToGoogleAnalytics(anyString(), anyString(), anyString(), anyString(), any(KeyPath.class), anyString(), anyString());
+        doReturn(true).when(retryPublisher).retryHit(anyString(), any(Throwable.class));
 
+        // When
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+
+        // Then
+        verify(retryPublisher).retryHit(anyString(), eq(failure));
+    }
 
+    @Test
+    public void sendDataToGoogleAnalytics_whenHitFailsTransiently_shouldHandItToRetryPublisher() throws IOException {
+        // Given
+        final ClassPathResource resource = new ClassPathResource("deviceInfoEmptyCustomClientData.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        final User user = UserUtils.getUser();
+        final GoogleAnalyticsClientException failure = new GoogleAnalyticsClientException(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE));
+        doReturn(user).when(userCache).getUserById(deviceInfo.getUserId());
+        doThrow(failure).when(googleAnalyticsClient).sendEventToGoogleAnalytics(anyString(), anyString(), anyString(), anyString(), any(KeyPath.class), anyString(), anyString());
+        doReturn(true).when(retryPublisher).retryHit(anyString(), any(Throwable.class));
+
+        // When
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+
+        // Then
+        final ArgumentCaptor<String> payloadCaptor = ArgumentCaptor.forClass(String.class);
+        verify(retryPublisher).retryHit(payloadCaptor.capture(), eq(failure));
+        assertThat(payloadCaptor.getValue()).contains("tid=" + user.getGaTrackingId(), "&ec=&ea=");
+    }
+
+    @Test
+    public void sendDataToGoogleAnalytics_whenSpoolIsDegraded_shouldSpoolHitsWithoutCallingGoogleAnalytics() throws IOException {
+        // Given
+        final ClassPathResource resource = new ClassPathResource("deviceInfo.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        doReturn(UserUtils.getUser()).when(userCache).getUserById(deviceInfo.getUserId());
+        doReturn(true).when(hitSpool).isDegraded();
+        doReturn(true).when(hitSpool).append(anyString());
+
+        // When
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+
+        // Then
+        verify(hitSpool, new Times(12)).append(anyString());
+        verifyZeroInteractions(googleAnalyticsClient);
+    }
+
+    @Test
+    public void sendDataToGoogleAnalytics_whenTrackingIdIsOverLimit_shouldDropHits() throws IOException {
+        // Given
+        final ClassPathResource resource = new ClassPathResource("deviceInfo.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        final User user = UserUtils.getUser();
+        doReturn(user).when(userCache).getUserById(deviceInfo.getUserId());
+        doReturn(HitRateLimiter.Decision.DROP).when(hitRateLimiter).acquire(user.getGaTrackingId());
+
+        // When
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+
+        // Then
+        verify(hitRateLimiter, new Times(12)).acquire(user.getGaTrackingId());
+        verifyZeroInteractions(googleAnalyticsClient, hitSpool);
+    }
+
+    @Test
+    public void sendDataToGoogleAnalytics_whenDeltaEnabled_shouldOnlySendChangedValues() throws IOException {
+        // Given
+        ReflectionTestUtils.setField(googleAnalyticsManager, "changeSuppressionCache", new ChangeSuppressionCache(true, 24, 1024 * 1024));
+        final ClassPathResource resource = new ClassPathResource("deviceInfo.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        final DeviceInfo sameDeviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        sameDeviceInfo.getAdditionalProperties().put("what", "that");
+        final User user = UserUtils.getUser();
+        doReturn(user).when(userCache).getUserById(deviceInfo.getUserId());
+
+        // When
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+        googleAnalyticsManager.sendEventToGoogleAnalytics(sameDeviceInfo);
+
+        // Then
+        final ArgumentCaptor<KeyPath> keyCaptor = ArgumentCaptor.forClass(KeyPath.class);
+        final ArgumentCaptor<String> valueCaptor = ArgumentCaptor.forClass(String.class);
+        verify(googleAnalyticsClient, new Times(13)).sendEventToGoogleAnalytics(
+                anyString(), anyString(), anyString(), anyString(), keyCaptor.capture(), valueCaptor.capture(), anyString());
+        assertThat(keyCaptor.getAllValues().get(12).getPath()).isEqualTo("what");
+        assertThat(valueCaptor.getAllValues().get(12)).isEqualTo("that");
+    }
+
+    @Test
+    public void sendDataToGoogleAnalytics_whenDeltaEnabledAndHitIsLost_shouldSendValueAgain() throws IOException {
+        // Given
+        ReflectionTestUtils.setField(googleAnalyticsManager, "changeSuppressionCache", new ChangeSuppressionCache(true, 24, 1024 * 1024));
+        final ClassPathResource resource = new ClassPathResource("deviceInfoEmptyCustomClientData.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        final User user = UserUtils.getUser();
+        doReturn(user).when(userCache).getUserById(deviceInfo.getUserId());
+        doThrow(new GoogleAnalyticsClientException(new HttpClientErrorException(HttpStatus.BAD_REQUEST)))
+                .doNothing()
+                .when(googleAnalyticsClient).sendEventToGoogleAnalytics(anyString(), anyString(), anyString(), anyString(), any(KeyPath.class), anyString(), anyString());
+        doReturn(false).when(retryPublisher).retryHit(anyString(), any(Throwable.class));
+
+        // When
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+
+        // Then
+        verify(googleAnalyticsClient, new Times(2)).sendEventToGoogleAnalytics(
+                anyString(), anyString(), anyString(), anyString(), any(KeyPath.class), anyString(), anyString());
+    }
+
+    @Test
+    public void sendDataToGoogleAnalytics_whenUserHasKeyFilters_shouldOnlySendAcceptedKeys() throws IOException {
+        // Given
+        final ClassPathResource resource = new ClassPathResource("deviceInfo.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        final User user = User.builder()
+                .gaTrackingId("UA-12348765-65")
+                .gaKeyFilters(Arrays.asList("battery.**", "!battery.useCases.yes.**", "what"))
+                .build();
+        doReturn(user).when(userCache).getUserById(deviceInfo.getUserId());
+
+        // When
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+
+        // Then
+        final ArgumentCaptor<KeyPath> keyCaptor = ArgumentCaptor.forClass(KeyPath.class);
+        verify(googleAnalyticsClient, new Times(8)).sendEventToGoogleAnalytics(
+                anyString(), anyString(), anyString(), anyString(), keyCaptor.capture(), anyString(), anyString());
+        assertThat(keyCaptor.getAllValues().stream().map(KeyPath::getPath))
+                .contains("battery.level", "battery.useCases.oui", "what")
+                .doesNotContain("battery.useCases.yes.yes", "elephants.animal", "howMuch");
+        verify(keyFilterCache).recordFiltered(3);
+    }
+
+    @Test
+    public void sendDataToGoogleAnalytics_whenUserHasDimensionMapping_shouldPackMappedKeysInOneHit() throws IOException {
+        // Given
+        final ClassPathResource resource = new ClassPathResource("deviceInfo.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        final Map<String, String> mapping = new HashMap<>();
+        mapping.put("battery.level", "cm1");
+        mapping.put("battery.brand", "cd2");
+        mapping.put("battery.useCases.time", "cm3");
+        mapping.put("elephants.animal", "cd4");
+        final User user = User.builder()
+                .gaTrackingId("UA-12348765-65")
+                .gaDimensionMapping(mapping)
+                .build();
+        doReturn(user).when(userCache).getUserById(deviceInfo.getUserId());
+        ReflectionTestUtils.setField(googleAnalyticsManager, "packingEventCategory", "custom_client_data");
+        ReflectionTestUtils.setField(googleAnalyticsManager, "packingEventAction", "packed");
+
+        // When
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+
+        // Then
+        final ArgumentCaptor<KeyPath> keyCaptor = ArgumentCaptor.forClass(KeyPath.class);
+        verify(googleAnalyticsClient, new Times(9)).sendEventToGoogleAnalytics(
+                anyString(), anyString(), anyString(), anyString(), keyCaptor.capture(), anyString(), anyString());
+        assertThat(keyCaptor.getAllValues().stream().map(KeyPath::getPath))
+                .contains("battery.useCases.time", "what")
+                .doesNotContain("battery.level", "battery.brand", "elephants.animal");
+        final ArgumentCaptor<GoogleAnalyticsHit> hitCaptor = ArgumentCaptor.forClass(GoogleAnalyticsHit.class);
+        verify(googleAnalyticsClient).sendEventToGoogleAnalytics(hitCaptor.capture());
+        final GoogleAnalyticsHit hit = hitCaptor.getValue();
+        assertThat(hit.getKey().getPath()).isEqualTo("custom_client_data");
+        assertThat(hit.getValue()).isEqualTo("packed");
+        assertThat(hit.getParameters()).containsOnly(entry("cm1", "50"), entry("cd2", "Apple"), entry("cd4", "big"));
+        verify(dimensionMappingCache).recordPacked(3);
+        verify(pipelineMetrics).recordMessage(10);
+    }
+
+
+    @Test
+    public void sendDataToGoogleAnalytics_whenTrackingIdIsGa4MeasurementId_shouldSendEventsInRequestsOf25() throws IOException {
+        // Given
+        final ClassPathResource resource = new ClassPathResource("deviceInfo.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        final User user = User.builder()
+                .gaTrackingId("G-ABC123")
+                .gaApiSecret("secret")
+                .build();
+        final List<Ga4Event> events = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            events.add(new Ga4Event("event" + i));
+        }
+        doReturn(user).when(userCache).getUserById(deviceInfo.getUserId());
+        doReturn(HitRateLimiter.Decision.SEND).when(hitRateLimiter).acquire("G-ABC123");
+        doReturn(events).when(ga4MeasurementClient).toEvents(any(FlattenedProperties.class));
+
+        // When
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+
+        // Then
+        final ArgumentCaptor<FlattenedProperties> propertiesCaptor = ArgumentCaptor.forClass(FlattenedProperties.class);
+        verify(ga4MeasurementClient).toEvents(propertiesCaptor.capture());
+        assertThat(propertiesCaptor.getValue().size()).isEqualTo(12);
+        verify(ga4MeasurementClient).sendEvents("G-ABC123", "secret", deviceInfo.getUnitId(), deviceInfo.getVersionId(), events.subList(0, 25));
+        verify(ga4MeasurementClient).sendEvents("G-ABC123", "secret", deviceInfo.getUnitId(), deviceInfo.getVersionId(), events.subList(25, 30));
+        verifyZeroInteractions(googleAnalyticsClient);
+        verify(pipelineMetrics).recordMessage(2);
+    }
+
+    @Test
+    public void sendDataToGoogleAnalytics_whenAggregationEnabled_shouldSendNumericKeysAsWindowSummaries() throws IOException {
+        // Given
+        final ClassPathResource resource = new ClassPathResource("deviceInfo.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        final User user = UserUtils.getUser();
+        doReturn(user).when(userCache).getUserById(deviceInfo.getUserId());
+        ReflectionTestUtils.setField(googleAnalyticsManager, "numericAggregator",
+                new NumericAggregator(true, 60000, 1000, 1000, "battery.level,battery.useCases.time"));
+
+        // When
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+        googleAnalyticsManager.destroy();
+
+        // Then
+        final ArgumentCaptor<KeyPath> keyCaptor = ArgumentCaptor.forClass(KeyPath.class);
+        verify(googleAnalyticsClient, new Times(20)).sendEventToGoogleAnalytics(
+                anyString(), anyString(), anyString(), anyString(), keyCaptor.capture(), anyString(), anyString());
+        assertThat(keyCaptor.getAllValues().stream().map(KeyPath::getPath))
+                .doesNotContain("battery.level", "battery.useCases.time");
+        final ArgumentCaptor<GoogleAnalyticsHit> hitCaptor = ArgumentCaptor.forClass(GoogleAnalyticsHit.class);
+        verify(googleAnalyticsClient, new Times(2)).sendEventToGoogleAnalytics(hitCaptor.capture());
+        assertThat(hitCaptor.getAllValues().stream().map(hit -> hit.getKey() + " " + hit.getValue() + " " + hit.getParameters().get("el")))
+                .containsOnly(
+                        "battery.level 50 min=50,max=50,mean=50,count=2",
+                        "battery.useCases.time 12.4 min=12.4,max=12.4,mean=12.4,count=2"
+                );
+    }
+
+    @Test
+    public void sendDataToGoogleAnalytics_whenUnitIsSampledOutAndUserCached_shouldNotLookUpNorFlatten() throws IOException {
+        // Given
+        final ClassPathResource resource = new ClassPathResource("deviceInfo.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        final User user = UserUtils.getUser();
+        doReturn(user).when(userCache).getCachedUser(deviceInfo.getUserId());
+        unitSampler.setRate(user.getGaTrackingId(), 0);
+
+        // When
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+
+        // Then
+        verify(userCache, never()).getUserById(anyString());
+        verifyZeroInteractions(additionalPropertiesFlattener, googleAnalyticsClient);
+        verify(unitSampler).record(user.getGaTrackingId(), false);
+    }
+
+    @Test
+    public void sendDataToGoogleAnalytics_whenUnitIsSampledOutAndUserNotCached_shouldNotSendAfterLookup() throws IOException {
+        // Given
+        final ClassPathResource resource = new ClassPathResource("deviceInfo.json", getClass());
+        final DeviceInfo deviceInfo = objectMapper.readValue(resource.getInputStream(), DeviceInfo.class);
+        final User user = UserUtils.getUser();
+        doReturn(user).when(userCache).getUserById(deviceInfo.getUserId());
+        unitSampler.setRate(user.getGaTrackingId(), 0);
+
+        // When
+        googleAnalyticsManager.sendEventToGoogleAnalytics(deviceInfo);
+
+        // Then
+        verifyZeroInteractions(additionalPropertiesFlattener, googleAnalyticsClient);
+        verify(unitSampler).record(user.getGaTrackingId(), false);
+        verify(pipelineMetrics, never()).recordMessage(anyInt());
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.manager;
+
+import io.barracks.googleanalyticsservice.model.KeyPath;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KeyFilterTest {
+
+    @Test
+    public void compile_whenNoPatterns_shouldAcceptEverything() {
+        // When
+        final KeyFilter filter = KeyFilter.compile(Collections.emptyList());
+
+        // Then
+        assertThat(filter).isSameAs(KeyFilter.ALL);
+        assertThat(filter.accepts(KeyPath.of("battery.level"))).isTrue();
+    }
+
+    @Test
+    public void accepts_whenIncludePatterns_shouldOnlyAcceptMatchingKeys() {
+        // Given
+        final KeyFilter filter = KeyFilter.compile(Arrays.asList("battery.*", "elephants.**.animal"));
+
+        // Then
+        assertThat(filter.accepts(KeyPath.of("battery.level"))).isTrue();
+        assertThat(filter.accepts(KeyPath.of("battery.useCases.time"))).isFalse();
+        assertThat(filter.accepts(KeyPath.of("elephants.animal"))).isTrue();
+        assertThat(filter.accepts(KeyPath.of("elephants.big.grey.animal"))).isTrue();
+        assertThat(filter.accepts(KeyPath.of("what"))).isFalse();
+    }
+
+    @Test
+    public void accepts_whenOnlyExcludePatterns_shouldAcceptEverythingElse() {
+        // Given
+        final KeyFilter filter = KeyFilter.compile(Arrays.asList("!debug.**", "!*.secret"));
+
+        // Then
+        assertThat(filter.accepts(KeyPath.of("battery.level"))).isTrue();
+        assertThat(filter.accepts(KeyPath.of("debug"))).isFalse();
+        assertThat(filter.accepts(KeyPath.of("debug.dump.stack"))).isFalse();
+        assertThat(filter.accepts(KeyPath.of("wifi.secret"))).isFalse();
+        assertThat(filter.accepts(KeyPath.of("wifi.secret.length"))).isTrue();
+    }
+
+    @Test
+    public void mayAccept_whenSubtreeExcludedOrOutsideIncludes_shouldBeFalse() {
+        // Given
+        final KeyFilter filter = KeyFilter.compile(Arrays.asList("battery.**", "!battery.debug.**"));
+        final KeyFilter.State battery = filter.enter(filter.start(), "battery");
+
+        // Then
+        assertThat(filter.mayAccept(battery)).isTrue();
+        assertThat(filter.mayAccept(filter.enter(battery, "debug"))).isFalse();
+        assertThat(filter.mayAccept(filter.enter(filter.start(), "elephants"))).isFalse();
+        assertThat(filter.accepts(filter.enter(battery, "level"))).isTrue();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void snapshot_whenValuesRecorded_shouldComputeQuantilesCountAndSum() {
+        // Given
+        final LatencyHistogram histogram = new LatencyHistogram(1000000, 60000);
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        // When
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        // Then
+        assertThat(snapshot.getCount()).isEqualTo(1000);
+        assertThat(snapshot.getSum()).isEqualTo(500500);
+        assertThat(snapshot.getP50()).isBetween(495L, 505L);
+        assertThat(snapshot.getP99()).isBetween(985L, 995L);
+        assertThat(snapshot.getMax()).isBetween(995L, 1005L);
+    }
+
+    @Test
+    public void record_whenValueAboveHighestTrackable_shouldCapValue() {
+        // Given
+        final LatencyHistogram histogram = new LatencyHistogram(1000, 60000);
+
+        // When
+        histogram.record(5000);
+        histogram.record(-1);
+
+        // Then
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount()).isEqualTo(2);
+        assertThat(snapshot.getSum()).isEqualTo(1000);
+    }
+
+    @Test
+    public void snapshot_whenWindowElapsed_shouldOnlyKeepQuantilesOfLastWindow() {
+        // Given
+        final AtomicLong clock = new AtomicLong();
+        final LatencyHistogram histogram = new LatencyHistogram(1000000, 1000, clock::get);
+        histogram.record(100000);
+        histogram.snapshot();
+        histogram.record(10);
+
+        // When
+        clock.addAndGet(1000);
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        // Then
+        assertThat(snapshot.getCount()).isEqualTo(2);
+        assertThat(snapshot.getMax()).isEqualTo(10);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.metrics;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PrometheusEndpointTest {
+
+    @Test
+    public void invoke_shouldWritePipelineSummariesAndPublicMetrics() {
+        // Given
+        final PipelineMetrics pipelineMetrics = new PipelineMetrics(60000);
+        final PublicMetrics otherMetrics = () -> Collections.singletonList(new Metric<>("cache.users.hit", 3L));
+        final PrometheusEndpoint endpoint = new PrometheusEndpoint(pipelineMetrics, Arrays.asList(pipelineMetrics, otherMetrics));
+        pipelineMetrics.recordMessage(12);
+        pipelineMetrics.recordGoogleAnalyticsRequest("200", TimeUnit.MILLISECONDS.toNanos(20));
+        pipelineMetrics.recordGoogleAnalyticsRequest("error", TimeUnit.MILLISECONDS.toNanos(5));
+
+        // When
+        final String output = endpoint.invoke();
+
+        // Then
+        assertThat(output)
+                .contains("ga_pipeline_messages_total 1\n")
+                .contains("# TYPE ga_pipeline_hits_per_message summary\n")
+                .contains("ga_pipeline_hits_per_message_sum 12.0\n")
+                .contains("ga_pipeline_googleanalytics_request_seconds_count{status=\"200\"} 1.0\n")
+                .contains("ga_pipeline_googleanalytics_request_seconds_count{status=\"error\"} 1.0\n")
+                .contains("ga_pipeline_googleanalytics_request_seconds{status=\"200\",quantile=\"0.5\"} 0.02")
+                .contains("cache_users_hit 3.0\n")
+                .doesNotContain("pipeline.messages");
+    }
+
+    @Test
+    public void invoke_whenMetricsAreNamedAfterIds_shouldGroupThemInLabelledFamilies() {
+        // Given
+        final PipelineMetrics pipelineMetrics = new PipelineMetrics(60000);
+        final PublicMetrics samplingMetrics = () -> Arrays.asList(
+                new Metric<>("sampling.sent", 5L),
+                new Metric<>("sampling.UA-1-1.sent", 2L),
+                new Metric<>("sampling.UA-1-1.dropped", 1L),
+                new Metric<>("sampling.UA_1_1.sent", 3L)
+        );
+        final PublicMetrics schedulerMetrics = () -> Arrays.asList(
+                new Metric<>("scheduler.tenant.user\"1.depth", 4),
+                new Metric<>("ratelimit.throttled.UA-2-1", 6L)
+        );
+        final PrometheusEndpoint endpoint = new PrometheusEndpoint(pipelineMetrics, Arrays.asList(samplingMetrics, schedulerMetrics));
+
+        // When
+        final String output = endpoint.invoke();
+
+        // Then
+        assertThat(output)
+                .contains("sampling_sent 5.0\n")
+                .contains("sampling_tracking_id_sent{tracking_id=\"UA-1-1\"} 2.0\nsampling_tracking_id_sent{tracking_id=\"UA_1_1\"} 3.0\n")
+                .contains("sampling_tracking_id_dropped{tracking_id=\"UA-1-1\"} 1.0\n")
+                .contains("scheduler_tenant_depth{user_id=\"user\\\"1\"} 4.0\n")
+                .contains("ratelimit_tracking_id_throttled{tracking_id=\"UA-2-1\"} 6.0\n")
+                .doesNotContain("UA_1_1_sent", "UA_2_1");
+    }
+
+    @Test
+    public void toPrometheusName_shouldReplaceInvalidCharacters() {
+        assertThat(PrometheusEndpoint.toPrometheusName("circuit.googleanalytics.failure-rate")).isEqualTo("circuit_googleanalytics_failure_rate");
+    }
+}
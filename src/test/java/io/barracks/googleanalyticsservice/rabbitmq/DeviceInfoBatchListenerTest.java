@@ -0,0 +1,184 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import io.barracks.googleanalyticsservice.manager.GoogleAnalyticsManager;
+import io.barracks.googleanalyticsservice.model.DeviceInfo;
+import io.barracks.googleanalyticsservice.utils.DeviceInfoUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeviceInfoBatchListenerTest {
+
+    @Mock
+    private GoogleAnalyticsManager googleAnalyticsManager;
+    @Mock
+    private MessageConverter messageConverter;
+    @Mock
+    private RetryPublisher retryPublisher;
+    @Mock
+    private Channel channel;
+
+    private DeviceInfoBatchListener listener;
+
+    @Before
+    public void setUp() {
+        doReturn(true).when(channel).isOpen();
+    }
+
+    @After
+    public void tearDown() {
+        if (listener != null) {
+            listener.destroy();
+        }
+    }
+
+    @Test
+    public void onMessage_whenBatchIsFull_shouldSendAllDevicesAndAckOnce() throws IOException {
+        // Given
+        listener = new DeviceInfoBatchListener(googleAnalyticsManager, messageConverter, retryPublisher, 3, 60000, 1);
+        final DeviceInfo deviceInfo = DeviceInfoUtils.getDeviceInfo();
+        doReturn(deviceInfo).when(messageConverter).fromMessage(any());
+
+        // When
+        listener.onMessage(message(1), channel);
+        listener.onMessage(message(2), channel);
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+        listener.onMessage(message(3), channel);
+
+        // Then
+        final ArgumentCaptor<List> devicesCaptor = ArgumentCaptor.forClass(List.class);
+        verify(googleAnalyticsManager).sendEventsToGoogleAnalytics(devicesCaptor.capture());
+        assertThat(devicesCaptor.getValue()).hasSize(3).containsOnly(deviceInfo);
+        verify(channel).basicAck(3L, true);
+        verifyNoMoreInteractions(googleAnalyticsManager);
+    }
+
+    @Test
+    public void onMessage_whenMessageCannotBeRead_shouldDropItAndAckTheBatch() throws IOException {
+        // Given
+        listener = new DeviceInfoBatchListener(googleAnalyticsManager, messageConverter, retryPublisher, 2, 60000, 1);
+        final DeviceInfo deviceInfo = DeviceInfoUtils.getDeviceInfo();
+        doThrow(new MessageConversionException("invalid")).doReturn(deviceInfo).when(messageConverter).fromMessage(any());
+
+        // When
+        listener.onMessage(message(7), channel);
+        listener.onMessage(message(8), channel);
+
+        // Then
+        final ArgumentCaptor<List> devicesCaptor = ArgumentCaptor.forClass(List.class);
+        verify(googleAnalyticsManager).sendEventsToGoogleAnalytics(devicesCaptor.capture());
+        assertThat(devicesCaptor.getValue()).containsExactly(deviceInfo);
+        verify(channel).basicAck(8L, true);
+    }
+
+    @Test
+    public void flushExpiredBatches_whenLingerElapsed_shouldSendPartialBatch() throws IOException {
+        // Given
+        listener = new DeviceInfoBatchListener(googleAnalyticsManager, messageConverter, retryPublisher, 100, 1, 1);
+        doReturn(DeviceInfoUtils.getDeviceInfo()).when(messageConverter).fromMessage(any());
+
+        // When
+        listener.onMessage(message(1), channel);
+        listener.onMessage(message(2), channel);
+
+        // Then
+        verify(channel, timeout(1000)).basicAck(2L, true);
+        verify(googleAnalyticsManager).sendEventsToGoogleAnalytics(any());
+    }
+
+    @Test
+    public void flushExpiredBatches_whenLingerElapsed_shouldProcessBatchOnFlushThread() throws IOException {
+        // Given
+        listener = new DeviceInfoBatchListener(googleAnalyticsManager, messageConverter, retryPublisher, 100, 1, 1);
+        doReturn(DeviceInfoUtils.getDeviceInfo()).when(messageConverter).fromMessage(any());
+        final AtomicReference<String> threadName = new AtomicReference<>();
+        doAnswer(invocation -> {
+            threadName.set(Thread.currentThread().getName());
+            return Collections.emptyMap();
+        }).when(googleAnalyticsManager).sendEventsToGoogleAnalytics(any());
+
+        // When
+        listener.onMessage(message(1), channel);
+
+        // Then
+        verify(channel, timeout(1000)).basicAck(1L, true);
+        assertThat(threadName.get()).startsWith("amqp-batch-flush-");
+    }
+
+    @Test
+    public void onMessage_whenOneDeviceFails_shouldRetryOnlyThatDevice() throws IOException {
+        // Given
+        listener = new DeviceInfoBatchListener(googleAnalyticsManager, messageConverter, retryPublisher, 2, 60000, 1);
+        final DeviceInfo failing = DeviceInfoUtils.getDeviceInfo().toBuilder().unitId("failing").build();
+        final DeviceInfo sent = DeviceInfoUtils.getDeviceInfo().toBuilder().unitId("sent").build();
+        final RuntimeException failure = new RuntimeException();
+        final Message failingMessage = message(1);
+        doReturn(failing).doReturn(sent).when(messageConverter).fromMessage(any());
+        final Map<DeviceInfo, RuntimeException> failedDevices = new IdentityHashMap<>();
+        failedDevices.put(failing, failure);
+        doReturn(failedDevices).when(googleAnalyticsManager).sendEventsToGoogleAnalytics(any());
+
+        // When
+        listener.onMessage(failingMessage, channel);
+        listener.onMessage(message(2), channel);
+
+        // Then
+        verify(retryPublisher).retryMessage(failingMessage, failure);
+        verifyNoMoreInteractions(retryPublisher);
+        verify(channel).basicAck(2L, true);
+    }
+
+    private static Message message(long deliveryTag) {
+        final MessageProperties properties = new MessageProperties();
+        properties.setDeliveryTag(deliveryTag);
+        return new Message(new byte[0], properties);
+    }
+
+}
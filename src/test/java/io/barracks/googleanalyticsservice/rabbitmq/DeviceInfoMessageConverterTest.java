@@ -0,0 +1,113 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.rabbitmq;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.barracks.googleanalyticsservice.cache.KeyPathTable;
+import io.barracks.googleanalyticsservice.manager.AdditionalPropertiesFlattener;
+import io.barracks.googleanalyticsservice.metrics.PipelineMetrics;
+import io.barracks.googleanalyticsservice.model.DeviceInfo;
+import io.barracks.googleanalyticsservice.model.FlattenedProperties;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.http.MediaType;
+import org.springframework.util.FileCopyUtils;
+
+import java.io.IOException;
+import java.util.Date;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+public class DeviceInfoMessageConverterTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final MessageConverter delegate = mock(MessageConverter.class);
+
+    private final DeviceInfoMessageConverter converter = new DeviceInfoMessageConverter(objectMapper, delegate, new KeyPathTable(1000, 150), mock(PipelineMetrics.class));
+
+    @Test
+    public void fromMessage_whenNestedCustomClientData_shouldMatchTreeModel() throws IOException {
+        assertMatchesTreeModel(new ClassPathResource("deviceInfo.json", getClass()));
+    }
+
+    @Test
+    public void fromMessage_whenEmptyOrMissingCustomClientData_shouldMatchTreeModel() throws IOException {
+        assertMatchesTreeModel(new ClassPathResource("io/barracks/googleanalyticsservice/manager/deviceInfoEmptyCustomClientData.json"));
+        assertMatchesTreeModel(new ClassPathResource("io/barracks/googleanalyticsservice/manager/deviceInfoNoCustomClientData.json"));
+        assertMatchesTreeModel(new ClassPathResource("io/barracks/googleanalyticsservice/manager/deviceInfoMissingValueForAKey.json"));
+    }
+
+    @Test
+    public void fromMessage_whenValuesOfEveryKind_shouldRenderThemLikeTheTreeModel() throws IOException {
+        final String json = "{\"unitId\":\"unit\",\"receptionDate\":1490000000000,\"unknown\":{\"a\":[1]},\"additionalProperties\":" +
+                "{\"int\":-0,\"long\":12345678901,\"big\":123456789012345678901234567890,\"float\":1.50,\"exp\":1e3," +
+                "\"null\":null,\"array\":[1,{\"a\":2}],\"deep\":{\"empty\":{},\"text\":\"caf\\u00e9\"},\"\":{\"x\":1}}}";
+        final DeviceInfo result = assertMatchesTreeModel(json.getBytes("UTF-8"));
+        assertThat(result.getUnitId()).isEqualTo("unit");
+        assertThat(result.getReceptionDate()).isEqualTo(new Date(1490000000000L));
+    }
+
+    @Test
+    public void fromMessage_whenNotADeviceInfo_shouldUseDelegate() {
+        // Given
+        final Message message = new Message("{}".getBytes(), new MessageProperties());
+        message.getMessageProperties().setInferredArgumentType(String.class);
+
+        // When
+        converter.fromMessage(message);
+
+        // Then
+        verify(delegate).fromMessage(message);
+    }
+
+    private void assertMatchesTreeModel(ClassPathResource resource) throws IOException {
+        assertMatchesTreeModel(FileCopyUtils.copyToByteArray(resource.getInputStream()));
+    }
+
+    private DeviceInfo assertMatchesTreeModel(byte[] body) throws IOException {
+        // Given
+        final MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        messageProperties.setInferredArgumentType(DeviceInfo.class);
+        final DeviceInfo expected = objectMapper.readValue(body, DeviceInfo.class);
+        final FlattenedProperties.Builder expectedProperties = FlattenedProperties.builder();
+        new AdditionalPropertiesFlattener(new KeyPathTable(1000, 150)).flatten(expected.getAdditionalProperties(), expectedProperties::add);
+
+        // When
+        final DeviceInfo result = (DeviceInfo) converter.fromMessage(new Message(body, messageProperties));
+
+        // Then
+        assertThat(result.getFlattenedAdditionalProperties()).contains(expectedProperties.build());
+        assertThat(result.toBuilder().flattenedAdditionalProperties(null).additionalProperties(null).build())
+                .isEqualTo(expected.toBuilder().additionalProperties(null).build());
+        return result;
+    }
+}
@@ -96,7 +96,7 @@ public class DeviceMessageReceiverTest {
         messageProperties.setContentType(MediaType.APPLICATION_JSON_VALUE);
         this.rabbitTemplate.convertSendAndReceive(exchangeName, "test.v1.afsdsf", new Message(FileCopyUtils.copyToByteArray(resource.getInputStream()), messageProperties));
 
-        verify(receiver).receiveMessage(any());
+        verify(receiver).receiveMessage(any(), any());
         verify(googleAnalyticsManager).sendEventToGoogleAnalytics(any());
     }
 
@@ -0,0 +1,115 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.rabbitmq;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+
+import java.util.Collections;
+import java.util.Properties;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ListenerConcurrencyScalerTest {
+
+    private static final String QUEUE_NAME = "queue";
+
+    @Mock
+    private AmqpAdmin amqpAdmin;
+    @Mock
+    private SimpleMessageListenerContainer container;
+
+    private ListenerConcurrencyScaler scaler;
+
+    @Before
+    public void setUp() {
+        scaler = new ListenerConcurrencyScaler(amqpAdmin, () -> Collections.<MessageListenerContainer>singletonList(container), QUEUE_NAME, 2, 10, 100);
+    }
+
+    @Test
+    public void scale_whenQueueGrows_shouldAddConsumersUpToMaximum() {
+        // Given
+        givenQueueDepth(450);
+
+        // When
+        scaler.scale();
+
+        // Then
+        verify(container).setConcurrentConsumers(6);
+        assertThat(scaler.getCurrentConsumers()).isEqualTo(6);
+
+        // Given
+        givenQueueDepth(100000);
+
+        // When
+        scaler.scale();
+
+        // Then
+        verify(container).setConcurrentConsumers(10);
+    }
+
+    @Test
+    public void scale_whenQueueDrains_shouldGoBackToMinimum() {
+        // Given
+        givenQueueDepth(450);
+        scaler.scale();
+        givenQueueDepth(0);
+
+        // When
+        scaler.scale();
+
+        // Then
+        verify(container).setConcurrentConsumers(2);
+        assertThat(scaler.getCurrentConsumers()).isEqualTo(2);
+    }
+
+    @Test
+    public void scale_whenDepthUnchanged_shouldNotTouchContainer() {
+        // Given
+        givenQueueDepth(50);
+
+        // When
+        scaler.scale();
+
+        // Then
+        verify(container, never()).setConcurrentConsumers(anyInt());
+    }
+
+    private void givenQueueDepth(int depth) {
+        final Properties properties = new Properties();
+        properties.put(RabbitAdmin.QUEUE_MESSAGE_COUNT, depth);
+        doReturn(properties).when(amqpAdmin).getQueueProperties(QUEUE_NAME);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.rabbitmq;
+
+import io.barracks.googleanalyticsservice.client.exception.AuthorizationServiceClientException;
+import io.barracks.googleanalyticsservice.client.exception.GoogleAnalyticsClientException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RetryPublisherTest {
+
+    private static final String QUEUE_NAME = "queue";
+
+    @Mock
+    private RabbitTemplate rabbitTemplate;
+
+    private RetryTopology retryTopology = new RetryTopology(QUEUE_NAME, 3, 1000, 5);
+    private RetryPublisher retryPublisher;
+
+    @Before
+    public void setUp() {
+        retryPublisher = new RetryPublisher(rabbitTemplate, retryTopology, true);
+    }
+
+    @Test
+    public void retryMessage_whenFailureIsTransient_shouldRouteToFirstDelayQueue() {
+        // Given
+        final Message message = new Message("{}".getBytes(StandardCharsets.UTF_8), new MessageProperties());
+
+        // When
+        final boolean result = retryPublisher.retryMessage(message, new ResourceAccessException("timeout"));
+
+        // Then
+        assertThat(result).isTrue();
+        verify(rabbitTemplate).send("", "queue.retry.1", message);
+        assertThat(RetryPublisher.getAttempt(message)).isEqualTo(1);
+    }
+
+    @Test
+    public void retryMessage_whenAttemptsAreExhausted_shouldParkMessage() {
+        // Given
+        final MessageProperties properties = new MessageProperties();
+        properties.setHeader(RetryPublisher.ATTEMPT_HEADER, 3);
+        final Message message = new Message("{}".getBytes(StandardCharsets.UTF_8), properties);
+
+        // When
+        retryPublisher.retryMessage(message, new AuthorizationServiceClientException(new HttpServerErrorException(HttpStatus.BAD_GATEWAY)));
+
+        // Then
+        verify(rabbitTemplate).send("", "queue.parking", message);
+    }
+
+    @Test
+    public void deferMessage_shouldRouteToDeferralQueueWithoutCountingAnAttempt() {
+        // Given
+        final Message message = new Message("{}".getBytes(StandardCharsets.UTF_8), new MessageProperties());
+
+        // When
+        retryPublisher.deferMessage(message);
+
+        // Then
+        verify(rabbitTemplate).send("", "queue.deferred", message);
+        assertThat(RetryPublisher.getAttempt(message)).isEqualTo(0);
+        final Queue deferralQueue = retryTopology.getQueues().stream().filter(queue -> queue.getName().equals("queue.deferred")).findFirst().get();
+        assertThat(deferralQueue.getArguments())
+                .containsEntry("x-message-ttl", 1000)
+                .containsEntry("x-dead-letter-routing-key", "queue");
+    }
+
+    @Test
+    public void parkMessage_whenRetriesAreDisabled_shouldStillParkMessage() {
+        // Given
+        retryPublisher = new RetryPublisher(rabbitTemplate, retryTopology, false);
+        final Message message = new Message("not json".getBytes(StandardCharsets.UTF_8), new MessageProperties());
+
+        // When
+        retryPublisher.parkMessage(message);
+
+        // Then
+        verify(rabbitTemplate).send("", "queue.parking", message);
+    }
+
+    @Test
+    public void retryMessage_whenFailureIsPermanent_shouldNotRetry() {
+        // Given
+        final Message message = new Message("{}".getBytes(StandardCharsets.UTF_8), new MessageProperties());
+
+        // When
+        final boolean result = retryPublisher.retryMessage(message, new AuthorizationServiceClientException(new HttpClientErrorException(HttpStatus.NOT_FOUND)));
+
+        // Then
+        assertThat(result).isFalse();
+        verifyZeroInteractions(rabbitTemplate);
+    }
+
+    @Test
+    public void retryMessage_whenDisabled_shouldNotRetry() {
+        // Given
+        retryPublisher = new RetryPublisher(rabbitTemplate, retryTopology, false);
+        final Message message = new Message("{}".getBytes(StandardCharsets.UTF_8), new MessageProperties());
+
+        // When
+        final boolean result = retryPublisher.retryMessage(message, new ResourceAccessException("timeout"));
+
+        // Then
+        assertThat(result).isFalse();
+        verifyZeroInteractions(rabbitTemplate);
+    }
+
+    @Test
+    public void retryHit_whenHitFailsAgain_shouldRouteToNextDelayQueue() {
+        // Given
+        final GoogleAnalyticsClientException failure = new GoogleAnalyticsClientException(new HttpClientErrorException(HttpStatus.TOO_MANY_REQUESTS));
+        retryPublisher.retryHit("v=1&qt=0", failure);
+        final ArgumentCaptor<Message> messageCaptor = ArgumentCaptor.forClass(Message.class);
+        verify(rabbitTemplate).send(eq(""), eq("queue.hits.retry.1"), messageCaptor.capture());
+        final Message message = messageCaptor.getValue();
+
+        // When
+        retryPublisher.retryHit(message, failure);
+
+        // Then
+        verify(rabbitTemplate).send("", "queue.hits.retry.2", message);
+        assertThat(new String(message.getBody(), StandardCharsets.US_ASCII)).isEqualTo("v=1&qt=0");
+        assertThat(message.getMessageProperties().getHeaders()).containsKey(RetryPublisher.FIRST_FAILURE_HEADER);
+        verify(rabbitTemplate, never()).send(anyString(), eq("queue.hits.parking"), any(Message.class));
+    }
+
+    @Test
+    public void getQueues_shouldDeclareDelayQueuesDeadLetteringToTheirTarget() {
+        // When
+        final List<Queue> queues = retryTopology.getQueues();
+
+        // Then
+        assertThat(queues.stream().map(Queue::getName)).containsOnly(
+                "queue.hits", "queue.deferred",
+                "queue.retry.1", "queue.retry.2", "queue.retry.3", "queue.parking",
+                "queue.hits.retry.1", "queue.hits.retry.2", "queue.hits.retry.3", "queue.hits.parking"
+        );
+        final Queue lastDelayQueue = queues.stream().filter(queue -> queue.getName().equals("queue.hits.retry.3")).findFirst().get();
+        assertThat(lastDelayQueue.getArguments())
+                .containsEntry("x-message-ttl", 25000)
+                .containsEntry("x-dead-letter-exchange", "")
+                .containsEntry("x-dead-letter-routing-key", "queue.hits");
+    }
+
+}
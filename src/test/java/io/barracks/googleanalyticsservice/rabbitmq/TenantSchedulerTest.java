@@ -0,0 +1,270 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.rabbitmq;
+
+import com.rabbitmq.client.Channel;
+import io.barracks.googleanalyticsservice.manager.GoogleAnalyticsManager;
+import io.barracks.googleanalyticsservice.model.DeviceInfo;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.amqp.AmqpConnectException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TenantSchedulerTest {
+
+    @Mock
+    private GoogleAnalyticsManager googleAnalyticsManager;
+    @Mock
+    private RetryPublisher retryPublisher;
+    @Mock
+    private Channel channel;
+
+    @Test
+    public void take_whenUsersHaveWeights_shouldServeThemInWeightedRoundRobin() {
+        // Given
+        final TenantScheduler scheduler = new TenantScheduler(googleAnalyticsManager, retryPublisher, true, 0, 10, "a=2", 10, 1000);
+        final DeviceInfo a1 = deviceInfo("a"), a2 = deviceInfo("a"), a3 = deviceInfo("a"), a4 = deviceInfo("a");
+        final DeviceInfo b1 = deviceInfo("b"), b2 = deviceInfo("b");
+        for (DeviceInfo deviceInfo : new DeviceInfo[]{a1, a2, a3, a4, b1, b2}) {
+            scheduler.submit(deviceInfo, message(1), channel);
+        }
+
+        // When
+        final List<DeviceInfo> result = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            result.add(scheduler.take().getDeviceInfo());
+        }
+
+        // Then
+        assertThat(result).containsExactly(a1, a2, b1, a3, a4, b2);
+    }
+
+    @Test
+    public void submit_whenUserQueueIsFull_shouldDeferAndAckMessageAndAcceptOtherUsers() throws IOException {
+        // Given
+        final TenantScheduler scheduler = new TenantScheduler(googleAnalyticsManager, retryPublisher, true, 0, 1, "", 10, 1000);
+        final Message overflow = message(2);
+        scheduler.submit(deviceInfo("a"), message(1), channel);
+
+        // When
+        scheduler.submit(deviceInfo("a"), overflow, channel);
+        scheduler.submit(deviceInfo("b"), message(3), channel);
+
+        // Then
+        verify(retryPublisher).deferMessage(overflow);
+        verify(retryPublisher, never()).retryMessage(any(Message.class), any(Throwable.class));
+        verify(channel).basicAck(2L, false);
+        verifyNoMoreInteractions(channel);
+        final Map<String, Number> metrics = metrics(scheduler);
+        assertThat(metrics)
+                .containsEntry("scheduler.queued", 2)
+                .containsEntry("scheduler.tenants", 2)
+                .containsEntry("scheduler.tenant.a.depth", 1)
+                .containsEntry("scheduler.tenant.b.depth", 1)
+                .containsEntry("scheduler.deferred", 1L)
+                .containsKeys("scheduler.lag_ms", "scheduler.tenant.a.lag_ms");
+        verifyZeroInteractions(googleAnalyticsManager);
+    }
+
+    @Test
+    public void submit_whenUserQueueIsFullAndMessageCannotBeDeferred_shouldRejectItWithoutRequeue() throws IOException {
+        // Given
+        final TenantScheduler scheduler = new TenantScheduler(googleAnalyticsManager, retryPublisher, true, 0, 1, "", 10, 1000);
+        final Message overflow = message(2);
+        doThrow(new AmqpConnectException(null)).when(retryPublisher).deferMessage(overflow);
+        scheduler.submit(deviceInfo("a"), message(1), channel);
+
+        // When
+        scheduler.submit(deviceInfo("a"), overflow, channel);
+
+        // Then
+        verify(channel).basicReject(2L, false);
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+    }
+
+    @Test
+    public void resolveMaxDepth_whenNotConfigured_shouldStayWellBelowPrefetch() {
+        // When
+        final int result = TenantScheduler.resolveMaxDepth(0, 50);
+
+        // Then
+        assertThat(result).isEqualTo(12);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void resolveMaxDepth_whenNotBelowPrefetch_shouldThrowException() {
+        // When
+        TenantScheduler.resolveMaxDepth(50, 50);
+    }
+
+    @Test
+    public void metrics_whenManyUsersAreQueued_shouldOnlyReportDeepestUsers() {
+        // Given
+        final TenantScheduler scheduler = new TenantScheduler(googleAnalyticsManager, retryPublisher, true, 0, 10, "", 1, 1000);
+        scheduler.submit(deviceInfo("a"), message(1), channel);
+        scheduler.submit(deviceInfo("b"), message(2), channel);
+        scheduler.submit(deviceInfo("b"), message(3), channel);
+
+        // When
+        final Map<String, Number> metrics = metrics(scheduler);
+
+        // Then
+        assertThat(metrics)
+                .containsEntry("scheduler.tenants", 2)
+                .containsEntry("scheduler.tenant.b.depth", 2)
+                .doesNotContainKeys("scheduler.tenant.a.depth", "scheduler.tenant.a.lag_ms");
+    }
+
+    @Test
+    public void submit_whenDisabled_shouldProcessOnCallerThreadWithoutAcking() {
+        // Given
+        final TenantScheduler scheduler = new TenantScheduler(googleAnalyticsManager, retryPublisher, false, 0, 1, "", 10, 1000);
+        final DeviceInfo deviceInfo = deviceInfo("a");
+        final Message message = message(1);
+        final RuntimeException failure = new RuntimeException();
+        doThrow(failure).when(googleAnalyticsManager).sendEventToGoogleAnalytics(deviceInfo);
+
+        // When
+        scheduler.submit(deviceInfo, message, channel);
+
+        // Then
+        verify(googleAnalyticsManager).sendEventToGoogleAnalytics(deviceInfo);
+        verify(retryPublisher).retryMessage(message, failure);
+        verifyZeroInteractions(channel);
+        assertThat(scheduler.metrics()).isEmpty();
+    }
+
+    @Test
+    public void destroy_whenMessagesAreQueued_shouldProcessAndAckThemBeforeStopping() throws Exception {
+        // Given
+        final TenantScheduler scheduler = new TenantScheduler(googleAnalyticsManager, retryPublisher, true, 2, 100, "", 10, 10000);
+        for (int i = 0; i < 50; i++) {
+            scheduler.submit(deviceInfo(i % 2 == 0 ? "a" : "b"), message(i), channel);
+        }
+
+        // When
+        scheduler.destroy();
+
+        // Then
+        verify(googleAnalyticsManager, times(50)).sendEventToGoogleAnalytics(any());
+        verify(channel, times(50)).basicAck(anyLong(), eq(false));
+        assertThat(scheduler.take()).isNull();
+    }
+
+    @Test
+    public void submit_whenStopped_shouldLeaveMessageToTheBroker() throws Exception {
+        // Given
+        final TenantScheduler scheduler = new TenantScheduler(googleAnalyticsManager, retryPublisher, true, 1, 100, "", 10, 10000);
+        scheduler.destroy();
+
+        // When
+        scheduler.submit(deviceInfo("a"), message(7), channel);
+
+        // Then
+        verifyZeroInteractions(channel, googleAnalyticsManager, retryPublisher);
+    }
+
+    @Test
+    public void discard_whenEnabled_shouldParkAndAckMessage() throws IOException {
+        // Given
+        final TenantScheduler scheduler = new TenantScheduler(googleAnalyticsManager, retryPublisher, true, 0, 10, "", 10, 1000);
+        final Message message = message(4);
+
+        // When
+        scheduler.discard(message, channel);
+
+        // Then
+        verify(retryPublisher).parkMessage(message);
+        verify(channel).basicAck(4L, false);
+        verifyNoMoreInteractions(channel);
+    }
+
+    @Test
+    public void discard_whenMessageCannotBeParked_shouldRejectItWithoutRequeue() throws IOException {
+        // Given
+        final TenantScheduler scheduler = new TenantScheduler(googleAnalyticsManager, retryPublisher, true, 0, 10, "", 10, 1000);
+        final Message message = message(5);
+        doThrow(new AmqpConnectException(null)).when(retryPublisher).parkMessage(message);
+
+        // When
+        scheduler.discard(message, channel);
+
+        // Then
+        verify(channel).basicReject(5L, false);
+        verifyNoMoreInteractions(channel);
+    }
+
+    @Test
+    public void destroy_whenFailuresCannotBeRetried_shouldRejectThemWithoutRequeue() throws Exception {
+        // Given
+        final TenantScheduler scheduler = new TenantScheduler(googleAnalyticsManager, retryPublisher, true, 1, 100, "", 10, 10000);
+        final RuntimeException failure = new RuntimeException();
+        doThrow(failure).when(googleAnalyticsManager).sendEventToGoogleAnalytics(any());
+        doThrow(new AmqpConnectException(null)).when(retryPublisher).retryMessage(any(Message.class), eq(failure));
+        scheduler.submit(deviceInfo("a"), message(6), channel);
+        scheduler.submit(deviceInfo("a"), message(8), channel);
+
+        // When
+        scheduler.destroy();
+
+        // Then
+        verify(channel).basicReject(6L, false);
+        verify(channel).basicReject(8L, false);
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+    }
+
+    private static Map<String, Number> metrics(TenantScheduler scheduler) {
+        return scheduler.metrics().stream().collect(Collectors.toMap(Metric::getName, metric -> (Number) metric.getValue()));
+    }
+
+    private static DeviceInfo deviceInfo(String userId) {
+        return DeviceInfo.builder().userId(userId).unitId(UUID.randomUUID().toString()).versionId("v1").build();
+    }
+
+    private static Message message(long deliveryTag) {
+        final MessageProperties properties = new MessageProperties();
+        properties.setDeliveryTag(deliveryTag);
+        return new Message(new byte[0], properties);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.sampling;
+
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SamplingEndpointTest {
+
+    private final UnitSampler unitSampler = new UnitSampler(1.0, "UA-1=0.5");
+    private final SamplingEndpoint endpoint = new SamplingEndpoint(unitSampler);
+
+    @Test
+    public void invoke_shouldListDefaultAndTrackingIdRates() {
+        assertThat(endpoint.invoke())
+                .containsEntry("defaultRate", 1.0)
+                .containsEntry("rates", Collections.singletonMap("UA-1", 0.5));
+    }
+
+    @Test
+    public void setRate_shouldChangeTheRateAtRuntime() {
+        // When
+        endpoint.setRate("UA-2", 0.25);
+        endpoint.setDefaultRate(0.75);
+        endpoint.removeRate("UA-1");
+
+        // Then
+        assertThat(unitSampler.getRates()).containsOnlyKeys("UA-2").containsEntry("UA-2", 0.25);
+        assertThat(unitSampler.getDefaultRate()).isEqualTo(0.75);
+    }
+
+    @Test
+    public void setRate_whenRateIsOutOfRange_shouldBeRejected() {
+        assertThat(endpoint.setRate("UA-1", 1.5).getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(endpoint.setDefaultRate(-0.1).getStatusCode()).isEqualTo(HttpStatus.BAD_REQUEST);
+        assertThat(unitSampler.getRates()).containsEntry("UA-1", 0.5);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.sampling;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class UnitSamplerTest {
+
+    @Test
+    public void isSampled_whenNoRate_shouldKeepEveryUnit() {
+        // Given
+        final UnitSampler sampler = new UnitSampler(1.0, "");
+
+        // Then
+        assertThat(IntStream.range(0, 1000).allMatch(i -> sampler.isSampled("UA-1", UUID.randomUUID().toString()))).isTrue();
+    }
+
+    @Test
+    public void isSampled_shouldKeepAboutTheRateAndAlwaysTheSameUnits() {
+        // Given
+        final UnitSampler sampler = new UnitSampler(1.0, "UA-1=0.1, UA-2=0");
+        final String[] unitIds = IntStream.range(0, 10000).mapToObj(i -> "unit-" + i).toArray(String[]::new);
+
+        // When
+        final long kept = IntStream.range(0, unitIds.length).filter(i -> sampler.isSampled("UA-1", unitIds[i])).count();
+        final long keptAgain = IntStream.range(0, unitIds.length).filter(i -> sampler.isSampled("UA-1", unitIds[i])).count();
+
+        // Then
+        assertThat(kept).isBetween(900L, 1100L).isEqualTo(keptAgain);
+        assertThat(sampler.isSampled("UA-2", "unit-1")).isFalse();
+        assertThat(sampler.isSampled("UA-3", "unit-1")).isTrue();
+        assertThat(sampler.isSampled("UA-2", null)).isTrue();
+    }
+
+    @Test
+    public void setRate_whenRateIncreases_shouldKeepTheUnitsAlreadyKept() {
+        // Given
+        final UnitSampler sampler = new UnitSampler(0.2, "");
+        final String[] kept = IntStream.range(0, 1000).mapToObj(i -> "unit-" + i)
+                .filter(unitId -> sampler.isSampled("UA-1", unitId)).toArray(String[]::new);
+
+        // When
+        sampler.setRate("UA-1", 0.5);
+
+        // Then
+        assertThat(Arrays.stream(kept).allMatch(unitId -> sampler.isSampled("UA-1", unitId))).isTrue();
+        assertThat(sampler.getRates()).containsEntry("UA-1", 0.5);
+    }
+
+    @Test
+    public void record_shouldCountPerConfiguredTrackingIdAndInTotal() {
+        // Given
+        final UnitSampler sampler = new UnitSampler(1.0, "UA-1=0.5");
+
+        // When
+        sampler.record("UA-1", true);
+        sampler.record("UA-1", false);
+        sampler.record("UA-2", true);
+
+        // Then
+        assertThat(sampler.metrics()).extracting("name", "value").containsOnly(
+                tuple("sampling.sent", 2L),
+                tuple("sampling.dropped", 1L),
+                tuple("sampling.UA-1.sent", 1L),
+                tuple("sampling.UA-1.dropped", 1L)
+        );
+    }
+
+    @Test
+    public void constructor_whenRateIsInvalid_shouldFail() {
+        assertThatThrownBy(() -> new UnitSampler(1.0, "UA-1=2")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new UnitSampler(1.0, "UA-1")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
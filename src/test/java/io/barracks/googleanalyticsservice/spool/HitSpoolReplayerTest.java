@@ -0,0 +1,134 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.spool;
+
+import io.barracks.googleanalyticsservice.client.GoogleAnalyticsBatchSender;
+import io.barracks.googleanalyticsservice.client.HitRateLimiter;
+import io.barracks.googleanalyticsservice.client.exception.GoogleAnalyticsClientException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HitSpoolReplayerTest {
+
+    @Mock
+    private HitSpool hitSpool;
+    @Mock
+    private GoogleAnalyticsBatchSender googleAnalyticsBatchSender;
+    @Mock
+    private HitRateLimiter hitRateLimiter;
+
+    private HitSpoolReplayer hitSpoolReplayer;
+
+    @Before
+    public void setUp() {
+        hitSpoolReplayer = new HitSpoolReplayer(hitSpool, googleAnalyticsBatchSender, hitRateLimiter);
+        doReturn(HitRateLimiter.Decision.SEND).when(hitRateLimiter).acquire(anyString());
+        doReturn(CompletableFuture.completedFuture(null)).when(googleAnalyticsBatchSender).sendPayload(anyString());
+    }
+
+    @Test
+    public void replay_whenGoogleAnalyticsIsUp_shouldBatchHitsWithQueueTimeAndCommit() {
+        // Given
+        final long enqueuedAt = System.currentTimeMillis() - 60000;
+        doReturn(new HitSpool.SpooledHit("v=1&qt=0&ec=key", enqueuedAt, 15)).doReturn(null).when(hitSpool).peek();
+
+        // When
+        hitSpoolReplayer.replay();
+
+        // Then
+        final ArgumentCaptor<String> payloadCaptor = ArgumentCaptor.forClass(String.class);
+        verify(googleAnalyticsBatchSender).sendPayload(payloadCaptor.capture());
+        final long queueTime = Long.parseLong(payloadCaptor.getValue().replaceAll(".*&qt=(\\d+)&.*", "$1"));
+        assertThat(queueTime).isBetween(60000L, 70000L);
+        verify(googleAnalyticsBatchSender).flush();
+        verify(hitSpool).advance();
+        verify(hitSpool).commit();
+        verify(hitSpool, never()).append(anyString(), anyLong());
+    }
+
+    @Test
+    public void replay_whenGoogleAnalyticsIsStillDown_shouldProbeWithOneHitAndKeepIt() {
+        // Given
+        final long enqueuedAt = System.currentTimeMillis();
+        doReturn(true).when(hitSpool).isDegraded();
+        doReturn(new HitSpool.SpooledHit("v=1&qt=0", enqueuedAt, 8)).when(hitSpool).peek();
+        final CompletableFuture<Void> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new GoogleAnalyticsClientException(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE)));
+        doReturn(failure).when(googleAnalyticsBatchSender).sendPayload(anyString());
+
+        // When
+        hitSpoolReplayer.replay();
+
+        // Then
+        verify(googleAnalyticsBatchSender).sendPayload(anyString());
+        verify(hitSpool).advance();
+        verify(hitSpool).append("v=1&qt=0", enqueuedAt);
+        verify(hitSpool).commit();
+    }
+
+    @Test
+    public void replay_whenTrackingIdIsThrottled_shouldRequeueHitWithItsEnqueueTime() {
+        // Given
+        final long enqueuedAt = System.currentTimeMillis() - 1000;
+        doReturn(new HitSpool.SpooledHit("v=1&tid=UA-1&qt=0", enqueuedAt, 17)).doReturn(null).when(hitSpool).peek();
+        doReturn(HitRateLimiter.Decision.DROP).when(hitRateLimiter).acquire("UA-1");
+
+        // When
+        hitSpoolReplayer.replay();
+
+        // Then
+        verify(googleAnalyticsBatchSender, never()).sendPayload(anyString());
+        verify(hitSpool).append("v=1&tid=UA-1&qt=0", enqueuedAt);
+        verify(hitSpool).advance();
+    }
+
+    @Test
+    public void replay_whenHitIsTooOld_shouldSkipIt() {
+        // Given
+        final long enqueuedAt = System.currentTimeMillis() - HitSpoolReplayer.MAX_QUEUE_TIME_MILLIS - 1000;
+        doReturn(new HitSpool.SpooledHit("v=1&qt=0", enqueuedAt, 8)).doReturn(null).when(hitSpool).peek();
+
+        // When
+        hitSpoolReplayer.replay();
+
+        // Then
+        verify(googleAnalyticsBatchSender, never()).sendPayload(anyString());
+        verify(hitSpool).advance();
+    }
+}
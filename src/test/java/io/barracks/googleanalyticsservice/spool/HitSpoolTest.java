@@ -0,0 +1,196 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.googleanalyticsservice.spool;
+
+import io.barracks.googleanalyticsservice.client.CircuitBreaker;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HitSpoolTest {
+
+    private static final int SEGMENT_BYTES = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void peek_whenHitsAppended_shouldReturnThemInOrder() {
+        // Given
+        final HitSpool hitSpool = newSpool(1024 * 1024);
+        final long before = System.currentTimeMillis();
+        hitSpool.append("v=1&ec=first");
+        hitSpool.append("v=1&ec=second");
+
+        // When
+        final HitSpool.SpooledHit first = hitSpool.peek();
+        final List<String> payloads = drain(hitSpool);
+
+        // Then
+        assertThat(first.getEnqueuedAt()).isBetween(before, System.currentTimeMillis());
+        assertThat(payloads).containsExactly("v=1&ec=first", "v=1&ec=second");
+        assertThat(hitSpool.peek()).isNull();
+    }
+
+    @Test
+    public void peek_whenSegmentIsFull_shouldContinueInNextSegment() {
+        // Given
+        final HitSpool hitSpool = newSpool(1024 * 1024);
+        final List<String> expected = appendHits(hitSpool, 100);
+
+        // When
+        final List<String> payloads = drain(hitSpool);
+
+        // Then
+        assertThat(folder.getRoot().list((dir, name) -> name.endsWith(HitSpool.SEGMENT_SUFFIX))).hasSize(1);
+        assertThat(payloads).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void open_afterRestart_shouldResumeFromCommittedOffset() {
+        // Given
+        final HitSpool hitSpool = newSpool(1024 * 1024);
+        final List<String> expected = appendHits(hitSpool, 50);
+        for (int i = 0; i < 20; i++) {
+            hitSpool.advance();
+        }
+        hitSpool.commit();
+        hitSpool.advance();
+
+        // When
+        final HitSpool reopened = newSpool(1024 * 1024);
+
+        // Then
+        assertThat(drain(reopened)).containsExactlyElementsOf(expected.subList(20, 50));
+    }
+
+    @Test
+    public void open_whenLastRecordIsTorn_shouldSkipIt() throws IOException {
+        // Given
+        final HitSpool hitSpool = newSpool(1024 * 1024);
+        hitSpool.append("v=1&ec=first");
+        hitSpool.append("v=1&ec=second");
+        hitSpool.commit();
+        try (RandomAccessFile segment = new RandomAccessFile(new File(folder.getRoot(), "1" + HitSpool.SEGMENT_SUFFIX), "rw")) {
+            // Corrupt the payload of the second record
+            segment.seek(16 + "v=1&ec=first".length() + 16);
+            segment.write('X');
+        }
+
+        // When
+        final HitSpool reopened = newSpool(1024 * 1024);
+
+        // Then
+        assertThat(drain(reopened)).containsExactly("v=1&ec=first");
+    }
+
+    @Test
+    public void append_whenDiskCapReached_shouldDropOldestSegments() {
+        // Given
+        final HitSpool hitSpool = newSpool(3 * SEGMENT_BYTES);
+        final List<String> appended = appendHits(hitSpool, 200);
+
+        // When
+        final List<String> payloads = drain(hitSpool);
+
+        // Then
+        assertThat(folder.getRoot().list((dir, name) -> name.endsWith(HitSpool.SEGMENT_SUFFIX)).length).isLessThanOrEqualTo(3);
+        assertThat(payloads).isNotEmpty();
+        assertThat(appended).endsWith(payloads.toArray(new String[payloads.size()]));
+        assertThat(hitSpool.metrics().stream().filter(metric -> metric.getName().equals("spool.segments.dropped")).findFirst().get().getValue().longValue())
+                .isGreaterThan(0);
+    }
+
+    @Test
+    public void append_whenDisabled_shouldRefuseHits() {
+        // Given
+        final CircuitBreaker circuitBreaker = openCircuitBreaker();
+        final HitSpool hitSpool = new HitSpool(circuitBreaker, false, folder.getRoot().getAbsolutePath(), SEGMENT_BYTES, SEGMENT_BYTES * 4);
+
+        // When
+        final boolean result = hitSpool.append("v=1");
+
+        // Then
+        assertThat(result).isFalse();
+        assertThat(hitSpool.isDegraded()).isFalse();
+        assertThat(hitSpool.peek()).isNull();
+    }
+
+    @Test
+    public void isDegraded_whenCircuitBreakerIsOpen_shouldBeTrue() {
+        // Given
+        final CircuitBreaker circuitBreaker = openCircuitBreaker();
+
+        // When
+        final HitSpool hitSpool = new HitSpool(circuitBreaker, true, folder.getRoot().getAbsolutePath(), SEGMENT_BYTES, SEGMENT_BYTES * 4);
+
+        // Then
+        assertThat(hitSpool.isDegraded()).isTrue();
+        assertThat(newSpool(SEGMENT_BYTES * 4).isDegraded()).isFalse();
+    }
+
+    private HitSpool newSpool(long maxBytes) {
+        return new HitSpool(closedCircuitBreaker(), true, folder.getRoot().getAbsolutePath(), SEGMENT_BYTES, maxBytes);
+    }
+
+    private static CircuitBreaker closedCircuitBreaker() {
+        return new CircuitBreaker("googleanalytics", true, 50, 10, 1, 10000, 1);
+    }
+
+    private static CircuitBreaker openCircuitBreaker() {
+        final CircuitBreaker circuitBreaker = closedCircuitBreaker();
+        circuitBreaker.onFailure(new ResourceAccessException("timeout"));
+        return circuitBreaker;
+    }
+
+    private static List<String> appendHits(HitSpool hitSpool, int count) {
+        final List<String> payloads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final String payload = "v=1&t=event&ec=key" + i + "&ea=value" + i;
+            assertThat(hitSpool.append(payload)).isTrue();
+            payloads.add(payload);
+        }
+        return payloads;
+    }
+
+    private static List<String> drain(HitSpool hitSpool) {
+        final List<String> payloads = new ArrayList<>();
+        HitSpool.SpooledHit hit;
+        while ((hit = hitSpool.peek()) != null) {
+            payloads.add(hit.getPayload());
+            hitSpool.advance();
+        }
+        return payloads;
+    }
+}
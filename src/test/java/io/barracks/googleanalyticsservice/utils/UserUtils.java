@@ -26,11 +26,18 @@ package io.barracks.googleanalyticsservice.utils;
 
 import io.barracks.googleanalyticsservice.model.User;
 
+import java.util.Collections;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class UserUtils {
     public static User getUser() {
-        User user = User.builder().gaTrackingId("UA-12348765-65").build();
+        User user = User.builder()
+                .gaTrackingId("UA-12348765-65")
+                .gaKeyFilters(Collections.emptyList())
+                .gaDimensionMapping(Collections.emptyMap())
+                .gaApiSecret("api-secret")
+                .build();
         assertThat(user).hasNoNullFieldsOrProperties();
         return user;
     }